@@ -1,50 +1,210 @@
 package com.mediamethods.geofencing;
 
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 import com.onesignal.OneSignal;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GeoLocationService extends Service implements
         GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, LocationListener {
 
-    private static long UPDATE_INTERVAL_IN_MILLISECONDS = 5000;
-    private static long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = UPDATE_INTERVAL_IN_MILLISECONDS / 2;
+    // once targets are evaluated locally, the UpdateLocation call is only used for reporting
+    private static final boolean REPORT_LOCATION_TO_SERVER = true;
+
+    // upload pipeline: at most this many fixes wait, sent in batches at least every flush
+    // interval. Each cellular upload keeps the radio up for its tail of several seconds, so
+    // fixes wait longer there and go out early whenever the radio is up for other traffic;
+    // transitions are sent at once either way
+    private static final int UPLOAD_QUEUE_CAPACITY = 300;
+    private static final int UPLOAD_BATCH_SIZE = 50;
+    private static final long UPLOAD_FLUSH_INTERVAL_WIFI_IN_MILLISECONDS = 15000;
+    private static final long UPLOAD_FLUSH_INTERVAL_CELLULAR_IN_MILLISECONDS = 120000;
+    private static final long UPLOAD_COALESCE_IN_MILLISECONDS = 1000;
+
+    // send batches in the compact binary format until the server answers 415 Unsupported Media Type
+    private static final boolean SEND_BINARY_BATCHES = true;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    // movement filter: fixes implying more than this speed are outliers, smaller moves are dropped
+    private static final double FILTER_MAX_SPEED_IN_METERS_PER_SECOND = 70;
+    private static final double FILTER_MIN_DEAD_BAND_IN_METERS = 5;
+    private static final long FILTER_KEEP_ALIVE_IN_MILLISECONDS = 5 * 60 * 1000;
+
+    // track simplification: dropped points stay within the tolerance of the uploaded path, and
+    // none is held back longer than the delay
+    private static final double SIMPLIFY_TOLERANCE_IN_METERS = 10;
+    private static final int SIMPLIFY_MAX_WINDOW = 100;
+    private static final long SIMPLIFY_MAX_DELAY_IN_MILLISECONDS = 30000;
+
+    // a metrics report rides along with the first batch after this interval
+    private static final long METRICS_REPORT_INTERVAL_IN_MILLISECONDS = 15 * 60 * 1000;
+
+    // local transitions: dwell after this long inside; less accurate fixes cannot enter or exit
+    private static final long TRANSITION_DWELL_IN_MILLISECONDS = 5 * 60 * 1000;
+    private static final float TRANSITION_MAX_ACCURACY_IN_METERS = 100;
+
+    // let Play services watch the nearest targets and drop to passive updates meanwhile
+    private static final boolean USE_PLATFORM_GEOFENCES = true;
+    private static final int PLATFORM_GEOFENCE_CAPACITY = GeofenceRotation.MAX_GEOFENCES;
+
+    // offline outbox: fixes that could not be sent, replayed one segment per request
+    private static final long OUTBOX_MAX_BYTES = 4 * 1024 * 1024;
+    private static final long OUTBOX_MAX_AGE_IN_MILLISECONDS = 24 * 60 * 60 * 1000;
+    private static final int OUTBOX_SEGMENT_FIXES = 1000;
+
+    // platform geofence events, forwarded by GeofenceTransitionService
+    static final String ACTION_GEOFENCE_EVENT = "com.mediamethods.geofencing.GEOFENCE_EVENT";
+    static final String ACTION_GEOFENCES_LOST = "com.mediamethods.geofencing.GEOFENCES_LOST";
+    static final String EXTRA_GEOFENCE_TRANSITION = "transition";
+    static final String EXTRA_GEOFENCE_IDS = "ids";
+    static final String EXTRA_GEOFENCE_LOCATION = "location";
 
     private String TAG = this.getClass().getName();
 
     protected GoogleApiClient mGoogleApiClient;
     protected LocationRequest mLocationRequest;
-    protected Location mCurrentLocation;
 
-    private String mOneSignalUserId = "";
-    private String mOneSignalAppRegId = "";
+    // everything readers need, replaced as a whole with compare-and-set
+    private final AtomicReference<ServiceState> mState = new AtomicReference<>(ServiceState.EMPTY);
+
+    // picks the request interval and priority; guarded by this
+    private final SamplingScheduler mScheduler = new SamplingScheduler();
+
+    // null until the target list has been loaded
+    private volatile TargetIndex mTargetIndex;
+
+    private final FixFilter mFixFilter = new FixFilter(FILTER_MAX_SPEED_IN_METERS_PER_SECOND,
+            FILTER_MIN_DEAD_BAND_IN_METERS, FILTER_KEEP_ALIVE_IN_MILLISECONDS);
+
+    // enter/exit/dwell state per target; guarded by itself
+    private final TransitionDetector mTransitionDetector = new TransitionDetector(
+            TRANSITION_DWELL_IN_MILLISECONDS, TRANSITION_MAX_ACCURACY_IN_METERS);
+
+    // which targets are registered with the platform; guarded by itself
+    private final GeofenceRotation mRotation = new GeofenceRotation(PLATFORM_GEOFENCE_CAPACITY);
+
+    // true while the platform watches the registered geofences and fixes are passive
+    private volatile boolean mPlatformGeofences;
+
+    // the platform only knows circles: polygons and corridors are registered by their bounding
+    // circle, and while the device is in one their outline is checked on the device with
+    // active fixes. Guarded by mShapesInReach; the index is null when there are none
+    private final Map<String, Target> mShapesInReach = new HashMap<>();
+    private final TransitionDetector mShapeDetector = new TransitionDetector(
+            TRANSITION_DWELL_IN_MILLISECONDS, TRANSITION_MAX_ACCURACY_IN_METERS);
+    private volatile TargetIndex mShapesIndex;
+
+    private PendingIntent mGeofencePendingIntent;
+
+    // transitions waiting to ride along with the next UpdateLocation; guarded by itself
+    private final List<Transition> mPendingTransitions = new ArrayList<>();
+
+    // between the movement filter and the uploader; guarded by itself
+    private final TrajectorySimplifier mSimplifier = new TrajectorySimplifier(SIMPLIFY_TOLERANCE_IN_METERS,
+            SIMPLIFY_MAX_WINDOW, SIMPLIFY_MAX_DELAY_IN_MILLISECONDS);
+
+    private final Metrics mMetrics = Metrics.getInstance();
+    private final AtomicLong mFixesReceived = mMetrics.counter(Metrics.FIXES_RECEIVED);
+    private final AtomicLong mFixesAccepted = mMetrics.counter(Metrics.FIXES_ACCEPTED);
+    private final AtomicLong mFixesFiltered = mMetrics.counter(Metrics.FIXES_FILTERED);
+    private final AtomicLong mFixesSimplified = mMetrics.counter(Metrics.FIXES_SIMPLIFIED);
+    private final AtomicLong mIntervalChanges = mMetrics.counter(Metrics.GPS_INTERVAL_CHANGES);
+    private final AtomicLong mUploadWakeups = mMetrics.counter(Metrics.UPLOAD_WAKEUPS);
+    private final AtomicLong mUploadPiggybacked = mMetrics.counter(Metrics.UPLOAD_PIGGYBACKED);
+    private final AtomicLong mUploadFailures = mMetrics.counter(Metrics.UPLOAD_FAILURES);
+    private final AtomicLong mUploadRetries = mMetrics.counter(Metrics.UPLOAD_RETRIES);
+    private final AtomicLong mUploadRejected = mMetrics.counter(Metrics.UPLOAD_REJECTED);
+    private final AtomicLong mTransitions = mMetrics.counter(Metrics.GEOFENCE_TRANSITIONS);
+    private final Metrics.Histogram mAlertLatency = mMetrics.histogram(Metrics.GEOFENCE_ALERT_MILLIS);
+    private final Metrics.Histogram mUploadRtt = mMetrics.histogram(Metrics.UPLOAD_RTT_MILLIS);
+    private final Metrics.Histogram mUploadParse = mMetrics.histogram(Metrics.UPLOAD_PARSE_MICROS);
+    private final Metrics.Histogram mUploadQueueDepth = mMetrics.histogram(Metrics.UPLOAD_QUEUE_DEPTH);
+
+    private volatile boolean mSendBinaryBatches = SEND_BINARY_BATCHES;
+
+    private LocationUploader mUploader;
+    private LocationUpdateSender mUpdateSender;
+    private LocationOutbox mOutbox;
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateUploadDeadline();
+            if (isNetworkConnected()) {
+                // the radio has just come up
+                onNetworkActive();
+                replayOutbox();
+            }
+        }
+    };
+
+    // a ConnectivityManager.OnNetworkActiveListener from Lollipop on, which older releases
+    // cannot load
+    private Object mNetworkActiveListener;
 
     private final IBinder mBinder = new LocalBinder();
 
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Receives the fixes of the service's location request.
+     */
+    public interface LocationSubscriber {
+        /**
+         * Called on the subscriber's looper. When fixes arrive faster than the looper handles
+         * them, only the latest is delivered.
+         *
+         * @param nearest the nearest target to the fix, null until the targets are loaded
+         */
+        void onLocationUpdate(Location location, TargetIndex.Nearest nearest);
+    }
+
     public GeoLocationService() {
     }
 
@@ -60,14 +220,158 @@ public class GeoLocationService extends Service implements
         return mBinder;
     }
 
+    /**
+     * Consistent snapshot of the latest fix, nearest target, identity and sampling plan.
+     */
+    public ServiceState getState() {
+        return mState.get();
+    }
+
     public Location getLatestLocation() {
-        return mCurrentLocation;
+        return mState.get().getLocation();
+    }
+
+    /**
+     * Delivers every new fix to the subscriber on the given looper until it unsubscribes.
+     * The latest known fix, if any, is delivered straight away.
+     */
+    public void subscribe(LocationSubscriber subscriber, Looper looper) {
+        Subscription subscription = new Subscription(subscriber, new Handler(looper));
+        mSubscriptions.add(subscription);
+
+        ServiceState state = mState.get();
+        if (state.getLocation() != null) {
+            subscription.deliver(state.getLocation(), state.getNearest());
+        }
+    }
+
+    public void unsubscribe(LocationSubscriber subscriber) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.subscriber == subscriber) {
+                subscription.cancel();
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Nearest target to the latest fix, evaluated on the device. Null until both the
+     * targets and a location are available.
+     */
+    public TargetIndex.Nearest getNearestTarget() {
+        return mState.get().getNearest();
+    }
+
+    private void publishLocation(Location location, TargetIndex.Nearest nearest) {
+        ServiceState state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state, state.withLocation(location, nearest)));
+    }
+
+    private void publishIdentity(String userId, String registrationId) {
+        ServiceState state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state, state.withIdentity(userId, registrationId)));
+    }
+
+    private void publishPlan(SamplingScheduler.Plan plan) {
+        ServiceState state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state, state.withPlan(plan)));
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ServiceState state = mState.get();
+        writer.println("plan " + state.getPlan());
+        writer.println("nearest " + (state.getNearest() != null ? state.getNearest().getBoundaryDistance() + " m" : "-"));
+        synchronized (mTransitionDetector) {
+            writer.println("geofence.inside " + mTransitionDetector.getInsideCount());
+        }
+        synchronized (mRotation) {
+            writer.println("geofence.platform " + (mPlatformGeofences ? mRotation.getRegisteredCount() : 0)
+                    + " refresh " + mRotation.getRefreshRadius() + " m");
+        }
+        writer.println("upload.queue.current " + mUploader.getQueueSize());
+        writer.println("upload.queue.dropped " + mUploader.getDroppedCount());
+        writer.println("upload.queue.coalesced " + mUploader.getCoalescedCount());
+        writer.println("upload.deadline_ms " + mUploader.getFlushInterval());
+        mMetrics.dump(writer);
+    }
+
+    /** Fixes that passed the movement filter, before track simplification. */
+    public long getAcceptedFixCount() {
+        return mFixesAccepted.get();
+    }
+
+    /** Fixes the movement filter dropped as stationary or as outliers. */
+    public long getDroppedFixCount() {
+        return mFixesFiltered.get();
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
 
+        StartupTrace.getInstance().mark(StartupTrace.SERVICE_CREATED);
+
+        // push messaging is not needed to show the first screen, so it waits until the main
+        // thread has nothing else to do
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                initOneSignal();
+                StartupTrace.getInstance().mark(StartupTrace.DEFERRED_INIT);
+                return false;
+            }
+        });
+
+        // single worker for all UpdateLocation calls, backed by the offline outbox
+        mOutbox = new LocationOutbox(new File(getFilesDir(), "outbox"),
+                OUTBOX_MAX_BYTES, OUTBOX_MAX_AGE_IN_MILLISECONDS, OUTBOX_SEGMENT_FIXES);
+        mUpdateSender = new LocationUpdateSender();
+        mUploader = new LocationUploader(
+                new LocationBatcher(UPLOAD_QUEUE_CAPACITY, UPLOAD_BATCH_SIZE, UPLOAD_FLUSH_INTERVAL_CELLULAR_IN_MILLISECONDS,
+                        UPLOAD_COALESCE_IN_MILLISECONDS, LocationBatcher.OverflowPolicy.DROP_OLDEST),
+                mUpdateSender);
+        mUploader.start();
+        updateUploadDeadline();
+        watchNetworkActivity();
+
+        // send whatever was stored while offline, now and whenever the network comes back
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        replayOutbox();
+
+        // initialize google location service first, the connection takes longest
+        buildGoogleApiClient();
+        mGoogleApiClient.connect();
+
+        // index the targets for on-device evaluation as they arrive
+        TargetRepository repository = TargetRepository.getInstance(getCacheDir());
+        repository.addListener(mTargetListener);
+        repository.prefetch();
+    }
+
+    private final TargetRepository.Listener mTargetListener = new TargetRepository.Listener() {
+        @Override
+        public void onTargets(TargetIndex index) {
+            indexTargets(index);
+        }
+
+        @Override
+        public void onTargetsChanged(TargetIndex index, List<Target> added, List<Target> removed) {
+            indexTargets(index);
+        }
+    };
+
+    private void initOneSignal() {
         // initialize OneSignal library
         OneSignal.startInit(this).init();
         OneSignal.enableNotificationsWhenActive(true);
@@ -76,14 +380,22 @@ public class GeoLocationService extends Service implements
         OneSignal.idsAvailable(new OneSignal.IdsAvailableHandler() {
             @Override
             public void idsAvailable(String userId, String registrationId) {
-                mOneSignalUserId = userId;
-                mOneSignalAppRegId = registrationId;
+                if (userId != null && userId.length() > 0) {
+                    publishIdentity(userId, registrationId);
+                }
             }
         });
+    }
 
-        // initialize google location service
-        buildGoogleApiClient();
-        mGoogleApiClient.connect();
+    private void indexTargets(TargetIndex index) {
+        mTargetIndex = index;
+        Log.d(TAG, "Indexed " + index.size() + " targets");
+
+        // the nearest set may have changed
+        Location location = mState.get().getLocation();
+        if (location != null) {
+            rotateGeofences(location.getLatitude(), location.getLongitude(), true);
+        }
     }
 
     protected synchronized void buildGoogleApiClient() {
@@ -97,47 +409,343 @@ public class GeoLocationService extends Service implements
         createLocationRequest();
     }
 
-    protected void createLocationRequest() {
+    protected synchronized void createLocationRequest() {
         mLocationRequest = new LocationRequest();
+        SamplingScheduler.Plan plan = mScheduler.getPlan();
+        applyPlan(plan);
+        publishPlan(plan);
+    }
 
+    private void applyPlan(SamplingScheduler.Plan plan) {
         // Sets the desired interval for active location updates. This interval is
         // inexact. You may not receive updates at all if no location sources are available, or
         // you may receive them slower than requested. You may also receive updates faster than
         // requested if other applications are requesting location at a faster interval.
-        mLocationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
+        mLocationRequest.setInterval(plan.getIntervalMillis());
 
         // Sets the fastest rate for active location updates. This interval is exact, and your
         // application will never receive updates faster than this value.
-        mLocationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
+        mLocationRequest.setFastestInterval(plan.getFastestIntervalMillis());
+
+        switch (plan.getPriority()) {
+            case HIGH_ACCURACY:
+                mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+                break;
+            case BALANCED_POWER_ACCURACY:
+                mLocationRequest.setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+                break;
+            case LOW_POWER:
+                mLocationRequest.setPriority(LocationRequest.PRIORITY_LOW_POWER);
+                break;
+            default:
+                mLocationRequest.setPriority(LocationRequest.PRIORITY_NO_POWER);
+                break;
+        }
+    }
+
+    /**
+     * Feeds the scheduler and re-registers the location request when its plan changed.
+     * While the platform watches the geofences the request stays passive.
+     *
+     * @param closingSpeed speed towards the boundary, NaN when unknown
+     */
+    private synchronized void reschedule(double boundaryDistance, Location location, double closingSpeed) {
+        SamplingScheduler.Plan plan = mScheduler.update(boundaryDistance,
+                location.hasAccuracy() ? location.getAccuracy() : 0,
+                location.hasSpeed() ? location.getSpeed() : 0,
+                closingSpeed);
+        requestPlan(isPassive() ? SamplingScheduler.PASSIVE : plan);
+    }
 
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+    private synchronized void requestPlan(SamplingScheduler.Plan plan) {
+        if (plan == mState.get().getPlan()) {
+            return;
+        }
+
+        Log.d(TAG, "Location request now " + plan);
+        mIntervalChanges.incrementAndGet();
+        applyPlan(plan);
+        publishPlan(plan);
+
+        // a new request on the same listener replaces the previous one
+        if (mGoogleApiClient.isConnected()) {
+            LocationServices.FusedLocationApi.requestLocationUpdates(
+                    mGoogleApiClient, mLocationRequest, this);
+        }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_GEOFENCE_EVENT.equals(intent.getAction())) {
+            onGeofenceEvent(intent);
+        } else if (intent != null && ACTION_GEOFENCES_LOST.equals(intent.getAction())) {
+            onGeofencesLost();
+        }
         return START_STICKY;
     }
 
+    /**
+     * Registers the nearest targets with the platform, changing only what differs from the
+     * registered set.
+     *
+     * @param force rank even while inside the refresh fence, e.g. after it reported an exit
+     */
+    private void rotateGeofences(double latitude, double longitude, boolean force) {
+        TargetIndex index = mTargetIndex;
+        if (!USE_PLATFORM_GEOFENCES || index == null || !mGoogleApiClient.isConnected()) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+
+        GeofenceRotation.Update update;
+        boolean first;
+        float refreshRadius;
+        synchronized (mRotation) {
+            if (!force && !mRotation.needsRanking(latitude, longitude)) {
+                return;
+            }
+            first = mRotation.getRegisteredCount() == 0;
+            update = mRotation.rank(index, latitude, longitude);
+            refreshRadius = mRotation.getRefreshRadius();
+        }
+        PendingIntent pendingIntent = getGeofencePendingIntent();
+
+        if (first) {
+            // whatever an earlier process registered is unknown now
+            LocationServices.GeofencingApi.removeGeofences(mGoogleApiClient, pendingIntent);
+        } else if (!update.getRemoved().isEmpty()) {
+            LocationServices.GeofencingApi.removeGeofences(mGoogleApiClient, update.getRemoved());
+        }
+
+        // the platform reports an entry into every fence the device is already inside, so targets
+        // the local detector already reported go in a request without that initial trigger;
+        // outlines still need it to be checked here at all
+        List<Geofence> geofences = new ArrayList<>(update.getAdded().size() + 1);
+        List<Geofence> entered = new ArrayList<>();
+        synchronized (mTransitionDetector) {
+            for (Target target : update.getAdded()) {
+                Geofence geofence = new Geofence.Builder()
+                        .setRequestId(GeofenceRotation.requestId(target))
+                        .setCircularRegion(target.getLatitude(), target.getLongitude(), target.getRadius())
+                        .setExpirationDuration(Geofence.NEVER_EXPIRE)
+                        .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT
+                                | Geofence.GEOFENCE_TRANSITION_DWELL)
+                        .setLoiteringDelay((int) TRANSITION_DWELL_IN_MILLISECONDS)
+                        .build();
+                if (target.getShape() == null && mTransitionDetector.isInside(target)) {
+                    entered.add(geofence);
+                } else {
+                    geofences.add(geofence);
+                }
+            }
+        }
+        if (update.hasRefreshFence()) {
+            // same id, so this replaces the previous refresh fence
+            geofences.add(new Geofence.Builder()
+                    .setRequestId(GeofenceRotation.REFRESH_FENCE_ID)
+                    .setCircularRegion(latitude, longitude, refreshRadius)
+                    .setExpirationDuration(Geofence.NEVER_EXPIRE)
+                    .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_EXIT)
+                    .build());
+        }
+        final int added = update.getAdded().size();
+        final int removed = update.getRemoved().size();
+        ResultCallback<Status> callback = new ResultCallback<Status>() {
+            @Override
+            public void onResult(Status status) {
+                if (status.isSuccess()) {
+                    Log.d(TAG, "Geofences: " + added + " added, " + removed + " removed");
+                    setPlatformGeofences(true);
+                } else {
+                    Log.d(TAG, "Failed to add geofences: " + status.getStatusCode());
+                    onGeofencesLost();
+                }
+            }
+        };
+        if (!entered.isEmpty()) {
+            GeofencingRequest request = new GeofencingRequest.Builder()
+                    .setInitialTrigger(0)
+                    .addGeofences(entered)
+                    .build();
+            LocationServices.GeofencingApi.addGeofences(mGoogleApiClient, request, pendingIntent)
+                    .setResultCallback(callback);
+        }
+        if (!geofences.isEmpty()) {
+            GeofencingRequest request = new GeofencingRequest.Builder()
+                    .setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER)
+                    .addGeofences(geofences)
+                    .build();
+            LocationServices.GeofencingApi.addGeofences(mGoogleApiClient, request, pendingIntent)
+                    .setResultCallback(callback);
+        }
+    }
+
+    private synchronized PendingIntent getGeofencePendingIntent() {
+        if (mGeofencePendingIntent == null) {
+            mGeofencePendingIntent = PendingIntent.getService(this, 0,
+                    new Intent(this, GeofenceTransitionService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        return mGeofencePendingIntent;
+    }
+
+    /**
+     * Switches between passive fixes while the platform watches the geofences, and the
+     * scheduler's own plan with local transition detection.
+     */
+    private synchronized void setPlatformGeofences(boolean active) {
+        if (mPlatformGeofences == active) {
+            return;
+        }
+        mPlatformGeofences = active;
+        // the detector only sees fixes in local mode; what it knew is stale once it resumes
+        synchronized (mTransitionDetector) {
+            mTransitionDetector.reset();
+        }
+        requestPlan(isPassive() ? SamplingScheduler.PASSIVE : mScheduler.getPlan());
+    }
+
+    /** True while the platform watches everything and no outline needs checking here. */
+    private boolean isPassive() {
+        return mPlatformGeofences && mShapesIndex == null;
+    }
+
+    /**
+     * The platform dropped the geofences, or refused them: rank again on the next fix, with
+     * the location request back to the scheduler's plan until then.
+     */
+    private void onGeofencesLost() {
+        synchronized (mRotation) {
+            mRotation.reset();
+        }
+        synchronized (mShapesInReach) {
+            mShapesInReach.clear();
+            mShapesIndex = null;
+            mShapeDetector.reset();
+        }
+        setPlatformGeofences(false);
+    }
+
+    private void onGeofenceEvent(Intent intent) {
+        int transition = intent.getIntExtra(EXTRA_GEOFENCE_TRANSITION, -1);
+        String[] requestIds = intent.getStringArrayExtra(EXTRA_GEOFENCE_IDS);
+        Location location = intent.getParcelableExtra(EXTRA_GEOFENCE_LOCATION);
+        if (requestIds == null) {
+            return;
+        }
+
+        Transition.Type type;
+        if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+            type = Transition.Type.ENTER;
+        } else if (transition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+            type = Transition.Type.EXIT;
+        } else if (transition == Geofence.GEOFENCE_TRANSITION_DWELL) {
+            type = Transition.Type.DWELL;
+        } else {
+            return;
+        }
+
+        long time = location != null ? location.getTime() : System.currentTimeMillis();
+        List<Transition> transitions = new ArrayList<>(requestIds.length);
+        boolean refresh = false;
+        boolean shapesChanged = false;
+        for (String requestId : requestIds) {
+            if (GeofenceRotation.REFRESH_FENCE_ID.equals(requestId)) {
+                refresh = true;
+                continue;
+            }
+            Target target;
+            synchronized (mRotation) {
+                target = mRotation.getTarget(requestId);
+            }
+            if (target != null && target.getShape() != null) {
+                // only the bounding circle: whether the outline was crossed is decided here
+                synchronized (mShapesInReach) {
+                    if (type == Transition.Type.EXIT) {
+                        mShapesInReach.remove(requestId);
+                    } else {
+                        mShapesInReach.put(requestId, target);
+                    }
+                }
+                shapesChanged = true;
+            } else {
+                transitions.add(new Transition(type, GeofenceRotation.targetName(requestId), time));
+            }
+        }
+        if (shapesChanged) {
+            watchShapes(location);
+        }
+
+        if (!transitions.isEmpty()) {
+            reportTransitions(transitions);
+            LocationFix fix = null;
+            if (location != null) {
+                fix = new LocationFix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                        location.getSpeed(), location.getBearing(), location.getTime());
+            }
+            uploadTransitions(fix);
+        }
+        if (refresh && location != null) {
+            rotateGeofences(location.getLatitude(), location.getLongitude(), true);
+        } else if (refresh) {
+            // no position to rank from: rank on the next fix
+            synchronized (mRotation) {
+                mRotation.reset();
+            }
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
 
+        TargetRepository.getInstance(getCacheDir()).removeListener(mTargetListener);
         mGoogleApiClient.disconnect();
+        for (Subscription subscription : mSubscriptions) {
+            subscription.cancel();
+        }
+        mSubscriptions.clear();
+        unregisterReceiver(mConnectivityReceiver);
+        if (mNetworkActiveListener != null) {
+            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            cm.removeDefaultNetworkActiveListener((ConnectivityManager.OnNetworkActiveListener) mNetworkActiveListener);
+        }
+
+        // the end of the track is still held back
+        List<LocationFix> kept = new ArrayList<>(1);
+        synchronized (mSimplifier) {
+            mSimplifier.flush(kept);
+        }
+        for (LocationFix point : kept) {
+            mUploader.offer(point);
+        }
+        mUploader.stop();
     }
 
     @Override
     public void onConnected(Bundle bundle) {
-        LocationServices.FusedLocationApi.requestLocationUpdates(
-                mGoogleApiClient, mLocationRequest, this);
+        synchronized (this) {
+            LocationServices.FusedLocationApi.requestLocationUpdates(
+                    mGoogleApiClient, mLocationRequest, this);
+        }
 
-        if (mCurrentLocation == null) {
+        ServiceState state = mState.get();
+        if (state.getLocation() == null) {
 
             if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED &&
                     ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                 return;
             }
 
-            mCurrentLocation = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
+            Location last = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
+            if (last != null) {
+                TargetIndex index = mTargetIndex;
+                TargetIndex.Nearest nearest = index != null ? index.nearest(last.getLatitude(), last.getLongitude()) : null;
+                // only a placeholder; a real fix that arrived meanwhile wins
+                mState.compareAndSet(state, state.withLocation(last, nearest));
+            }
         }
     }
 
@@ -148,13 +756,209 @@ public class GeoLocationService extends Service implements
 
     @Override
     public void onLocationChanged(Location location) {
-        mCurrentLocation = location;
+        if (mFixesReceived.incrementAndGet() == 1) {
+            StartupTrace.getInstance().mark(StartupTrace.FIRST_FIX);
+        }
+
+        // in tiled mode, have the targets around here and ahead loaded
+        TargetRepository.getInstance(getCacheDir()).setFocus(location.getLatitude(), location.getLongitude(),
+                location.hasSpeed() ? location.getSpeed() : 0, location.hasBearing() ? location.getBearing() : 0);
+
+        // evaluate the geofences locally when the targets are available
+        TargetIndex index = mTargetIndex;
+        TargetIndex.Nearest nearest = null;
+        if (index != null) {
+            nearest = index.nearest(location.getLatitude(), location.getLongitude());
+        }
+        publishLocation(location, nearest);
+        List<Transition> transitions = detectTransitions(location, index);
+        rotateGeofences(location.getLatitude(), location.getLongitude(), false);
+
+        if (nearest != null) {
+            double closingSpeed = Double.NaN;
+            if (location.hasSpeed() && location.hasBearing()) {
+                Target target = nearest.getTarget();
+                if (target.getShape() != null) {
+                    // the nearest point of the outline is the way to the boundary, inside or out
+                    closingSpeed = SamplingScheduler.closingSpeed(location.getSpeed(), location.getBearing(),
+                            target.getShape().bearingToBoundary(location.getLatitude(), location.getLongitude()),
+                            false);
+                } else {
+                    double bearingToCentre = GeoMath.bearing(location.getLatitude(), location.getLongitude(),
+                            target.getLatitude(), target.getLongitude());
+                    closingSpeed = SamplingScheduler.closingSpeed(location.getSpeed(), location.getBearing(),
+                            bearingToCentre, nearest.isInside());
+                }
+            }
+            reschedule(nearest.getBoundaryDistance(), location, closingSpeed);
+        }
+
+        for (Subscription subscription : mSubscriptions) {
+            subscription.deliver(location, nearest);
+        }
 
         // window service to see within geofencing area
-        if (mOneSignalUserId != "") {
-            Runnable r = new LocationUpdateAjaxThread(this, mOneSignalUserId, location.getLongitude(), location.getLatitude(), location.getSpeed());
-            new Thread(r).start();
+        String userId = mState.get().getUserId();
+        if ((REPORT_LOCATION_TO_SERVER || index == null) && userId != null) {
+            LocationFix fix;
+            synchronized (mFixFilter) {
+                // without an accuracy the filter falls back to its minimum dead-band
+                fix = mFixFilter.filter(new LocationFix(location.getLatitude(), location.getLongitude(),
+                        location.hasAccuracy() ? location.getAccuracy() : 0, location.getSpeed(),
+                        location.getBearing(), location.getTime()));
+                mFixesAccepted.set(mFixFilter.getAcceptedCount());
+                mFixesFiltered.set(mFixFilter.getDroppedCount());
+            }
+            if (!transitions.isEmpty()) {
+                // the fix that confirmed the transition goes along, whatever the filter said
+                if (fix == null) {
+                    fix = new LocationFix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                            location.getSpeed(), location.getBearing(), location.getTime());
+                }
+                uploadTransitions(fix);
+            } else if (fix != null) {
+                offerFix(fix, false);
+            }
+            mUploadQueueDepth.record(mUploader.getQueueSize());
+        }
+    }
+
+    /**
+     * Runs the fix through the transition detector, unless the platform watches the
+     * geofences, and reports what it confirms.
+     */
+    private List<Transition> detectTransitions(Location location, TargetIndex index) {
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        LocationFix fix = new LocationFix(location.getLatitude(), location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0, location.getSpeed(), location.getBearing(),
+                location.getTime());
+        List<Transition> transitions = new ArrayList<>(1);
+        if (mPlatformGeofences) {
+            // the platform reports the circles; only outlines in reach are checked here
+            synchronized (mShapesInReach) {
+                if (mShapesIndex == null) {
+                    return Collections.emptyList();
+                }
+                mShapeDetector.update(fix, mShapesIndex, transitions);
+            }
+        } else {
+            synchronized (mTransitionDetector) {
+                mTransitionDetector.update(fix, index, transitions);
+            }
         }
+        reportTransitions(transitions);
+        return transitions;
+    }
+
+    /**
+     * Starts or stops checking outlines on the device after the platform reported the device
+     * in or out of their bounding circles, with active fixes while any is in reach.
+     *
+     * @param location where the platform saw the device, or null
+     */
+    private void watchShapes(Location location) {
+        List<Transition> transitions = new ArrayList<>(1);
+        synchronized (mShapesInReach) {
+            mShapesIndex = mShapesInReach.isEmpty()
+                    ? null : new TargetIndex(new ArrayList<>(mShapesInReach.values()));
+            if (location != null) {
+                // an outline left along with its bounding circle reports its exit now
+                mShapeDetector.update(new LocationFix(location.getLatitude(), location.getLongitude(),
+                        location.hasAccuracy() ? location.getAccuracy() : 0, location.getSpeed(),
+                        location.getBearing(), location.getTime()), mShapesIndex, transitions);
+            }
+        }
+        if (!transitions.isEmpty()) {
+            reportTransitions(transitions);
+            uploadTransitions(null);
+        }
+        synchronized (this) {
+            requestPlan(isPassive() ? SamplingScheduler.PASSIVE : mScheduler.getPlan());
+        }
+    }
+
+    /**
+     * Logs and counts transitions, raises a notification for every entry and queues them for
+     * the next UpdateLocation.
+     */
+    private void reportTransitions(List<Transition> transitions) {
+        if (transitions.isEmpty()) {
+            return;
+        }
+        for (Transition transition : transitions) {
+            Log.d(TAG, "Geofence " + transition);
+            mTransitions.incrementAndGet();
+            if (transition.getType() == Transition.Type.ENTER) {
+                notifyEntered(transition);
+                mAlertLatency.record(Math.max(0, System.currentTimeMillis() - transition.getTime()));
+            }
+        }
+        synchronized (mPendingTransitions) {
+            mPendingTransitions.addAll(transitions);
+        }
+    }
+
+    /**
+     * Sends the queued transitions now, with the fix that confirmed them if there is one.
+     */
+    private void uploadTransitions(LocationFix fix) {
+        if (mState.get().getUserId() == null) {
+            // they stay queued until the user id is known
+            return;
+        }
+        if (fix != null) {
+            offerFix(fix, true);
+            mUploader.flush();
+        } else {
+            mUploader.post(new Runnable() {
+                public void run() {
+                    mUpdateSender.sendPendingTransitions();
+                }
+            });
+        }
+    }
+
+    /**
+     * Passes a fix through the track simplifier and queues the points it keeps.
+     *
+     * @param key whether the fix must be kept, as when it confirmed a transition
+     */
+    private void offerFix(LocationFix fix, boolean key) {
+        List<LocationFix> kept = new ArrayList<>(2);
+        synchronized (mSimplifier) {
+            if (key) {
+                mSimplifier.addKey(fix, kept);
+            } else {
+                mSimplifier.add(fix, kept);
+            }
+            mFixesSimplified.set(mSimplifier.getInputCount() - mSimplifier.getKeptCount());
+        }
+        for (LocationFix point : kept) {
+            // the key fix comes last, after any point it made final
+            mUploader.offer(point, key && point == fix);
+        }
+    }
+
+    private void notifyEntered(Transition transition) {
+        Intent intent = new Intent(this, MapsActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(transition.getTargetName())
+                .setContentText(getString(R.string.geofence_entered, transition.getTargetName()))
+                .setWhen(transition.getTime())
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setDefaults(NotificationCompat.DEFAULT_ALL)
+                .setAutoCancel(true)
+                .setContentIntent(contentIntent);
+
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        // one notification per target, replaced when it is entered again
+        manager.notify(transition.getTargetName().hashCode(), builder.build());
     }
 
     @Override
@@ -162,105 +966,327 @@ public class GeoLocationService extends Service implements
         Log.e(TAG, "Connection failed: ConnectionResult.getErrorCode() = " + connectionResult.getErrorCode());
     }
 
-    public class LocationUpdateAjaxThread implements Runnable {
+    private boolean isNetworkConnected() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
 
-        private String userId;
-        private double longitude;
-        private double latitude;
-        private double speed;
-        private LocationListener listener;
+    /**
+     * Lets fixes wait longer on cellular, where every upload wakes the radio, than on Wi-Fi.
+     */
+    private void updateUploadDeadline() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        boolean wifi = info != null && info.getType() == ConnectivityManager.TYPE_WIFI;
+        mUploader.setFlushInterval(wifi
+                ? UPLOAD_FLUSH_INTERVAL_WIFI_IN_MILLISECONDS : UPLOAD_FLUSH_INTERVAL_CELLULAR_IN_MILLISECONDS);
+    }
 
-        public LocationUpdateAjaxThread(LocationListener listener, String userId, double longitude, double latitude, double speed) {
-            // store parameter for later user
-            this.userId = userId;
-            this.longitude = longitude;
-            this.latitude = latitude;
-            this.speed = speed;
-            this.listener = listener;
+    /**
+     * Sends waiting fixes whenever the radio comes up for any traffic on the device, from
+     * Lollipop on. Before that only the network coming back counts.
+     */
+    private void watchNetworkActivity() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
         }
+        ConnectivityManager.OnNetworkActiveListener listener = new ConnectivityManager.OnNetworkActiveListener() {
+            @Override
+            public void onNetworkActive() {
+                GeoLocationService.this.onNetworkActive();
+            }
+        };
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        cm.addDefaultNetworkActiveListener(listener);
+        mNetworkActiveListener = listener;
+    }
 
-        public void run() {
+    private void onNetworkActive() {
+        if (mState.get().getUserId() != null && mUploader.onNetworkActive()) {
+            mUploadPiggybacked.incrementAndGet();
+        }
+    }
 
-            try {
+    private void replayOutbox() {
+        mUploader.post(new Runnable() {
+            public void run() {
+                mUpdateSender.replayStored();
+            }
+        });
+    }
 
-                URL url = new URL("http://api.1.name.my/GeoLocationService.svc/UpdateLocation");
-                HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                urlConnection.setDoOutput(true);
-                urlConnection.setRequestProperty("Content-Type", "application/json");
+    /**
+     * A subscriber and the handler of its looper. Holds only the latest undelivered fix, so
+     * a busy looper is posted to at most once however many fixes arrive.
+     */
+    private static class Subscription implements Runnable {
 
-                OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-                writeStream(out, userId, longitude, latitude, speed);
-                out.flush();
-                out.close();
+        final LocationSubscriber subscriber;
+        private final Handler handler;
 
-                InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-                String result = readStream(in);
-                Log.d(TAG, result);
+        private Location pendingLocation;
+        private TargetIndex.Nearest pendingNearest;
+        private boolean posted;
+        private boolean cancelled;
 
-                urlConnection.disconnect();
-
-                JSONObject jsonRootObject = new JSONObject(result);
-                String actualResult = jsonRootObject.optString("UpdateLocationResult").toString();
-                JSONObject resultObject = new JSONObject(actualResult);
-                JSONObject payloadObject = new JSONObject(resultObject.optString("payload").toString());
-
-                float distance = Float.parseFloat(payloadObject.optString("distanceToClosest").toString());
-                if (distance < 500) {
-                    UPDATE_INTERVAL_IN_MILLISECONDS = 100;
-                } else if (distance < 1000) {
-                    UPDATE_INTERVAL_IN_MILLISECONDS = 500;
-                } else if (distance < 5000) {
-                    UPDATE_INTERVAL_IN_MILLISECONDS = 30000;
-                } else if (distance < 20000) {
-                    UPDATE_INTERVAL_IN_MILLISECONDS = 120000;
-                } else {
-                    UPDATE_INTERVAL_IN_MILLISECONDS = 300000;
+        Subscription(LocationSubscriber subscriber, Handler handler) {
+            this.subscriber = subscriber;
+            this.handler = handler;
+        }
+
+        synchronized void deliver(Location location, TargetIndex.Nearest nearest) {
+            if (cancelled) {
+                return;
+            }
+            pendingLocation = location;
+            pendingNearest = nearest;
+            if (!posted) {
+                posted = true;
+                handler.post(this);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            handler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            Location location;
+            TargetIndex.Nearest nearest;
+            synchronized (this) {
+                posted = false;
+                if (cancelled) {
+                    return;
                 }
+                location = pendingLocation;
+                nearest = pendingNearest;
+                pendingLocation = null;
+                pendingNearest = null;
+            }
+            subscriber.onLocationUpdate(location, nearest);
+        }
+    }
 
+    /**
+     * Posts batches from the uploader to UpdateLocation. The newest fix of the batch is also
+     * sent in the original single-fix fields so the payload stays readable by older servers.
+     *
+     * Batches that cannot be sent for now go to the outbox. While the outbox holds anything,
+     * new batches are appended behind it so the server always receives fixes in order.
+     * Batches the server refused are dropped rather than stored, since they would be refused
+     * again and hold up everything behind them.
+     */
+    public class LocationUpdateSender implements LocationUploader.BatchSender {
 
-                if (FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS != UPDATE_INTERVAL_IN_MILLISECONDS / 2) {
-                    // previous setting changed
-                    FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = UPDATE_INTERVAL_IN_MILLISECONDS / 2;
+        // only touched on the upload worker
+        private long mLastMetricsReport;
 
-                    // restart the location update
-                    LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, listener);
-                    LocationServices.FusedLocationApi.requestLocationUpdates(
-                            mGoogleApiClient, mLocationRequest, listener);
+        public void send(List<LocationFix> batch) throws Exception {
+            if (!isNetworkConnected() || !mOutbox.isEmpty()) {
+                mOutbox.append(batch, System.currentTimeMillis());
+                replayStored();
+                return;
+            }
+            post(batch);
+        }
+
+        public void onSendFailed(List<LocationFix> batch, Exception ex) {
+            mUploadFailures.incrementAndGet();
+            if (!isRetryable(ex)) {
+                reject(batch, ex);
+                return;
+            }
+            try {
+                mOutbox.append(batch, System.currentTimeMillis());
+                Log.d(TAG, "Stored " + batch.size() + " fixes for later: " + ex.getMessage());
+            } catch (IOException ioe) {
+                Log.d(TAG, "Dropped " + batch.size() + " fixes: " + ioe.getMessage());
+            }
+        }
+
+        /**
+         * Sends the stored fixes, one request per outbox segment; GeoApiClient compresses
+         * these large bodies. Must run on the upload worker.
+         */
+        void replayStored() {
+            if (!isNetworkConnected()) {
+                return;
+            }
+            try {
+                int sent = mOutbox.replay(new LocationOutbox.Replayer() {
+                    public void send(List<LocationFix> batch) throws Exception {
+                        mUploadRetries.incrementAndGet();
+                        try {
+                            post(batch);
+                        } catch (Exception ex) {
+                            if (isRetryable(ex)) {
+                                throw ex;
+                            }
+                            // returning lets the outbox delete the segment and move on
+                            reject(batch, ex);
+                        }
+                    }
+                }, System.currentTimeMillis());
+                if (sent > 0) {
+                    Log.d(TAG, "Replayed " + sent + " stored fixes");
                 }
+            } catch (Exception ex) {
+                Log.d(TAG, "Outbox replay stopped: " + ex.getMessage());
+            }
+        }
 
+        /**
+         * Whether a failed upload may succeed later: network trouble or a transient HTTP
+         * status. Anything else, e.g. a 4xx or an unreadable reply, will fail the same way.
+         */
+        private boolean isRetryable(Exception ex) {
+            if (ex instanceof GeoApiClient.HttpException) {
+                return ((GeoApiClient.HttpException) ex).isTransient();
+            }
+            return ex instanceof IOException;
+        }
+
+        private void reject(List<LocationFix> batch, Exception ex) {
+            mUploadRejected.addAndGet(batch.size());
+            Log.d(TAG, "Dropped " + batch.size() + " rejected fixes: " + ex.getMessage());
+        }
 
+        /**
+         * Sends queued transitions without fixes. Must run on the upload worker.
+         */
+        void sendPendingTransitions() {
+            synchronized (mPendingTransitions) {
+                if (mPendingTransitions.isEmpty()) {
+                    return;
+                }
+            }
+            if (!isNetworkConnected()) {
+                return;
+            }
+            try {
+                post(Collections.<LocationFix>emptyList());
+            } catch (Exception ex) {
+                mUploadFailures.incrementAndGet();
+                Log.d(TAG, "Failed to send transitions: " + ex.getMessage());
+            }
+        }
+
+        private void post(List<LocationFix> batch) throws Exception {
+            ServiceState state = mState.get();
+            String userId = state.getUserId();
+            if (userId == null) {
+                // e.g. replaying the outbox right after a restart; keep the fixes for later
+                throw new IOException("OneSignal user id not available yet");
+            }
+            mUploadWakeups.incrementAndGet();
+            long now = System.currentTimeMillis();
+            String report = null;
+            if (now - mLastMetricsReport >= METRICS_REPORT_INTERVAL_IN_MILLISECONDS) {
+                report = mMetrics.report();
+            }
+            List<Transition> transitions;
+            synchronized (mPendingTransitions) {
+                transitions = new ArrayList<>(mPendingTransitions);
+                mPendingTransitions.clear();
+            }
+            try {
+                post(userId, state, batch, report, transitions);
+                if (report != null) {
+                    mLastMetricsReport = now;
+                }
             } catch (Exception ex) {
-                Log.d(TAG, ex.getMessage());
+                // keep them for the next request, ahead of any detected meanwhile
+                synchronized (mPendingTransitions) {
+                    mPendingTransitions.addAll(0, transitions);
+                }
+                throw ex;
             }
         }
 
-        private void writeStream(OutputStream out, String userId, double longitude, double latitude, double speed) {
+        private void post(String userId, ServiceState state, List<LocationFix> batch, String report,
+                          List<Transition> transitions) throws Exception {
+
+            long start = System.nanoTime();
+            GeoApiClient.Response response = null;
+            if (mSendBinaryBatches) {
+                try {
+                    response = GeoApiClient.getInstance().post("UpdateLocation",
+                            LocationBatchEncoder.encode(userId, batch, report, transitions),
+                            LocationBatchEncoder.CONTENT_TYPE);
+                } catch (GeoApiClient.HttpException ex) {
+                    if (ex.getStatus() != HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                        throw ex;
+                    }
+                    Log.d(TAG, "Server does not accept binary batches, falling back to JSON");
+                    mSendBinaryBatches = false;
+                }
+            }
+            if (response == null) {
+                response = GeoApiClient.getInstance().post(
+                        "UpdateLocation", encode(userId, batch, report, transitions), GeoApiClient.CONTENT_TYPE_JSON);
+            }
             try {
-                JSONObject gp = new JSONObject();
-                gp.put("id", userId);
-                gp.put("longitude", longitude);
-                gp.put("latitude", latitude);
-                //gp.put("speed", speed);
+                String result = response.readString();
+                mUploadRtt.record((System.nanoTime() - start) / 1000000);
+                Log.d(TAG, result);
 
-                out.write(gp.toString().getBytes());
+                long parseStart = System.nanoTime();
+                UpdateLocationResponse parsed = UpdateLocationResponse.decode(new StringReader(result));
+                mUploadParse.record((System.nanoTime() - parseStart) / 1000);
 
-            } catch (Exception e) {
-                e.printStackTrace();
+                // the server distance is only needed until the targets are indexed locally
+                Location location = state.getLocation();
+                if (mTargetIndex == null && location != null && !Double.isNaN(parsed.getDistanceToClosest())) {
+                    reschedule(parsed.getDistanceToClosest(), location, Double.NaN);
+                }
+
+                // the answer tells the current version of the targets, fetch the changes when behind
+                if (parsed.getTargetsVersion() >= 0) {
+                    TargetRepository.getInstance(getCacheDir()).requestVersion(parsed.getTargetsVersion());
+                }
+            } finally {
+                response.close();
             }
         }
 
-        private String readStream(InputStream is) {
-            try {
-                ByteArrayOutputStream bo = new ByteArrayOutputStream();
-                int i = is.read();
-                while(i != -1) {
-                    bo.write(i);
-                    i = is.read();
+        private byte[] encode(String userId, List<LocationFix> batch, String report,
+                              List<Transition> transitions) throws Exception {
+            JSONObject gp = new JSONObject();
+            gp.put("id", userId);
+            if (!batch.isEmpty()) {
+                LocationFix latest = batch.get(batch.size() - 1);
+                gp.put("longitude", latest.getLongitude());
+                gp.put("latitude", latest.getLatitude());
+            }
+
+            JSONArray locations = new JSONArray();
+            for (LocationFix fix : batch) {
+                JSONObject location = new JSONObject();
+                location.put("longitude", fix.getLongitude());
+                location.put("latitude", fix.getLatitude());
+                location.put("time", fix.getTime());
+                locations.put(location);
+            }
+            gp.put("locations", locations);
+            if (!transitions.isEmpty()) {
+                JSONArray events = new JSONArray();
+                for (Transition transition : transitions) {
+                    JSONObject event = new JSONObject();
+                    event.put("type", transition.getType().name());
+                    event.put("target", transition.getTargetName());
+                    event.put("time", transition.getTime());
+                    events.put(event);
                 }
-                return bo.toString();
-            } catch (Exception e) {
-                return "";
+                gp.put("transitions", events);
             }
+            if (report != null) {
+                gp.put("metrics", report);
+            }
+
+            return gp.toString().getBytes("UTF-8");
         }
     }
 }
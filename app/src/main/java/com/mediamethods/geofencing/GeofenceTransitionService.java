@@ -0,0 +1,56 @@
+package com.mediamethods.geofencing;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingEvent;
+
+import java.util.List;
+
+/**
+ * Receives the geofence events of Play services and forwards them to GeoLocationService,
+ * starting it again if it was stopped.
+ */
+public class GeofenceTransitionService extends IntentService {
+
+    private String TAG = this.getClass().getName();
+
+    public GeofenceTransitionService() {
+        super("GeofenceTransitionService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        GeofencingEvent event = GeofencingEvent.fromIntent(intent);
+        if (event == null) {
+            return;
+        }
+
+        Intent forward = new Intent(this, GeoLocationService.class);
+        if (event.hasError()) {
+            // e.g. location turned off: the platform has dropped every geofence
+            Log.d(TAG, "Geofencing error " + event.getErrorCode());
+            forward.setAction(GeoLocationService.ACTION_GEOFENCES_LOST);
+            startService(forward);
+            return;
+        }
+
+        List<Geofence> geofences = event.getTriggeringGeofences();
+        String[] requestIds = new String[geofences.size()];
+        for (int i = 0; i < requestIds.length; i++) {
+            requestIds[i] = geofences.get(i).getRequestId();
+        }
+
+        forward.setAction(GeoLocationService.ACTION_GEOFENCE_EVENT);
+        forward.putExtra(GeoLocationService.EXTRA_GEOFENCE_TRANSITION, event.getGeofenceTransition());
+        forward.putExtra(GeoLocationService.EXTRA_GEOFENCE_IDS, requestIds);
+        Location location = event.getTriggeringLocation();
+        if (location != null) {
+            forward.putExtra(GeoLocationService.EXTRA_GEOFENCE_LOCATION, location);
+        }
+        startService(forward);
+    }
+}
@@ -0,0 +1,22 @@
+package com.mediamethods.geofencing;
+
+import android.app.Application;
+import android.content.Intent;
+
+/**
+ * Starts the work every launch waits for as soon as the process exists, in parallel: the target
+ * prefetch and, through GeoLocationService, the location connection. By the time the map is
+ * ready the targets are usually already decoded.
+ */
+public class GeofencingApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        // starts the clock of the startup phases
+        StartupTrace.getInstance();
+        super.onCreate();
+
+        TargetRepository.getInstance(getCacheDir()).prefetch();
+        startService(new Intent(this, GeoLocationService.class));
+    }
+}
@@ -0,0 +1,250 @@
+package com.mediamethods.geofencing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Durable store for fixes that could not be uploaded. Fixes are appended to fixed-size
+ * records in segment files; each closed segment is replayed as one batch, oldest first,
+ * and deleted once the server has accepted it.
+ *
+ * The total size is capped by deleting the oldest segments, and fixes older than the
+ * maximum age are skipped on replay. A torn record at the end of a segment (e.g. after a
+ * crash) is ignored.
+ */
+public class LocationOutbox {
+
+    public interface Replayer {
+        /**
+         * Sends one segment worth of fixes. Throwing stops the replay and keeps the segment.
+         */
+        void send(List<LocationFix> batch) throws Exception;
+    }
+
+    // time, latitude, longitude, accuracy, speed, bearing
+    static final int RECORD_SIZE = 8 + 8 + 8 + 4 + 4 + 4;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int segmentRecords;
+
+    private DataOutputStream activeOut;
+    private int activeRecords;
+    private long nextSequence;
+
+    private long evicted;
+
+    /**
+     * @param maxBytes       total size above which the oldest segments are deleted
+     * @param maxAgeMillis   fixes older than this are not replayed
+     * @param segmentRecords fixes per segment, i.e. the replay batch size
+     */
+    public LocationOutbox(File directory, long maxBytes, long maxAgeMillis, int segmentRecords) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.segmentRecords = segmentRecords;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create outbox directory " + directory);
+        }
+        File[] existing = segments();
+        nextSequence = existing.length == 0 ? 0 : sequenceOf(existing[existing.length - 1]) + 1;
+    }
+
+    /**
+     * @param now current wall-clock time, used for the age limit
+     */
+    public synchronized void append(List<LocationFix> fixes, long now) throws IOException {
+        if (fixes.isEmpty()) {
+            return;
+        }
+        for (LocationFix fix : fixes) {
+            if (activeOut == null || activeRecords >= segmentRecords) {
+                openSegment();
+            }
+            activeOut.writeLong(fix.getTime());
+            activeOut.writeDouble(fix.getLatitude());
+            activeOut.writeDouble(fix.getLongitude());
+            activeOut.writeFloat(fix.getAccuracy());
+            activeOut.writeFloat(fix.getSpeed());
+            activeOut.writeFloat(fix.getBearing());
+            activeRecords++;
+        }
+        activeOut.flush();
+        enforceLimits(now);
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments().length == 0;
+    }
+
+    /** Approximate number of fixes waiting, including torn records. */
+    public synchronized long size() {
+        long bytes = 0;
+        for (File segment : segments()) {
+            bytes += segment.length();
+        }
+        return bytes / RECORD_SIZE;
+    }
+
+    /** Number of fixes lost to the size cap or the age limit. */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Sends every stored segment in order and deletes each one after it was sent.
+     *
+     * @param now current wall-clock time, used for the age limit
+     * @return the number of fixes sent
+     */
+    public synchronized int replay(Replayer replayer, long now) throws Exception {
+        closeSegment();
+
+        int sent = 0;
+        for (File segment : segments()) {
+            long records = segment.length() / RECORD_SIZE;
+            List<LocationFix> batch = read(segment, now - maxAgeMillis);
+            if (!batch.isEmpty()) {
+                replayer.send(batch);
+                sent += batch.size();
+            }
+            delete(segment);
+            evicted += records - batch.size();
+        }
+        return sent;
+    }
+
+    public synchronized void close() {
+        closeSegment();
+    }
+
+    private List<LocationFix> read(File segment, long oldest) throws IOException {
+        int records = (int) (segment.length() / RECORD_SIZE);
+        List<LocationFix> batch = new ArrayList<>(records);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            for (int i = 0; i < records; i++) {
+                long time = in.readLong();
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                float accuracy = in.readFloat();
+                float speed = in.readFloat();
+                float bearing = in.readFloat();
+                if (time < oldest) {
+                    continue;
+                }
+                batch.add(new LocationFix(latitude, longitude, accuracy, speed, bearing, time));
+            }
+        } catch (EOFException ex) {
+            // segment shrank while reading, keep what we have
+        } finally {
+            in.close();
+        }
+        return batch;
+    }
+
+    private void openSegment() throws IOException {
+        closeSegment();
+        File file = new File(directory, SEGMENT_PREFIX + nextSequence++ + SEGMENT_SUFFIX);
+        activeOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        activeRecords = 0;
+    }
+
+    private void closeSegment() {
+        if (activeOut == null) {
+            return;
+        }
+        try {
+            activeOut.close();
+        } catch (IOException ex) {
+            // the records already flushed are still readable
+        }
+        activeOut = null;
+    }
+
+    private void enforceLimits(long now) throws IOException {
+        File[] segments = segments();
+        long total = 0;
+        for (File segment : segments) {
+            total += segment.length();
+        }
+        // never delete the segment being written
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (total <= maxBytes && newestTime(segments[i]) >= now - maxAgeMillis) {
+                break;
+            }
+            total -= segments[i].length();
+            evicted += segments[i].length() / RECORD_SIZE;
+            delete(segments[i]);
+        }
+    }
+
+    /**
+     * Time of the newest fix in a segment, or -1 when it holds no complete record.
+     */
+    private static long newestTime(File segment) throws IOException {
+        long records = segment.length() / RECORD_SIZE;
+        if (records == 0) {
+            return -1;
+        }
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            file.seek((records - 1) * RECORD_SIZE);
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    private File[] segments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> segments = new ArrayList<>(files.length);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                segments.add(file);
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long sa = sequenceOf(a);
+                long sb = sequenceOf(b);
+                return sa < sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void delete(File segment) throws IOException {
+        if (!segment.delete() && segment.exists()) {
+            throw new IOException("Cannot delete " + segment);
+        }
+    }
+}
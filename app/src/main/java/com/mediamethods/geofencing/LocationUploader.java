@@ -0,0 +1,202 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Single upload pipeline for location fixes. Fixes are queued in a {@link LocationBatcher}
+ * and sent by one worker thread, so the number of threads and in-flight requests stays
+ * constant however fast the fixes arrive.
+ *
+ * Waiting fixes go out when their deadline passes, when {@link #flush()} is called, or early
+ * when {@link #onNetworkActive()} reports that the radio is up anyway.
+ */
+public class LocationUploader {
+
+    public interface BatchSender {
+        /**
+         * Sends the fixes in order. Called on the worker thread only.
+         */
+        void send(List<LocationFix> batch) throws Exception;
+
+        /**
+         * Called when {@link #send} fails; the batch is not retried by the uploader.
+         */
+        void onSendFailed(List<LocationFix> batch, Exception ex);
+    }
+
+    private final LocationBatcher batcher;
+    private final BatchSender sender;
+    private final Thread worker;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    private boolean stopped;
+    private boolean flushRequested;
+
+    public LocationUploader(LocationBatcher batcher, BatchSender sender) {
+        this.batcher = batcher;
+        this.sender = sender;
+        this.worker = new Thread(new Runnable() {
+            public void run() {
+                runWorker();
+            }
+        }, "LocationUploader");
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    public void offer(LocationFix fix) {
+        offer(fix, false);
+    }
+
+    /**
+     * @param key whether the fix must be sent as it is, see {@link LocationBatcher#add}
+     */
+    public void offer(LocationFix fix, boolean key) {
+        synchronized (batcher) {
+            if (stopped) {
+                return;
+            }
+            batcher.add(fix, now(), key);
+            batcher.notifyAll();
+        }
+    }
+
+    /**
+     * Runs a task on the worker thread, after the batch currently being sent. Used for work
+     * that must not overlap with uploads, such as replaying stored fixes.
+     */
+    public void post(Runnable task) {
+        synchronized (batcher) {
+            if (stopped) {
+                return;
+            }
+            tasks.addLast(task);
+            batcher.notifyAll();
+        }
+    }
+
+    /**
+     * Sends whatever is waiting without waiting for the flush interval.
+     */
+    public void flush() {
+        synchronized (batcher) {
+            flushRequested = true;
+            batcher.notifyAll();
+        }
+    }
+
+    /**
+     * Sends whatever is waiting because the radio is already up for other traffic, so the
+     * upload costs no extra wakeup.
+     *
+     * @return whether anything was waiting
+     */
+    public boolean onNetworkActive() {
+        synchronized (batcher) {
+            if (stopped || batcher.size() == 0) {
+                return false;
+            }
+            flushRequested = true;
+            batcher.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Changes how long fixes may wait before they are sent without other traffic.
+     */
+    public void setFlushInterval(long flushIntervalMillis) {
+        synchronized (batcher) {
+            if (batcher.getFlushInterval() == flushIntervalMillis) {
+                return;
+            }
+            batcher.setFlushInterval(flushIntervalMillis);
+            // the worker may be waiting for the old deadline
+            batcher.notifyAll();
+        }
+    }
+
+    public long getFlushInterval() {
+        synchronized (batcher) {
+            return batcher.getFlushInterval();
+        }
+    }
+
+    /**
+     * Sends whatever is still waiting and stops the worker.
+     */
+    public void stop() {
+        synchronized (batcher) {
+            stopped = true;
+            batcher.notifyAll();
+        }
+    }
+
+    public int getQueueSize() {
+        synchronized (batcher) {
+            return batcher.size();
+        }
+    }
+
+    public long getDroppedCount() {
+        synchronized (batcher) {
+            return batcher.getDropped();
+        }
+    }
+
+    public long getCoalescedCount() {
+        synchronized (batcher) {
+            return batcher.getCoalesced();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            List<LocationFix> batch;
+            Runnable task;
+            synchronized (batcher) {
+                try {
+                    while (!stopped && !flushRequested && tasks.isEmpty() && !batcher.isFlushDue(now())) {
+                        long wait = batcher.millisUntilFlush(now());
+                        batcher.wait(wait < 0 ? 0 : Math.max(wait, 1));
+                    }
+                } catch (InterruptedException ex) {
+                    stopped = true;
+                }
+                task = tasks.pollFirst();
+                if (task != null) {
+                    batch = null;
+                } else if (batcher.size() == 0) {
+                    flushRequested = false;
+                    if (stopped) {
+                        return;
+                    }
+                    continue;
+                } else {
+                    batch = batcher.drainBatch();
+                    if (batcher.size() == 0) {
+                        flushRequested = false;
+                    }
+                }
+            }
+
+            if (task != null) {
+                task.run();
+                continue;
+            }
+            try {
+                sender.send(batch);
+            } catch (Exception ex) {
+                sender.onSendFailed(batch, ex);
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
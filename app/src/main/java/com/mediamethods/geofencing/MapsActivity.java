@@ -5,68 +5,88 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.pm.PackageManager;
-import android.graphics.Color;
 import android.location.Location;
-import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.IBinder;
-import android.support.v4.app.ActivityCompat;
+import android.os.Looper;
 import android.support.v4.app.FragmentActivity;
 import android.os.Bundle;
-import android.util.Log;
 import android.widget.Toast;
 
-import com.google.android.gms.appindexing.Action;
-import com.google.android.gms.appindexing.AppIndex;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.location.LocationListener;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
-import com.google.android.gms.maps.model.CircleOptions;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.List;
 
-public class MapsActivity extends FragmentActivity implements OnMapReadyCallback, GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, LocationListener {
-
-    private static final long UPDATE_INTERVAL_IN_MILLISECONDS = 1000;
-    public static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS =
-            UPDATE_INTERVAL_IN_MILLISECONDS / 2;
+public class MapsActivity extends FragmentActivity implements OnMapReadyCallback {
 
     private GoogleMap mMap = null;
 
     private Marker mCurrentPosMarker = null;
     private Handler mHandler = new Handler();
 
-    protected GoogleApiClient mGoogleApiClient;
-    protected LocationRequest mLocationRequest;
+    private TargetOverlayRenderer mTargetRenderer;
 
-    /**
-     * ATTENTION: This was auto-generated to implement the App Indexing API.
-     * See https://g.co/AppIndexing/AndroidStudio for more information.
-     */
-    private GoogleApiClient client;
+    // fixes come from GeoLocationService, which owns the only location request
+    private GeoLocationService mService;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((GeoLocationService.LocalBinder) binder).getService();
+            mService.subscribe(mLocationSubscriber, Looper.getMainLooper());
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    private final GeoLocationService.LocationSubscriber mLocationSubscriber =
+            new GeoLocationService.LocationSubscriber() {
+                @Override
+                public void onLocationUpdate(Location location, TargetIndex.Nearest nearest) {
+                    if (mMap != null) {
+                        mCurrentPosMarker.setPosition(new LatLng(location.getLatitude(), location.getLongitude()));
+                    }
+                }
+            };
+
+    // targets indexed before the map was ready, drawn from onMapReady
+    private TargetIndex mPendingTargets;
+
+    // the index is shared with the location service, only the drawing happens on the main thread
+    private final TargetRepository.Listener mTargetListener = new TargetRepository.Listener() {
+        @Override
+        public void onTargets(TargetIndex index) {
+            post(index);
+        }
+
+        @Override
+        public void onTargetsChanged(TargetIndex index, List<Target> added, List<Target> removed) {
+            // unchanged targets keep their overlays, the renderer only redraws the difference
+            post(index);
+        }
+
+        private void post(final TargetIndex index) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    drawTargets(index);
+                }
+            });
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -79,114 +99,36 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
                 .findFragmentById(R.id.map);
         mapFragment.getMapAsync(this);
 
-        // setup the Google Location API
-        //buildGoogleApiClient();
-        // ATTENTION: This was auto-generated to implement the App Indexing API.
-        // See https://g.co/AppIndexing/AndroidStudio for more information.
-        client = new GoogleApiClient.Builder(this).addApi(AppIndex.API).build();
-    }
-
-    protected synchronized void buildGoogleApiClient() {
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(LocationServices.API)
-                .build();
-        createLocationRequest();
-    }
-
-    protected void createLocationRequest() {
-        mLocationRequest = new LocationRequest();
-
-        // Sets the desired interval for active location updates. This interval is
-        // inexact. You may not receive updates at all if no location sources are available, or
-        // you may receive them slower than requested. You may also receive updates faster than
-        // requested if other applications are requesting location at a faster interval.
-        mLocationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
-
-        // Sets the fastest rate for active location updates. This interval is exact, and your
-        // application will never receive updates faster than this value.
-        mLocationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
-
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        // the prefetch started with the process, so the targets usually arrive before the map
+        TargetRepository repository = TargetRepository.getInstance(getCacheDir());
+        repository.addListener(mTargetListener);
+        repository.prefetch();
     }
 
     @Override
-    protected void onStart() {
-        super.onStart();
-        // ATTENTION: This was auto-generated to implement the App Indexing API.
-        // See https://g.co/AppIndexing/AndroidStudio for more information.
-        client.connect();
-
-        // ATTENTION: This was auto-generated to implement the App Indexing API.
-        // See https://g.co/AppIndexing/AndroidStudio for more information.
-        Action viewAction = Action.newAction(
-                Action.TYPE_VIEW, // TODO: choose an action type.
-                "Maps Page", // TODO: Define a title for the content shown.
-                // TODO: If you have web page content that matches this app activity's content,
-                // make sure this auto-generated web page URL is correct.
-                // Otherwise, set the URL to null.
-                Uri.parse("http://host/path"),
-                // TODO: Make sure this auto-generated app deep link URI is correct.
-                Uri.parse("android-app://com.mediamethods.geofencing/http/host/path")
-        );
-        AppIndex.AppIndexApi.start(client, viewAction);
-
-        if(mGoogleApiClient != null)
-        {
-            mGoogleApiClient.connect();
+    protected void onDestroy() {
+        TargetRepository.getInstance(getCacheDir()).removeListener(mTargetListener);
+        if (mTargetRenderer != null) {
+            mTargetRenderer.release();
         }
-
+        super.onDestroy();
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        // Within {@code onPause()}, we pause location updates, but leave the
-        // connection to GoogleApiClient intact.  Here, we resume receiving
-        // location updates if the user has requested them.
-
-        if (mGoogleApiClient != null &&
-                mGoogleApiClient.isConnected()) {
-            startLocationUpdates();
-        }
-    }
-
-    @Override
-    protected void onPause() {
-        super.onPause();
-        // Stop location updates to save battery, but don't disconnect the GoogleApiClient object.
-        if (mGoogleApiClient != null &&
-                mGoogleApiClient.isConnected()) {
-            stopLocationUpdates();
-        }
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, GeoLocationService.class), mConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onStop() {
-
-        if(mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
+        if (mService != null) {
+            mService.unsubscribe(mLocationSubscriber);
+            mService = null;
         }
-
+        unbindService(mConnection);
 
         super.onStop();
-        // ATTENTION: This was auto-generated to implement the App Indexing API.
-        // See https://g.co/AppIndexing/AndroidStudio for more information.
-        Action viewAction = Action.newAction(
-                Action.TYPE_VIEW, // TODO: choose an action type.
-                "Maps Page", // TODO: Define a title for the content shown.
-                // TODO: If you have web page content that matches this app activity's content,
-                // make sure this auto-generated web page URL is correct.
-                // Otherwise, set the URL to null.
-                Uri.parse("http://host/path"),
-                // TODO: Make sure this auto-generated app deep link URI is correct.
-                Uri.parse("android-app://com.mediamethods.geofencing/http/host/path")
-        );
-        AppIndex.AppIndexApi.end(client, viewAction);
-        // ATTENTION: This was auto-generated to implement the App Indexing API.
-        // See https://g.co/AppIndexing/AndroidStudio for more information.
-        client.disconnect();
     }
 
     /**
@@ -209,144 +151,32 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
         CameraUpdate zoom = CameraUpdateFactory.zoomTo(15);
         mMap.animateCamera(zoom);
 
-        // query from service to get the location
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    URL url = new URL("http://api.1.name.my/GeoLocationService.svc/GetAllTargets");
-                    HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                    urlConnection.setDoOutput(true);
-                    urlConnection.setRequestProperty("Content-Type", "application/json");
-
-                    /*
-                    OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-                    writeStream(out, userId, longitude, latitude, speed);
-                    out.flush();
-                    out.close();
-                    */
-
-                    InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-                    String result = readStream(in);
-
-                    JSONObject jsonRootObject = new JSONObject(result);
-                    String actualResult = jsonRootObject.optString("GetAllTargetsResult").toString();
-                    JSONObject resultObject = new JSONObject(actualResult);
-                    JSONArray payloadObject = new JSONArray(resultObject.optString("payload").toString());
-
-                    //JSONArray jsonArray = payloadObject.optJSONArray("locationList");
-                    for (int i = 0; i < payloadObject.length(); i++) {
-                        JSONObject jsonObject = payloadObject.getJSONObject(i);
-
-                        final float latitude = Float.parseFloat(jsonObject.optString("latitude").toString());
-                        final float longitude = Float.parseFloat(jsonObject.optString("longitude").toString());
-                        final int radius = Integer.parseInt(jsonObject.optString("radius").toString());
-                        final String name = jsonObject.optString("name").toString();
-
-                        mHandler.post(new Runnable() {
-                            public void run() {
-                                mMap.addCircle(new CircleOptions()
-                                        .center(new LatLng(latitude, longitude))
-                                        .radius(radius)
-                                        .strokeColor(Color.RED));
-
-                                mMap.addMarker(new MarkerOptions().position(new LatLng(latitude, longitude)).title(name));
-                            }
-                        });
-
-
-                    }
-
-                    urlConnection.disconnect();
-                } catch (Exception ex) {
-                    Log.d("result", ex.getMessage());
-                }
-
+        // only targets around the viewport are drawn, updated as the camera moves
+        mTargetRenderer = new TargetOverlayRenderer(mMap);
+        mMap.setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+            @Override
+            public void onCameraChange(CameraPosition position) {
+                mTargetRenderer.onCameraChange(position);
+                // in tiled mode, have the targets under the viewport loaded
+                LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+                TargetRepository.getInstance(getCacheDir()).setViewport(bounds.southwest.latitude,
+                        bounds.southwest.longitude, bounds.northeast.latitude, bounds.northeast.longitude);
             }
-        }).start();
-
+        });
 
-    }
-
-    private String readStream(InputStream is) {
-        try {
-            ByteArrayOutputStream bo = new ByteArrayOutputStream();
-            int i = is.read();
-            while (i != -1) {
-                bo.write(i);
-                i = is.read();
-            }
-            return bo.toString();
-        } catch (Exception e) {
-            return "";
+        StartupTrace.getInstance().mark(StartupTrace.MAP_READY);
+        if (mPendingTargets != null) {
+            drawTargets(mPendingTargets);
+            mPendingTargets = null;
         }
     }
 
-    private class UpdateLocAsyncTask extends AsyncTask<GeoLocationService, Void, Location> {
-
-        @Override
-        protected Location doInBackground(GeoLocationService... params) {
-            return params[0].getLatestLocation();
-        }
-
-        @Override
-        protected void onPostExecute(Location result) {
-            if (result != null && mMap != null) {
-
-                final LatLng updatedLoc = new LatLng(result.getLatitude(), result.getLongitude());
-                mCurrentPosMarker.setPosition(updatedLoc);
-
-                // CameraUpdate center= CameraUpdateFactory.newLatLng(updatedLoc);
-                // CameraUpdate zoom=CameraUpdateFactory.zoomTo(15);
-
-                //mMap.moveCamera(center);
-                //mMap.animateCamera(zoom);
-            }
-        }
-    }
-
-    protected void startLocationUpdates() {
-
-        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED &&
-                ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+    private void drawTargets(TargetIndex index) {
+        if (mTargetRenderer == null) {
+            mPendingTargets = index;
             return;
         }
-
-        // The final argument to {@code requestLocationUpdates()} is a LocationListener
-        // (http://developer.android.com/reference/com/google/android/gms/location/LocationListener.html).
-        LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, this);
-    }
-
-    protected void stopLocationUpdates() {
-        // It is a good practice to remove location requests when the activity is in a paused or
-        // stopped state. Doing so helps battery performance and is especially
-        // recommended in applications that request frequent location updates.
-
-        // The final argument to {@code requestLocationUpdates()} is a LocationListener
-        // (http://developer.android.com/reference/com/google/android/gms/location/LocationListener.html).
-        LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, this);
-    }
-
-    @Override
-    public void onConnected(Bundle bundle) {
-        startLocationUpdates();
-    }
-
-    @Override
-    public void onLocationChanged(Location location) {
-        Log.i("test", "" + location.getLongitude() + " " + location.getLatitude());
+        mTargetRenderer.setTargets(index);
+        StartupTrace.getInstance().mark(StartupTrace.TARGETS_DRAWN);
     }
-
-    @Override
-    public void onConnectionSuspended(int cause) {
-        // The connection to Google Play services was lost for some reason. We call connect() to
-        // attempt to re-establish the connection.
-        mGoogleApiClient.connect();
-    }
-
-    @Override
-    public void onConnectionFailed(ConnectionResult result) {
-        // Refer to the javadoc for ConnectionResult to see what error codes might be returned in
-        // onConnectionFailed.
-    }
-
 }
@@ -0,0 +1,67 @@
+package com.mediamethods.geofencing;
+
+import android.location.Location;
+
+/**
+ * Immutable snapshot of what {@link GeoLocationService} knows: the latest fix with its
+ * nearest target, the OneSignal identity and the sampling plan in force.
+ *
+ * The service publishes a new snapshot with compare-and-set for every change, so readers
+ * on any thread see all fields from the same moment without locking. The Location held
+ * here must not be modified.
+ */
+public final class ServiceState {
+
+    public static final ServiceState EMPTY = new ServiceState(null, null, null, null, null);
+
+    private final Location location;
+    private final TargetIndex.Nearest nearest;
+    private final String userId;
+    private final String registrationId;
+    private final SamplingScheduler.Plan plan;
+
+    private ServiceState(Location location, TargetIndex.Nearest nearest, String userId, String registrationId,
+                         SamplingScheduler.Plan plan) {
+        this.location = location;
+        this.nearest = nearest;
+        this.userId = userId;
+        this.registrationId = registrationId;
+        this.plan = plan;
+    }
+
+    /** Latest fix, null before the first one. */
+    public Location getLocation() {
+        return location;
+    }
+
+    /** Nearest target to {@link #getLocation()}, null while the targets are not loaded. */
+    public TargetIndex.Nearest getNearest() {
+        return nearest;
+    }
+
+    /** OneSignal user id, null until OneSignal has registered. */
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    /** Location request settings in force, null before the request is created. */
+    public SamplingScheduler.Plan getPlan() {
+        return plan;
+    }
+
+    public ServiceState withLocation(Location location, TargetIndex.Nearest nearest) {
+        return new ServiceState(location, nearest, userId, registrationId, plan);
+    }
+
+    public ServiceState withIdentity(String userId, String registrationId) {
+        return new ServiceState(location, nearest, userId, registrationId, plan);
+    }
+
+    public ServiceState withPlan(SamplingScheduler.Plan plan) {
+        return new ServiceState(location, nearest, userId, registrationId, plan);
+    }
+}
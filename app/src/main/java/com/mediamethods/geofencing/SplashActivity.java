@@ -10,8 +10,7 @@ public class SplashActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        // start the windows service
-        startService(new Intent(getBaseContext(), GeoLocationService.class));
+        // GeofencingApplication has already started the service and the target prefetch
 
         // intent to the main activity class
         Intent intent = new Intent(this, MapsActivity.class);
@@ -0,0 +1,226 @@
+package com.mediamethods.geofencing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * Disk cache for target responses. Each entry is the response body plus the validators
+ * (ETag, Last-Modified) needed to revalidate it with a conditional request.
+ *
+ * An entry is fresh for the TTL after it was fetched or last revalidated. When the bodies
+ * exceed the size limit, the least recently used entries are deleted; the body file's
+ * modification time doubles as the last-access time.
+ */
+public class TargetCache {
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "lastModified";
+    private static final String META_FETCHED_AT = "fetchedAt";
+
+    private final File directory;
+    private final long maxBytes;
+    private final long ttlMillis;
+
+    public TargetCache(File directory, long maxBytes, long ttlMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create cache directory " + directory);
+        }
+    }
+
+    /**
+     * Returns the entry for a key and marks it as recently used, or null when there is none.
+     */
+    public synchronized Entry get(String key, long now) {
+        File body = bodyFile(key);
+        Properties meta = readMeta(key);
+        if (!body.isFile() || meta == null) {
+            return null;
+        }
+        body.setLastModified(now);
+        return new Entry(key, body, meta.getProperty(META_ETAG), meta.getProperty(META_LAST_MODIFIED),
+                Long.parseLong(meta.getProperty(META_FETCHED_AT, "0")));
+    }
+
+    public boolean isFresh(Entry entry, long now) {
+        return now - entry.getFetchedAt() < ttlMillis;
+    }
+
+    /**
+     * Stores a response body. The previous entry stays readable until the new one is complete.
+     */
+    public synchronized Entry put(String key, InputStream in, String etag, String lastModified, long now) throws IOException {
+        File body = bodyFile(key);
+        File temp = new File(directory, key + BODY_SUFFIX + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(body)) {
+            temp.delete();
+            throw new IOException("Cannot write " + body);
+        }
+        body.setLastModified(now);
+        writeMeta(key, etag, lastModified, now);
+        evict(key);
+        return new Entry(key, body, etag, lastModified, now);
+    }
+
+    /**
+     * Records a 304 response: the stored body is still current.
+     */
+    public synchronized void markRevalidated(Entry entry, String etag, String lastModified, long now) throws IOException {
+        writeMeta(entry.getKey(),
+                etag != null ? etag : entry.getEtag(),
+                lastModified != null ? lastModified : entry.getLastModified(),
+                now);
+    }
+
+    public synchronized void remove(String key) {
+        bodyFile(key).delete();
+        metaFile(key).delete();
+    }
+
+    private void evict(String keep) {
+        File[] bodies = directory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+        long total = 0;
+        int count = 0;
+        for (File file : bodies) {
+            if (file.getName().endsWith(BODY_SUFFIX)) {
+                total += file.length();
+                bodies[count++] = file;
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        File[] lru = Arrays.copyOf(bodies, count);
+        Arrays.sort(lru, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (File file : lru) {
+            if (total <= maxBytes) {
+                break;
+            }
+            String key = file.getName().substring(0, file.getName().length() - BODY_SUFFIX.length());
+            if (!key.equals(keep)) {
+                total -= file.length();
+                remove(key);
+            }
+        }
+    }
+
+    private Properties readMeta(String key) {
+        File file = metaFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+        return meta;
+    }
+
+    private void writeMeta(String key, String etag, String lastModified, long fetchedAt) throws IOException {
+        Properties meta = new Properties();
+        if (etag != null) {
+            meta.setProperty(META_ETAG, etag);
+        }
+        if (lastModified != null) {
+            meta.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        meta.setProperty(META_FETCHED_AT, Long.toString(fetchedAt));
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(metaFile(key)));
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private File bodyFile(String key) {
+        return new File(directory, key + BODY_SUFFIX);
+    }
+
+    private File metaFile(String key) {
+        return new File(directory, key + META_SUFFIX);
+    }
+
+    public static class Entry {
+
+        private final String key;
+        private final File body;
+        private final String etag;
+        private final String lastModified;
+        private final long fetchedAt;
+
+        Entry(String key, File body, String etag, String lastModified, long fetchedAt) {
+            this.key = key;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public File getBody() {
+            return body;
+        }
+
+        /** ETag of the cached response, or null. */
+        public String getEtag() {
+            return etag;
+        }
+
+        /** Last-Modified of the cached response, or null. */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /** Time of the last download or successful revalidation. */
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+    }
+}
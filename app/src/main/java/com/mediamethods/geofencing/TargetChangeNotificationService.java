@@ -0,0 +1,34 @@
+package com.mediamethods.geofencing;
+
+import android.util.Log;
+
+import com.onesignal.NotificationExtenderService;
+import com.onesignal.OSNotificationPayload;
+
+/**
+ * Picks up the silent OneSignal data messages that announce a new version of the target set,
+ * with {@code targetsVersion} in their additional data, and fetches the changes. Other
+ * notifications are shown as usual.
+ */
+public class TargetChangeNotificationService extends NotificationExtenderService {
+
+    static final String DATA_TARGETS_VERSION = "targetsVersion";
+
+    private String TAG = this.getClass().getName();
+
+    @Override
+    protected boolean onNotificationProcessing(OSNotificationPayload notification) {
+        if (notification.additionalData == null || !notification.additionalData.has(DATA_TARGETS_VERSION)) {
+            return false;
+        }
+        long version = notification.additionalData.optLong(DATA_TARGETS_VERSION, -1);
+        try {
+            // this runs on a worker thread, and the process may go once it returns
+            TargetRepository.getInstance(getCacheDir()).sync(version);
+        } catch (Exception ex) {
+            Log.d(TAG, "Failed to sync targets: " + ex.getMessage());
+        }
+        // nothing to show
+        return true;
+    }
+}
@@ -0,0 +1,293 @@
+package com.mediamethods.geofencing;
+
+import android.graphics.Color;
+import android.os.Handler;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.Circle;
+import com.google.android.gms.maps.model.CircleOptions;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polygon;
+import com.google.android.gms.maps.model.PolygonOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Draws the targets that are in or near the camera viewport, clustering them when zoomed
+ * out. Every camera change computes the wanted set of overlays on a worker thread, skipping
+ * camera positions that were already passed, and the difference to what is on the map is
+ * applied a few overlays per frame so the main looper never stalls.
+ *
+ * Must be used on the main thread.
+ */
+public class TargetOverlayRenderer implements GoogleMap.OnCameraChangeListener {
+
+    // fraction of the viewport span drawn beyond each edge, so short pans need no redraw
+    private static final double VIEWPORT_MARGIN = 0.5;
+
+    // below this zoom, or above this many targets in view, targets are clustered
+    private static final float CLUSTER_BELOW_ZOOM = 13;
+    private static final int MAX_INDIVIDUAL_TARGETS = 300;
+    private static final int CLUSTER_CELL_PIXELS = 80;
+
+    private static final int OVERLAY_CHANGES_PER_FRAME = 30;
+    private static final long FRAME_IN_MILLISECONDS = 16;
+
+    private final GoogleMap mMap;
+    private final Handler mHandler = new Handler();
+
+    private TargetIndex mIndex;
+
+    // queries and clusters off the main thread; only the latest camera position counts
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+    private volatile int mGeneration;
+
+    // what is on the map, keyed by Target or TargetClusterer.Cluster
+    private final Map<Object, Overlay> mShown = new HashMap<>();
+
+    private final ArrayDeque<Object> mPendingRemovals = new ArrayDeque<>();
+    private final ArrayDeque<Object> mPendingAdditions = new ArrayDeque<>();
+
+    private final Runnable mApplyBatch = new Runnable() {
+        public void run() {
+            applyBatch();
+        }
+    };
+
+    public TargetOverlayRenderer(GoogleMap map) {
+        mMap = map;
+    }
+
+    /**
+     * Replaces the targets to draw and redraws the current viewport.
+     */
+    public void setTargets(TargetIndex index) {
+        mIndex = index;
+        CameraPosition position = mMap.getCameraPosition();
+        if (position != null) {
+            onCameraChange(position);
+        }
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition position) {
+        if (mIndex == null) {
+            return;
+        }
+
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        double latMargin = (bounds.northeast.latitude - bounds.southwest.latitude) * VIEWPORT_MARGIN;
+        double minLon = -180;
+        double maxLon = 180;
+        // a viewport crossing the antimeridian simply takes the whole width
+        if (bounds.southwest.longitude <= bounds.northeast.longitude) {
+            double lonMargin = (bounds.northeast.longitude - bounds.southwest.longitude) * VIEWPORT_MARGIN;
+            minLon = bounds.southwest.longitude - lonMargin;
+            maxLon = bounds.northeast.longitude + lonMargin;
+        }
+
+        final int generation = ++mGeneration;
+        final TargetIndex index = mIndex;
+        final double[] box = {bounds.southwest.latitude - latMargin, minLon, bounds.northeast.latitude + latMargin, maxLon};
+        final float zoom = position.zoom;
+        mWorker.execute(new Runnable() {
+            public void run() {
+                if (generation != mGeneration) {
+                    // the camera has moved on
+                    return;
+                }
+                final Set<Object> wanted = wanted(index, box, zoom);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation == mGeneration) {
+                            show(wanted);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The targets and clusters to draw for the box. Runs on the worker thread.
+     */
+    private static Set<Object> wanted(TargetIndex index, double[] box, float zoom) {
+        List<Target> visible = new ArrayList<>();
+        index.query(box[0], box[1], box[2], box[3], visible);
+
+        Set<Object> wanted = new LinkedHashSet<>();
+        if (zoom < CLUSTER_BELOW_ZOOM || visible.size() > MAX_INDIVIDUAL_TARGETS) {
+            double cellDegrees = TargetClusterer.cellDegreesForZoom(zoom, CLUSTER_CELL_PIXELS);
+            for (TargetClusterer.Cluster cluster : TargetClusterer.cluster(visible, cellDegrees)) {
+                Target single = cluster.getTarget();
+                wanted.add(single != null ? single : cluster);
+            }
+        } else {
+            for (Target target : visible) {
+                wanted.add(target);
+            }
+        }
+        return wanted;
+    }
+
+    private void show(Set<Object> wanted) {
+        // start over from what is actually on the map; queued changes may be stale now
+        mPendingRemovals.clear();
+        mPendingAdditions.clear();
+        for (Object key : mShown.keySet()) {
+            if (!wanted.contains(key)) {
+                mPendingRemovals.add(key);
+            }
+        }
+        for (Object item : wanted) {
+            if (!mShown.containsKey(item)) {
+                mPendingAdditions.add(item);
+            }
+        }
+
+        mHandler.removeCallbacks(mApplyBatch);
+        if (!mPendingRemovals.isEmpty() || !mPendingAdditions.isEmpty()) {
+            mHandler.post(mApplyBatch);
+        }
+    }
+
+    /**
+     * Removes every overlay and stops pending work.
+     */
+    public void clear() {
+        // drops the wanted sets still being worked out
+        mGeneration++;
+        mHandler.removeCallbacks(mApplyBatch);
+        mPendingRemovals.clear();
+        mPendingAdditions.clear();
+        for (Overlay overlay : mShown.values()) {
+            overlay.remove();
+        }
+        mShown.clear();
+    }
+
+    /**
+     * Removes every overlay and stops the worker thread; the renderer cannot be used after.
+     */
+    public void release() {
+        clear();
+        mWorker.shutdown();
+    }
+
+    private void applyBatch() {
+        int changes = 0;
+        // removals first, they free memory for the additions
+        while (changes < OVERLAY_CHANGES_PER_FRAME && !mPendingRemovals.isEmpty()) {
+            Overlay overlay = mShown.remove(mPendingRemovals.pollFirst());
+            if (overlay != null) {
+                overlay.remove();
+            }
+            changes++;
+        }
+        while (changes < OVERLAY_CHANGES_PER_FRAME && !mPendingAdditions.isEmpty()) {
+            Object item = mPendingAdditions.pollFirst();
+            mShown.put(item, draw(item));
+            changes++;
+        }
+
+        if (!mPendingRemovals.isEmpty() || !mPendingAdditions.isEmpty()) {
+            mHandler.postDelayed(mApplyBatch, FRAME_IN_MILLISECONDS);
+        }
+    }
+
+    private Overlay draw(Object item) {
+        if (item instanceof Target) {
+            Target target = (Target) item;
+            LatLng center = new LatLng(target.getLatitude(), target.getLongitude());
+            Marker marker = mMap.addMarker(new MarkerOptions().position(center).title(target.getName()));
+            FenceShape shape = target.getShape();
+            if (shape == null) {
+                Circle circle = mMap.addCircle(new CircleOptions()
+                        .center(center)
+                        .radius(target.getRadius())
+                        .strokeColor(Color.RED));
+                return new Overlay(circle, marker);
+            }
+            double[] points = shape.getPoints();
+            if (shape.getType() == FenceShape.Type.POLYGON) {
+                PolygonOptions options = new PolygonOptions().strokeColor(Color.RED);
+                for (int i = 0; i < points.length; i += 2) {
+                    options.add(new LatLng(points[i], points[i + 1]));
+                }
+                return new Overlay(mMap.addPolygon(options), marker);
+            }
+            // the line only; its width on screen does not follow the corridor's width in meters
+            PolylineOptions options = new PolylineOptions().color(Color.RED);
+            for (int i = 0; i < points.length; i += 2) {
+                options.add(new LatLng(points[i], points[i + 1]));
+            }
+            return new Overlay(mMap.addPolyline(options), marker);
+        }
+
+        TargetClusterer.Cluster cluster = (TargetClusterer.Cluster) item;
+        Marker marker = mMap.addMarker(new MarkerOptions()
+                .position(new LatLng(cluster.getLatitude(), cluster.getLongitude()))
+                .title(cluster.getCount() + " targets")
+                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE)));
+        return new Overlay(marker);
+    }
+
+    private static class Overlay {
+
+        private final Circle circle;
+        private final Polygon polygon;
+        private final Polyline polyline;
+        private final Marker marker;
+
+        private Overlay(Circle circle, Polygon polygon, Polyline polyline, Marker marker) {
+            this.circle = circle;
+            this.polygon = polygon;
+            this.polyline = polyline;
+            this.marker = marker;
+        }
+
+        Overlay(Marker marker) {
+            this(null, null, null, marker);
+        }
+
+        Overlay(Circle circle, Marker marker) {
+            this(circle, null, null, marker);
+        }
+
+        Overlay(Polygon polygon, Marker marker) {
+            this(null, polygon, null, marker);
+        }
+
+        Overlay(Polyline polyline, Marker marker) {
+            this(null, null, polyline, marker);
+        }
+
+        void remove() {
+            if (circle != null) {
+                circle.remove();
+            }
+            if (polygon != null) {
+                polygon.remove();
+            }
+            if (polyline != null) {
+                polyline.remove();
+            }
+            marker.remove();
+        }
+    }
+}
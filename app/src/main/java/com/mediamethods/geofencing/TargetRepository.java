@@ -0,0 +1,637 @@
+package com.mediamethods.geofencing;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the geofence targets from GetAllTargets. Shared by the map and the location service.
+ *
+ * The last response is kept in a {@link TargetCache}, so callers can show the cached targets
+ * straight away with {@link #loadCached()} and then call {@link #refresh()}, which only goes
+ * to the network once the cache is stale.
+ *
+ * The target set is versioned. Once a version is known, updates come from GetTargetChanges
+ * as the targets added, changed and removed since, and are applied to the list in place of
+ * a full reload. A push message or an UpdateLocation response announcing a newer version
+ * triggers that through {@link #requestVersion(long)}.
+ *
+ * The targets are held in one {@link TargetIndex} over a compact {@link TargetStore}, which
+ * the map and the location service share. After each change the store is saved as a
+ * snapshot, and the next start maps that file instead of parsing the cached response.
+ *
+ * At process start {@link #prefetch()} does both once on a background thread, and the map and
+ * the location service receive the targets as {@link Listener}s instead of loading them again.
+ *
+ * In tiled mode only the quadkey tiles around the device are loaded, from GetTargetsInTile,
+ * so the catalogue can grow without the download, the parsing or the memory growing with it.
+ * The location service reports each fix with {@link #setFocus} and the map its viewport with
+ * {@link #setViewport}; the tiles they need, and those ahead along the direction of travel,
+ * are fetched on a background thread, and the least recently used others go once the
+ * targets exceed the memory budget. Changes are only applied to the loaded tiles.
+ * A service without GetTargetsInTile answers 404 or 405, and the repository then loads the
+ * whole catalogue as before.
+ */
+public class TargetRepository {
+
+    private static final String CACHE_KEY_ALL_TARGETS = "all-targets";
+    private static final String CACHE_KEY_TILE_PREFIX = "tile-";
+    private static final String SNAPSHOT_FILE_NAME = "targets.snapshot";
+    private static final long CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final long CACHE_TTL_IN_MILLISECONDS = 15 * 60 * 1000;
+
+    // fetch the targets by tile around the device instead of the whole catalogue, until the
+    // service answers that it has no GetTargetsInTile
+    private static final boolean TILED = true;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+    // zoom 12 tiles are some 10 km across at the equator
+    private static final int TILE_ZOOM = 12;
+    private static final long TILE_MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+    // tiles within this distance of the fix are loaded and never evicted
+    private static final double TILE_AROUND_FIX_IN_METERS = 5000;
+    // and those along the next minutes of travel, once moving
+    private static final long TILE_AHEAD_IN_SECONDS = 10 * 60;
+    private static final float TILE_AHEAD_MIN_SPEED = 2;
+    // a viewport wider than this draws from the tiles loaded anyway
+    private static final int TILE_MAX_VIEWPORT_TILES = 16;
+
+    private static TargetRepository sInstance;
+
+    private String TAG = this.getClass().getName();
+
+    private final TargetCache cache;
+    private final GeoApiClient client;
+    private final File snapshot;
+
+    // the loaded tiles, null unless tiled; guarded by this
+    private final TileSet tiles;
+    // false once the service turned out to have no tiles
+    private volatile boolean tiled;
+    private final ExecutorService tileLoader;
+    // tiles wanted around the fix and under the map, replaced by the callers' threads
+    private volatile Set<Long> fixTiles = new LinkedHashSet<>();
+    private volatile Set<Long> viewportTiles = new LinkedHashSet<>();
+
+    // the current targets, and their version, -1 when unknown
+    private volatile TargetIndex index;
+    private volatile long version = -1;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private boolean prefetching;
+    private long requestedVersion = -1;
+
+    /**
+     * Receives the targets when they are first loaded and whenever they change.
+     */
+    public interface Listener {
+        /** Called on the loading thread with a whole new set. */
+        void onTargets(TargetIndex index);
+
+        /**
+         * Called on the loading thread after changes were applied.
+         *
+         * @param added   new targets, including new versions of changed ones
+         * @param removed targets no longer in the set, including old versions of changed ones
+         */
+        void onTargetsChanged(TargetIndex index, List<Target> added, List<Target> removed);
+    }
+
+    public static synchronized TargetRepository getInstance(File cacheDir) {
+        if (sInstance == null) {
+            sInstance = new TargetRepository(
+                    new TargetCache(new File(cacheDir, "targets"), CACHE_MAX_BYTES, CACHE_TTL_IN_MILLISECONDS),
+                    GeoApiClient.getInstance(), new File(cacheDir, SNAPSHOT_FILE_NAME),
+                    TILED ? new TileSet(TILE_ZOOM, TILE_MEMORY_BUDGET_BYTES) : null);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param tiles where the targets go tile by tile, or null to load the whole catalogue
+     */
+    public TargetRepository(TargetCache cache, GeoApiClient client, File snapshot, TileSet tiles) {
+        this.cache = cache;
+        this.client = client;
+        this.snapshot = snapshot;
+        this.tiles = tiles;
+        tiled = tiles != null;
+        tileLoader = tiles != null ? Executors.newSingleThreadExecutor() : null;
+    }
+
+    /**
+     * Delivers the targets to the listener, straight away on the calling thread when they are
+     * already loaded. Start the loading with {@link #prefetch()}.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        TargetIndex current = index;
+        if (current != null) {
+            listener.onTargets(current);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Version of the loaded targets, -1 when unknown. */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Loads the cached targets and then refreshes them on a background thread, telling the
+     * listeners after each step. Only the first call does anything.
+     */
+    public void prefetch() {
+        synchronized (listeners) {
+            if (prefetching) {
+                return;
+            }
+            prefetching = true;
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                TargetIndex cached = loadCached();
+                if (cached != null) {
+                    StartupTrace.getInstance().mark(StartupTrace.TARGETS_CACHED);
+                    notifyTargets(cached);
+                }
+                try {
+                    refresh();
+                    StartupTrace.getInstance().mark(StartupTrace.TARGETS_FRESH);
+                } catch (Exception ex) {
+                    Log.d(TAG, "Failed to refresh targets: " + ex.getMessage());
+                }
+            }
+        }, "TargetPrefetch").start();
+    }
+
+    /**
+     * Fetches the changes up to a version announced by a push message or an UpdateLocation
+     * response, on a background thread, unless that version is already here or on its way.
+     */
+    public void requestVersion(final long announced) {
+        synchronized (listeners) {
+            if (announced <= version || announced <= requestedVersion) {
+                return;
+            }
+            requestedVersion = announced;
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    sync(announced);
+                } catch (Exception ex) {
+                    Log.d(TAG, "Failed to sync targets: " + ex.getMessage());
+                    synchronized (listeners) {
+                        // let the next announcement try again
+                        requestedVersion = -1;
+                    }
+                }
+            }
+        }, "TargetSync").start();
+    }
+
+    /**
+     * Wants the tiles around the fix, and those ahead when moving, loaded. Cheap enough for
+     * every fix; does nothing unless tiled.
+     *
+     * @param speed   metres per second, 0 when unknown
+     * @param bearing degrees east of true north
+     */
+    public void setFocus(double latitude, double longitude, float speed, float bearing) {
+        if (!tiled) {
+            return;
+        }
+        Set<Long> wanted = new LinkedHashSet<>();
+        tiles.around(latitude, longitude, TILE_AROUND_FIX_IN_METERS, wanted);
+        if (speed >= TILE_AHEAD_MIN_SPEED) {
+            tiles.ahead(latitude, longitude, speed, bearing, TILE_AHEAD_IN_SECONDS, TILE_AROUND_FIX_IN_METERS, wanted);
+        }
+        if (!wanted.equals(fixTiles)) {
+            fixTiles = wanted;
+            scheduleTileLoad();
+        }
+    }
+
+    /**
+     * Wants the tiles under the map viewport loaded, unless it spans too many. Does nothing
+     * unless tiled.
+     */
+    public void setViewport(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        if (!tiled) {
+            return;
+        }
+        Set<Long> wanted = new LinkedHashSet<>();
+        if (minLongitude <= maxLongitude) {
+            Quadkey.covering(minLatitude, minLongitude, maxLatitude, maxLongitude, tiles.getZoom(),
+                    TILE_MAX_VIEWPORT_TILES, wanted);
+        }
+        if (!wanted.equals(viewportTiles)) {
+            viewportTiles = wanted;
+            scheduleTileLoad();
+        }
+    }
+
+    private void scheduleTileLoad() {
+        tileLoader.execute(new Runnable() {
+            public void run() {
+                try {
+                    loadTiles();
+                } catch (Exception ex) {
+                    Log.d(TAG, "Failed to load target tiles: " + ex.getMessage());
+                }
+            }
+        });
+    }
+
+    private Set<Long> wantedTiles() {
+        Set<Long> wanted = new LinkedHashSet<>(fixTiles);
+        wanted.addAll(viewportTiles);
+        return wanted;
+    }
+
+    /**
+     * Fetches the wanted tiles that are not loaded yet and evicts what no longer fits.
+     */
+    private synchronized void loadTiles() throws IOException {
+        Set<Long> wanted = wantedTiles();
+        long now = System.currentTimeMillis();
+        int fetched = 0;
+        if (!tiled) {
+            return;
+        }
+        for (Long tile : wanted) {
+            if (!tiles.contains(tile)) {
+                try {
+                    loadTile(tile, false, now);
+                } catch (GeoApiClient.HttpException ex) {
+                    if (!isMissingEndpoint(ex)) {
+                        throw ex;
+                    }
+                    fallBackToAllTargets(now);
+                    return;
+                }
+                fetched++;
+            }
+        }
+        tiles.touch(wanted);
+        int evicted = tiles.evict(wanted);
+        Metrics.getInstance().counter(Metrics.TARGET_TILES_EVICTED).addAndGet(evicted);
+        if (fetched > 0 || evicted > 0) {
+            Log.d(TAG, "Target tiles: " + fetched + " fetched, " + evicted + " evicted, " + tiles.size()
+                    + " loaded with " + tiles.getIndex().size() + " targets");
+            publishTiles();
+        }
+    }
+
+    /**
+     * Loads the wanted tiles again when the changes since the current version are not
+     * available. Before a fix or the map has said which tiles are wanted, the targets on hand
+     * stay as they are, and the next sync after that reloads.
+     */
+    private void reloadTiles(long now) throws IOException {
+        Set<Long> reload = wantedTiles();
+        if (reload.isEmpty()) {
+            return;
+        }
+        tiles.clear();
+        version = -1;
+        for (Long tile : reload) {
+            try {
+                loadTile(tile, true, now);
+            } catch (GeoApiClient.HttpException ex) {
+                if (!isMissingEndpoint(ex)) {
+                    throw ex;
+                }
+                fallBackToAllTargets(now);
+                return;
+            }
+        }
+        publishTiles();
+    }
+
+    /**
+     * Leaves tiled mode for the rest of the process when the service has no GetTargetsInTile,
+     * as before it was deployed, and loads the whole catalogue instead.
+     */
+    private void fallBackToAllTargets(long now) throws IOException {
+        Log.d(TAG, "Server does not serve target tiles, loading all targets");
+        tiled = false;
+        tiles.clear();
+        version = -1;
+        // whatever is held came from tiles, so the full list is fetched unconditionally
+        fetchAll(null, now);
+    }
+
+    private static boolean isMissingEndpoint(GeoApiClient.HttpException ex) {
+        return ex.getStatus() == HTTP_NOT_FOUND || ex.getStatus() == HTTP_METHOD_NOT_ALLOWED;
+    }
+
+    private void publishTiles() {
+        index = tiles.getIndex();
+        saveSnapshot();
+        notifyTargets(index);
+    }
+
+    /**
+     * Puts a tile from the disk cache, or from GetTargetsInTile when stale, into the tile set.
+     *
+     * @param revalidate ask the service even when the cached tile is fresh
+     */
+    private void loadTile(long tile, boolean revalidate, long now) throws IOException {
+        String quadkey = Quadkey.encode(tile, tiles.getZoom());
+        String key = CACHE_KEY_TILE_PREFIX + quadkey;
+        TargetCache.Entry entry = cache.get(key, now);
+        if (entry == null || revalidate || !cache.isFresh(entry, now)) {
+            entry = fetch("GetTargetsInTile", ("{\"tile\":\"" + quadkey + "\"}").getBytes("UTF-8"), key, entry, now);
+            Metrics.getInstance().counter(Metrics.TARGET_TILES_FETCHED).incrementAndGet();
+        }
+
+        long[] tileVersion = {-1};
+        TargetStore store;
+        try {
+            store = decode(entry.getBody(), tileVersion);
+        } catch (IOException ex) {
+            cache.remove(key);
+            throw ex;
+        }
+        tiles.put(tile, store);
+        // changes since the oldest tile's version are harmless to apply to newer tiles again
+        if (tileVersion[0] >= 0) {
+            version = version < 0 ? tileVersion[0] : Math.min(version, tileVersion[0]);
+        }
+    }
+
+    private TargetCache.Entry tileEntry(long tile, long now) {
+        return cache.get(CACHE_KEY_TILE_PREFIX + Quadkey.encode(tile, tiles.getZoom()), now);
+    }
+
+    /**
+     * Targets from memory, the snapshot or the disk cache, without touching the network.
+     * Returns null when nothing is cached yet.
+     */
+    public synchronized TargetIndex loadCached() {
+        if (index != null) {
+            return index;
+        }
+        long start = System.nanoTime();
+        try {
+            TargetStore store = TargetStore.map(snapshot);
+            index = TargetIndex.of(store);
+            version = store.getVersion();
+            if (tiled) {
+                tiles.restore(index);
+            }
+            Metrics.getInstance().histogram(Metrics.TARGETS_LOAD_MILLIS).record((System.nanoTime() - start) / 1000000);
+            return index;
+        } catch (IOException ex) {
+            // no snapshot yet, or one of an older format
+            Log.d(TAG, "No target snapshot: " + ex.getMessage());
+        }
+
+        TargetCache.Entry entry = cache.get(CACHE_KEY_ALL_TARGETS, System.currentTimeMillis());
+        if (entry == null) {
+            return null;
+        }
+        try {
+            long[] decodedVersion = {-1};
+            index = TargetIndex.of(decode(entry.getBody(), decodedVersion));
+            version = decodedVersion[0];
+            if (tiled) {
+                // left from loading the whole catalogue; the budget trims it on the next load
+                tiles.restore(index);
+            }
+            saveSnapshot();
+        } catch (IOException ex) {
+            // unreadable entry, fetch it again
+            cache.remove(CACHE_KEY_ALL_TARGETS);
+        }
+        return index;
+    }
+
+    /**
+     * Brings the targets up to date once the cache is stale, and tells the listeners when
+     * they changed. Blocking call, run it off the main thread.
+     */
+    public synchronized void refresh() throws IOException {
+        long now = System.currentTimeMillis();
+        TargetCache.Entry entry = cache.get(CACHE_KEY_ALL_TARGETS, now);
+        if (index != null && (tiled ? tilesFresh(now) : entry != null && cache.isFresh(entry, now))) {
+            return;
+        }
+        update(entry, now);
+    }
+
+    /**
+     * Whether every loaded tile was fetched or brought up to date within the cache lifetime;
+     * the tiled counterpart of a fresh GetAllTargets entry.
+     */
+    private boolean tilesFresh(long now) {
+        for (Long tile : tiles.getTiles()) {
+            TargetCache.Entry entry = tileEntry(tile, now);
+            if (entry == null || !cache.isFresh(entry, now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Brings the targets up to at least the given version. Blocking call, run it off the main
+     * thread.
+     */
+    public synchronized void sync(long announced) throws IOException {
+        if (announced <= version) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        update(cache.get(CACHE_KEY_ALL_TARGETS, now), now);
+    }
+
+    private void update(TargetCache.Entry entry, long now) throws IOException {
+        if (index != null && version >= 0 && fetchChanges(entry, now)) {
+            return;
+        }
+        if (tiled) {
+            reloadTiles(now);
+        } else {
+            fetchAll(entry, now);
+        }
+    }
+
+    /**
+     * Applies the changes since the current version.
+     *
+     * @return false when the service cannot tell them and the whole list must be loaded
+     */
+    private boolean fetchChanges(TargetCache.Entry entry, long now) throws IOException {
+        byte[] body = ("{\"since\":" + version + "}").getBytes("UTF-8");
+        GeoApiClient.Response response = client.post("GetTargetChanges", body, GeoApiClient.CONTENT_TYPE_JSON);
+        TargetDelta delta;
+        try {
+            delta = TargetDelta.decode(new InputStreamReader(response.getBody(), "UTF-8"));
+        } finally {
+            response.close();
+        }
+        if (delta.isReset()) {
+            return false;
+        }
+        // the cached responses are behind the snapshot now, but they still mark when we last asked
+        if (tiled) {
+            for (Long tile : tiles.getTiles()) {
+                TargetCache.Entry tileEntry = tileEntry(tile, now);
+                if (tileEntry != null) {
+                    cache.markRevalidated(tileEntry, tileEntry.getEtag(), tileEntry.getLastModified(), now);
+                }
+            }
+        } else if (entry != null) {
+            cache.markRevalidated(entry, entry.getEtag(), entry.getLastModified(), now);
+        }
+        if (delta.getUpserts().isEmpty() && delta.getRemoved().isEmpty()) {
+            version = delta.getVersion();
+            return true;
+        }
+
+        List<Target> added = new ArrayList<>();
+        List<Target> removed = new ArrayList<>();
+        delta.changes(index.getStore().asList(), added, removed);
+        if (tiled) {
+            // targets added outside the loaded tiles arrive with their tile
+            List<Target> upserts = added;
+            List<Target> dropped = removed;
+            added = new ArrayList<>();
+            removed = new ArrayList<>();
+            tiles.change(upserts, dropped, added, removed);
+            index = tiles.getIndex();
+        } else {
+            index = index.withChanges(added, removed);
+        }
+        version = delta.getVersion();
+        saveSnapshot();
+        Log.d(TAG, "Applied target changes up to version " + version + ": " + added.size() + " added, "
+                + removed.size() + " removed");
+        for (Listener listener : listeners) {
+            listener.onTargetsChanged(index, added, removed);
+        }
+        return true;
+    }
+
+    private void fetchAll(TargetCache.Entry entry, long now) throws IOException {
+        TargetCache.Entry fetched = fetch("GetAllTargets", null, CACHE_KEY_ALL_TARGETS, entry, now);
+        if (fetched == entry && index != null) {
+            // not modified
+            return;
+        }
+
+        long[] decodedVersion = {-1};
+        index = TargetIndex.of(decode(fetched.getBody(), decodedVersion));
+        version = decodedVersion[0];
+        saveSnapshot();
+        notifyTargets(index);
+    }
+
+    /**
+     * Conditional request revalidating the cache entry, if any.
+     *
+     * @return the entry, the same one when it was not modified
+     */
+    private TargetCache.Entry fetch(String endpoint, byte[] body, String key, TargetCache.Entry entry, long now)
+            throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (entry != null && entry.getEtag() != null) {
+            headers.put("If-None-Match", entry.getEtag());
+        }
+        if (entry != null && entry.getLastModified() != null) {
+            headers.put("If-Modified-Since", entry.getLastModified());
+        }
+
+        GeoApiClient.Response response = client.post(endpoint, body, GeoApiClient.CONTENT_TYPE_JSON, headers);
+        try {
+            if (response.getStatus() == 304 && entry != null) {
+                cache.markRevalidated(entry, response.getHeader("ETag"), response.getHeader("Last-Modified"), now);
+                return entry;
+            }
+            return cache.put(key, response.getBody(), response.getHeader("ETag"), response.getHeader("Last-Modified"), now);
+        } finally {
+            response.close();
+        }
+    }
+
+    private void notifyTargets(TargetIndex index) {
+        for (Listener listener : listeners) {
+            listener.onTargets(index);
+        }
+    }
+
+    private void saveSnapshot() {
+        try {
+            index.getStore().writeTo(snapshot, version);
+        } catch (IOException ex) {
+            // the next start parses the cached response again
+            Log.d(TAG, "Failed to save the target snapshot: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a GetAllTargets or GetTargetsInTile body straight into a store, without a Target
+     * per entry.
+     *
+     * @param decodedVersion receives the version of the target set, -1 when the body has none
+     */
+    static TargetStore decode(File body, long[] decodedVersion) throws IOException {
+        long start = System.nanoTime();
+        StoreSink sink = new StoreSink(new TargetStore.Builder((int) (body.length() / 80)), decodedVersion);
+        InputStream in = new BufferedInputStream(new FileInputStream(body));
+        try {
+            TargetListDecoder.decode(new InputStreamReader(in, "UTF-8"), sink);
+        } finally {
+            in.close();
+        }
+        TargetStore decoded = sink.builder.build();
+        Metrics.getInstance().histogram(Metrics.TARGETS_DECODE_MILLIS).record((System.nanoTime() - start) / 1000000);
+        return decoded;
+    }
+
+    /**
+     * Adds circles and shapes alike to a store and keeps the version of the target set.
+     */
+    private static class StoreSink implements TargetListDecoder.VersionedTargetSink, TargetListDecoder.ShapeSink {
+
+        final TargetStore.Builder builder;
+        private final long[] version;
+
+        StoreSink(TargetStore.Builder builder, long[] version) {
+            this.builder = builder;
+            this.version = version;
+        }
+
+        public void onTarget(String name, double latitude, double longitude, float radius) {
+            builder.add(name, latitude, longitude, radius);
+        }
+
+        public void onShape(String name, FenceShape shape) {
+            builder.add(name, shape);
+        }
+
+        public void onVersion(long value) {
+            version[0] = value;
+        }
+    }
+}
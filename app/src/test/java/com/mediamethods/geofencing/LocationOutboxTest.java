@@ -0,0 +1,118 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationOutboxTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<LocationFix> fixes(long from, int count) {
+        List<LocationFix> fixes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            fixes.add(new LocationFix(3.0 + i * 1e-5, 101.0, 5, 1, 90, from + i * 1000));
+        }
+        return fixes;
+    }
+
+    private static class RecordingReplayer implements LocationOutbox.Replayer {
+        final List<List<LocationFix>> batches = new ArrayList<>();
+
+        public void send(List<LocationFix> batch) {
+            batches.add(batch);
+        }
+    }
+
+    @Test
+    public void replaysSegmentsInOrderAndEmpties() throws Exception {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024 * 1024, HOUR, 10);
+        outbox.append(fixes(0, 25), 0);
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        assertEquals(25, outbox.replay(replayer, 0));
+
+        assertEquals(3, replayer.batches.size());
+        assertEquals(10, replayer.batches.get(0).size());
+        assertEquals(0, replayer.batches.get(0).get(0).getTime());
+        assertEquals(24000, replayer.batches.get(2).get(4).getTime());
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void failedReplayKeepsSegment() throws Exception {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024 * 1024, HOUR, 10);
+        outbox.append(fixes(0, 5), 0);
+
+        try {
+            outbox.replay(new LocationOutbox.Replayer() {
+                public void send(List<LocationFix> batch) throws Exception {
+                    throw new IOException("offline");
+                }
+            }, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // a new instance picks the stored fixes up again
+        LocationOutbox reopened = new LocationOutbox(folder.getRoot(), 1024 * 1024, HOUR, 10);
+        RecordingReplayer replayer = new RecordingReplayer();
+        assertEquals(5, reopened.replay(replayer, 0));
+    }
+
+    @Test
+    public void appendingNothingStoresNothing() throws Exception {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024 * 1024, HOUR, 10);
+        outbox.append(Collections.<LocationFix>emptyList(), 0);
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void sizeCapDropsOldestSegments() throws Exception {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 3 * 10 * LocationOutbox.RECORD_SIZE, HOUR, 10);
+        outbox.append(fixes(0, 50), 0);
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        outbox.replay(replayer, 0);
+        assertEquals(20, outbox.getEvictedCount());
+        assertEquals(20000, replayer.batches.get(0).get(0).getTime());
+    }
+
+    @Test
+    public void expiredFixesAreNotReplayed() throws Exception {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024 * 1024, HOUR, 100);
+        outbox.append(fixes(0, 5), 0);
+        outbox.append(fixes(2 * HOUR, 5), 2 * HOUR);
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        assertEquals(5, outbox.replay(replayer, 2 * HOUR));
+        assertEquals(5, outbox.getEvictedCount());
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024 * 1024, HOUR, 10);
+        outbox.append(fixes(0, 3), 0);
+        outbox.close();
+
+        File segment = folder.getRoot().listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 7);
+        file.close();
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        assertEquals(2, outbox.replay(replayer, 0));
+    }
+}
@@ -0,0 +1,53 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+public class TargetCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteArrayInputStream body(int size) {
+        return new ByteArrayInputStream(new byte[size]);
+    }
+
+    @Test
+    public void storesValidatorsAndExpires() throws Exception {
+        TargetCache cache = new TargetCache(folder.getRoot(), 1024, 1000);
+        assertNull(cache.get("all", 0));
+
+        cache.put("all", body(10), "\"v1\"", "Mon, 01 Feb 2016 00:00:00 GMT", 5000);
+
+        TargetCache.Entry entry = cache.get("all", 5500);
+        assertEquals("\"v1\"", entry.getEtag());
+        assertEquals("Mon, 01 Feb 2016 00:00:00 GMT", entry.getLastModified());
+        assertEquals(10, entry.getBody().length());
+        assertTrue(cache.isFresh(entry, 5999));
+        assertFalse(cache.isFresh(entry, 6000));
+
+        cache.markRevalidated(entry, null, null, 7000);
+        entry = cache.get("all", 7000);
+        assertTrue(cache.isFresh(entry, 7500));
+        assertEquals("\"v1\"", entry.getEtag());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        TargetCache cache = new TargetCache(folder.getRoot(), 250, 1000);
+        cache.put("a", body(100), null, null, 1000000);
+        cache.put("b", body(100), null, null, 2000000);
+        cache.get("a", 3000000);
+
+        cache.put("c", body(100), null, null, 4000000);
+
+        assertNotNull(cache.get("a", 5000000));
+        assertNull(cache.get("b", 5000000));
+        assertNotNull(cache.get("c", 5000000));
+    }
+}
@@ -0,0 +1,139 @@
+package com.mediamethods.geofencing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TargetRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** A client for tests that must not touch the network. */
+    private static final GeoApiClient OFFLINE = new GeoApiClient("http://localhost/") {
+        @Override
+        public Response post(String endpoint, byte[] body, String contentType, Map<String, String> headers)
+                throws IOException {
+            throw new AssertionError("Unexpected request to " + endpoint);
+        }
+    };
+
+    private File body(String json) throws Exception {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(json.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void decode_keepsShapes() throws Exception {
+        long[] version = {-1};
+        TargetStore store = TargetRepository.decode(body("{\"GetAllTargetsResult\":{\"version\":7,\"payload\":["
+                + "{\"name\":\"kiosk\",\"latitude\":3.5,\"longitude\":101.5,\"radius\":10},"
+                + "{\"name\":\"lot\",\"type\":\"polygon\",\"points\":\"3.0,101.0,3.0,101.01,3.01,101.0\"}"
+                + "]}}"), version);
+
+        assertEquals(7, version[0]);
+        assertEquals(2, store.size());
+        assertNull(store.get(0).getShape());
+        assertNotNull(store.get(1).getShape());
+        assertEquals(FenceShape.Type.POLYGON, store.get(1).getShape().getType());
+    }
+
+    @Test
+    public void sync_keepsRestoredTilesUntilTilesAreWanted() throws Exception {
+        // a snapshot left by an older version of the catalogue, before any fix this run
+        File snapshot = new File(folder.getRoot(), "targets.snapshot");
+        List<Target> targets = Arrays.asList(new Target("a", 3.0, 101.0, 50), new Target("b", 3.1, 101.1, 50));
+        new TargetIndex(targets).getStore().writeTo(snapshot, -1);
+        TargetRepository repository = new TargetRepository(
+                new TargetCache(folder.newFolder("cache"), 1 << 20, 60000), OFFLINE, snapshot, new TileSet(12, 1 << 20));
+        TargetIndex restored = repository.loadCached();
+
+        // without a known version the sync goes straight to reloading tiles, and none are wanted
+        repository.sync(5);
+
+        assertSame(restored, repository.loadCached());
+        assertEquals(2, TargetStore.map(snapshot).size());
+    }
+
+    @Test
+    public void refresh_skipsTheNetworkWhileTilesAreFresh() throws Exception {
+        File snapshot = new File(folder.getRoot(), "targets.snapshot");
+        new TargetIndex(Arrays.asList(new Target("a", 3.0, 101.0, 50))).getStore().writeTo(snapshot, 4);
+        TargetCache cache = new TargetCache(folder.newFolder("cache"), 1 << 20, 60000);
+        cache.put("tile-" + Quadkey.encode(Quadkey.tile(3.0, 101.0, 12), 12), new ByteArrayInputStream(new byte[0]),
+                null, null, System.currentTimeMillis());
+        TargetRepository repository = new TargetRepository(cache, OFFLINE, snapshot, new TileSet(12, 1 << 20));
+        repository.loadCached();
+
+        repository.refresh();
+
+        assertEquals(4, repository.getVersion());
+    }
+
+    @Test
+    public void tiles_fallBackToAllTargetsWithoutTheTileEndpoint() throws Exception {
+        // a service from before GetTargetsInTile
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getRequestBody().close();
+                if (!exchange.getRequestURI().getPath().endsWith("/GetAllTargets")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = ("{\"GetAllTargetsResult\":{\"payload\":["
+                        + "{\"name\":\"a\",\"latitude\":3.0,\"longitude\":101.0,\"radius\":50}]}}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            GeoApiClient client = new GeoApiClient("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            TargetRepository repository = new TargetRepository(new TargetCache(folder.newFolder("cache"), 1 << 20, 60000),
+                    client, new File(folder.getRoot(), "targets.snapshot"), new TileSet(12, 1 << 20));
+            final CountDownLatch loaded = new CountDownLatch(1);
+            final TargetIndex[] received = new TargetIndex[1];
+            repository.addListener(new TargetRepository.Listener() {
+                public void onTargets(TargetIndex index) {
+                    received[0] = index;
+                    loaded.countDown();
+                }
+
+                public void onTargetsChanged(TargetIndex index, List<Target> added, List<Target> removed) {
+                }
+            });
+
+            repository.setFocus(3.0, 101.0, 0, 0);
+
+            assertTrue(loaded.await(10, TimeUnit.SECONDS));
+            assertEquals(1, received[0].size());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by the benchmarks: targets scattered over the Klang Valley, about
+ * 60 x 60 km, and fixes taken inside the same area.
+ */
+final class BenchmarkData {
+
+    static final double MIN_LATITUDE = 2.8;
+    static final double MIN_LONGITUDE = 101.4;
+    static final double SPAN_DEGREES = 0.55;
+
+    private BenchmarkData() {
+    }
+
+    static List<Target> targets(int count, long seed) {
+        Random random = new Random(seed);
+        List<Target> targets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            targets.add(new Target("target " + i,
+                    MIN_LATITUDE + random.nextDouble() * SPAN_DEGREES,
+                    MIN_LONGITUDE + random.nextDouble() * SPAN_DEGREES,
+                    50 + random.nextInt(450)));
+        }
+        return targets;
+    }
+
+    /**
+     * A random walk at driving speed, one fix a second.
+     */
+    static LocationFix[] drive(int count, long seed) {
+        Random random = new Random(seed);
+        LocationFix[] fixes = new LocationFix[count];
+        double latitude = MIN_LATITUDE + SPAN_DEGREES / 2;
+        double longitude = MIN_LONGITUDE + SPAN_DEGREES / 2;
+        double bearing = 0;
+        for (int i = 0; i < count; i++) {
+            bearing = (bearing + random.nextGaussian() * 10 + 360) % 360;
+            double step = 15 / GeoMath.METERS_PER_DEGREE;
+            latitude += step * Math.cos(Math.toRadians(bearing));
+            longitude += step * Math.sin(Math.toRadians(bearing));
+            fixes[i] = new LocationFix(latitude, longitude, 5 + random.nextFloat() * 10, 15, (float) bearing,
+                    1456790400000L + i * 1000L);
+        }
+        return fixes;
+    }
+
+    /**
+     * GetAllTargets response in the format the service sends today, with the result and the
+     * payload as JSON strings.
+     */
+    static String getAllTargetsResponse(List<Target> targets) {
+        StringBuilder payload = new StringBuilder("[");
+        for (Target target : targets) {
+            if (payload.length() > 1) {
+                payload.append(',');
+            }
+            payload.append("{\"latitude\":\"").append(target.getLatitude())
+                    .append("\",\"longitude\":\"").append(target.getLongitude())
+                    .append("\",\"radius\":\"").append(target.getRadius())
+                    .append("\",\"name\":\"").append(target.getName()).append("\"}");
+        }
+        payload.append(']');
+        String result = "{\"status\":0,\"payload\":" + quote(payload.toString()) + "}";
+        return "{\"GetAllTargetsResult\":" + quote(result) + "}";
+    }
+
+    private static String quote(String json) {
+        StringBuilder sb = new StringBuilder(json.length() + json.length() / 4).append('"');
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
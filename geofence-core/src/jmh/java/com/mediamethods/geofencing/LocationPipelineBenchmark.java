@@ -0,0 +1,77 @@
+package com.mediamethods.geofencing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the service does for every fix (nearest target, sampling plan, upload filter) and
+ * for every batch (payload encoding).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationPipelineBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int targets;
+
+    private TargetIndex index;
+    private LocationFix[] fixes;
+    private List<LocationFix> batch;
+    private SamplingScheduler scheduler;
+    private FixFilter filter;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        index = new TargetIndex(BenchmarkData.targets(targets, 1));
+        fixes = BenchmarkData.drive(4096, 2);
+        batch = Arrays.asList(fixes).subList(0, 50);
+        scheduler = new SamplingScheduler();
+        filter = new FixFilter(70, 5, 5 * 60 * 1000);
+    }
+
+    @Benchmark
+    public Object onFix() {
+        int i = next++ & (fixes.length - 1);
+        LocationFix fix = fixes[i];
+        if (i == 0) {
+            // the walk starts over; so does the filter, as it would after a restart
+            filter = new FixFilter(70, 5, 5 * 60 * 1000);
+        }
+
+        TargetIndex.Nearest nearest = index.nearest(fix.getLatitude(), fix.getLongitude());
+        Target target = nearest.getTarget();
+        double bearingToCentre = GeoMath.bearing(fix.getLatitude(), fix.getLongitude(),
+                target.getLatitude(), target.getLongitude());
+        double closingSpeed = SamplingScheduler.closingSpeed(fix.getSpeed(), fix.getBearing(),
+                bearingToCentre, nearest.isInside());
+        SamplingScheduler.Plan plan = scheduler.update(nearest.getBoundaryDistance(), fix.getAccuracy(),
+                fix.getSpeed(), closingSpeed);
+
+        LocationFix filtered = filter.filter(fix);
+        return filtered != null ? filtered : plan;
+    }
+
+    @Benchmark
+    public byte[] encodeBatch() throws IOException {
+        return LocationBatchEncoder.encode("0123456789abcdef0123456789abcdef", batch);
+    }
+}
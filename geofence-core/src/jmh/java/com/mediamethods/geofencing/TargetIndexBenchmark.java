@@ -0,0 +1,67 @@
+package com.mediamethods.geofencing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the target index, the per-fix nearest-target lookup and the viewport query used
+ * by the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetIndexBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int targets;
+
+    private List<Target> list;
+    private TargetIndex index;
+    private LocationFix[] fixes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        list = BenchmarkData.targets(targets, 1);
+        index = new TargetIndex(list);
+        fixes = BenchmarkData.drive(4096, 2);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TargetIndex build() {
+        return new TargetIndex(list);
+    }
+
+    @Benchmark
+    public TargetIndex.Nearest nearest() {
+        LocationFix fix = fixes[next++ & (fixes.length - 1)];
+        return index.nearest(fix.getLatitude(), fix.getLongitude());
+    }
+
+    @Benchmark
+    public int viewport() {
+        // roughly what a phone shows at zoom 13
+        LocationFix fix = fixes[next++ & (fixes.length - 1)];
+        List<Target> out = new ArrayList<>();
+        index.query(fix.getLatitude() - 0.05, fix.getLongitude() - 0.03,
+                fix.getLatitude() + 0.05, fix.getLongitude() + 0.03, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,52 @@
+package com.mediamethods.geofencing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a full GetAllTargets response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetListDecoderBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int targets;
+
+    private String response;
+
+    @Setup
+    public void setUp() {
+        response = BenchmarkData.getAllTargetsResponse(BenchmarkData.targets(targets, 1));
+    }
+
+    @Benchmark
+    public int decode(final Blackhole blackhole) throws IOException {
+        return TargetListDecoder.decode(new StringReader(response), new TargetListDecoder.TargetSink() {
+            public void onTarget(String name, double latitude, double longitude, float radius) {
+                blackhole.consume(name);
+                blackhole.consume(latitude);
+                blackhole.consume(longitude);
+                blackhole.consume(radius);
+            }
+        });
+    }
+}
@@ -0,0 +1,360 @@
+package com.mediamethods.geofencing;
+
+import java.util.Arrays;
+
+/**
+ * The outline of a target that is not a circle: a polygon, such as an irregular lot, or a
+ * corridor, everything within a half-width of a polyline, such as a stretch of road.
+ *
+ * The vertices are projected once onto a plane around the centre of the bounding box, in
+ * metres, and the edges are bucketed into horizontal bands. The point-in-polygon test only
+ * crosses the edges of the band the point falls in, and the distance to the nearest edge
+ * visits the bands outwards from there until no closer edge is possible. Neither allocates,
+ * so both can run on every fix. The projection is accurate to well under a metre for fences
+ * a few kilometres across.
+ *
+ * Immutable.
+ */
+public class FenceShape {
+
+    public enum Type {
+        POLYGON, CORRIDOR
+    }
+
+    // about this many edges per band, and no more bands than this
+    private static final int EDGES_PER_BAND = 4;
+    private static final int MAX_BANDS = 64;
+
+    // the bounding circle must hold the outline under the great-circle distance as well
+    private static final double BOUNDING_SLACK = 1.001;
+    private static final double BOUNDING_SLACK_IN_METERS = 1;
+
+    private final Type type;
+    private final double[] points;
+    private final float halfWidth;
+
+    private final double minLatitude;
+    private final double minLongitude;
+    private final double maxLatitude;
+    private final double maxLongitude;
+    private final double centreLatitude;
+    private final double centreLongitude;
+    private final float boundingRadius;
+    private final double equivalentRadius;
+
+    // the plane: x east and y north of the centre, in metres; edge i runs from vertex i
+    private final double metersPerDegreeLongitude;
+    private final double[] x;
+    private final double[] y;
+    private final int edges;
+
+    // edges overlapping band b are bandEdges[bandStart[b]] up to bandEdges[bandStart[b + 1]]
+    private final double bandBottom;
+    private final double bandHeight;
+    private final int[] bandStart;
+    private final int[] bandEdges;
+
+    private FenceShape(Type type, double[] latLon, float halfWidth) {
+        if (latLon.length % 2 != 0) {
+            throw new IllegalArgumentException("Points need a latitude and a longitude each");
+        }
+        int count = latLon.length / 2;
+        // a polygon may repeat its first point at the end
+        if (type == Type.POLYGON && count > 1 && latLon[0] == latLon[2 * count - 2]
+                && latLon[1] == latLon[2 * count - 1]) {
+            count--;
+        }
+        if (type == Type.POLYGON && count < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 points");
+        }
+        if (type == Type.CORRIDOR && (count < 2 || !(halfWidth > 0))) {
+            throw new IllegalArgumentException("A corridor needs at least 2 points and a width");
+        }
+        this.type = type;
+        this.points = Arrays.copyOf(latLon, 2 * count);
+        this.halfWidth = type == Type.CORRIDOR ? halfWidth : 0;
+
+        double latLo = Double.POSITIVE_INFINITY, latHi = Double.NEGATIVE_INFINITY;
+        double lonLo = Double.POSITIVE_INFINITY, lonHi = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            latLo = Math.min(latLo, points[2 * i]);
+            latHi = Math.max(latHi, points[2 * i]);
+            lonLo = Math.min(lonLo, points[2 * i + 1]);
+            lonHi = Math.max(lonHi, points[2 * i + 1]);
+        }
+        minLatitude = latLo;
+        maxLatitude = latHi;
+        minLongitude = lonLo;
+        maxLongitude = lonHi;
+        centreLatitude = (latLo + latHi) / 2;
+        centreLongitude = (lonLo + lonHi) / 2;
+        metersPerDegreeLongitude = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(centreLatitude));
+
+        x = new double[count];
+        y = new double[count];
+        double reach = 0;
+        for (int i = 0; i < count; i++) {
+            x[i] = (points[2 * i + 1] - centreLongitude) * metersPerDegreeLongitude;
+            y[i] = (points[2 * i] - centreLatitude) * GeoMath.METERS_PER_DEGREE;
+            reach = Math.max(reach, Math.sqrt(x[i] * x[i] + y[i] * y[i]));
+        }
+        boundingRadius = (float) ((reach + this.halfWidth) * BOUNDING_SLACK + BOUNDING_SLACK_IN_METERS);
+        if (type == Type.CORRIDOR) {
+            equivalentRadius = this.halfWidth;
+        } else {
+            double twiceArea = 0;
+            for (int i = 0, j = count - 1; i < count; j = i++) {
+                twiceArea += x[j] * y[i] - x[i] * y[j];
+            }
+            equivalentRadius = Math.sqrt(Math.abs(twiceArea) / 2 / Math.PI);
+        }
+        edges = type == Type.POLYGON ? count : count - 1;
+
+        // bucket the edges by the bands their latitude range overlaps
+        int bands = Math.max(1, Math.min(MAX_BANDS, edges / EDGES_PER_BAND));
+        bandBottom = (latLo - centreLatitude) * GeoMath.METERS_PER_DEGREE;
+        bandHeight = Math.max(1e-6, (latHi - latLo) * GeoMath.METERS_PER_DEGREE / bands);
+        bandStart = new int[bands + 1];
+        for (int e = 0; e < edges; e++) {
+            for (int b = bandOf(edgeMinY(e)); b <= bandOf(edgeMaxY(e)); b++) {
+                bandStart[b + 1]++;
+            }
+        }
+        for (int b = 0; b < bands; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        bandEdges = new int[bandStart[bands]];
+        int[] fill = Arrays.copyOf(bandStart, bands);
+        for (int e = 0; e < edges; e++) {
+            for (int b = bandOf(edgeMinY(e)); b <= bandOf(edgeMaxY(e)); b++) {
+                bandEdges[fill[b]++] = e;
+            }
+        }
+    }
+
+    /**
+     * A polygon through the given points, {@code {lat0, lon0, lat1, lon1, ...}}. The last
+     * point connects back to the first. It must not cross the antimeridian.
+     *
+     * @throws IllegalArgumentException when there are fewer than 3 points
+     */
+    public static FenceShape polygon(double[] latLon) {
+        return new FenceShape(Type.POLYGON, latLon, 0);
+    }
+
+    /**
+     * Everything within {@code halfWidth} metres of the polyline through the given points,
+     * {@code {lat0, lon0, lat1, lon1, ...}}.
+     *
+     * @throws IllegalArgumentException when there are fewer than 2 points or no width
+     */
+    public static FenceShape corridor(double[] latLon, float halfWidth) {
+        return new FenceShape(Type.CORRIDOR, latLon, halfWidth);
+    }
+
+    /**
+     * The shape of the given type, as stored by {@link #getType()}, {@link #getHalfWidth()}
+     * and {@link #getPoints()}.
+     */
+    public static FenceShape of(Type type, double[] latLon, float halfWidth) {
+        return new FenceShape(type, latLon, halfWidth);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** The vertices, {@code {lat0, lon0, lat1, lon1, ...}}. Must not be modified. */
+    public double[] getPoints() {
+        return points;
+    }
+
+    public int getPointCount() {
+        return points.length / 2;
+    }
+
+    /** Half the width of a corridor in metres, 0 for a polygon. */
+    public float getHalfWidth() {
+        return halfWidth;
+    }
+
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    public double getMinLongitude() {
+        return minLongitude;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    public double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    /** Centre of the bounding box, which is also the centre of the bounding circle. */
+    public double getCentreLatitude() {
+        return centreLatitude;
+    }
+
+    public double getCentreLongitude() {
+        return centreLongitude;
+    }
+
+    /** Radius of a circle around the centre that holds the whole shape. */
+    public float getBoundingRadius() {
+        return boundingRadius;
+    }
+
+    /**
+     * Radius of a circle of about the same size, for margins that scale with the fence: the
+     * half-width of a corridor, that of a circle of the same area for a polygon.
+     */
+    public double getEquivalentRadius() {
+        return equivalentRadius;
+    }
+
+    /** True when the point lies inside the polygon, or within the width of the corridor. */
+    public boolean contains(double latitude, double longitude) {
+        return boundaryDistance(latitude, longitude) <= 0;
+    }
+
+    /**
+     * Distance from the point to the outline in metres, negative inside.
+     */
+    public double boundaryDistance(double latitude, double longitude) {
+        double qx = (longitude - centreLongitude) * metersPerDegreeLongitude;
+        double qy = (latitude - centreLatitude) * GeoMath.METERS_PER_DEGREE;
+        double distance = nearestEdge(qx, qy, false);
+        if (type == Type.CORRIDOR) {
+            return distance - halfWidth;
+        }
+        return crossings(qx, qy) ? -distance : distance;
+    }
+
+    /**
+     * Direction from the point to the nearest point of the outline, in degrees east of north,
+     * for the speed at which the device closes in on it.
+     */
+    public double bearingToBoundary(double latitude, double longitude) {
+        double qx = (longitude - centreLongitude) * metersPerDegreeLongitude;
+        double qy = (latitude - centreLatitude) * GeoMath.METERS_PER_DEGREE;
+        double bearing = nearestEdge(qx, qy, true);
+        if (type == Type.CORRIDOR && nearestEdge(qx, qy, false) < halfWidth) {
+            // inside a corridor the outline lies away from the centre line
+            bearing += 180;
+        }
+        return bearing >= 360 ? bearing - 360 : bearing;
+    }
+
+    /** Even-odd ray casting over the edges of the point's band. */
+    private boolean crossings(double qx, double qy) {
+        if (qy < bandBottom || qy > bandBottom + bandHeight * (bandStart.length - 1)) {
+            return false;
+        }
+        int band = bandOf(qy);
+        boolean inside = false;
+        for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+            int i = bandEdges[k];
+            int j = next(i);
+            if ((y[i] > qy) != (y[j] > qy) && qx < (x[j] - x[i]) * (qy - y[i]) / (y[j] - y[i]) + x[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Distance to the nearest edge, or the bearing to the nearest point on it. Bands are
+     * visited by their vertical distance from the point, and an edge is in every band it
+     * overlaps, so once that distance exceeds the best so far no edge can beat it.
+     */
+    private double nearestEdge(double qx, double qy, boolean bearing) {
+        int bands = bandStart.length - 1;
+        int start = bandOf(qy);
+        int below = start;
+        int above = start + 1;
+        double best = Double.POSITIVE_INFINITY;
+        double bestX = 0;
+        double bestY = 0;
+        while (below >= 0 || above < bands) {
+            double gapBelow = below >= 0 ? bandGap(below, qy) : Double.POSITIVE_INFINITY;
+            double gapAbove = above < bands ? bandGap(above, qy) : Double.POSITIVE_INFINITY;
+            int band;
+            double gap;
+            if (gapBelow <= gapAbove) {
+                band = below--;
+                gap = gapBelow;
+            } else {
+                band = above++;
+                gap = gapAbove;
+            }
+            if (gap * gap >= best) {
+                break;
+            }
+            for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+                int i = bandEdges[k];
+                int j = next(i);
+                double dx = x[j] - x[i];
+                double dy = y[j] - y[i];
+                double lengthSquared = dx * dx + dy * dy;
+                double t = lengthSquared > 0 ? ((qx - x[i]) * dx + (qy - y[i]) * dy) / lengthSquared : 0;
+                t = Math.max(0, Math.min(1, t));
+                double px = x[i] + t * dx;
+                double py = y[i] + t * dy;
+                double squared = (qx - px) * (qx - px) + (qy - py) * (qy - py);
+                if (squared < best) {
+                    best = squared;
+                    bestX = px;
+                    bestY = py;
+                }
+            }
+        }
+        if (!bearing) {
+            return Math.sqrt(best);
+        }
+        double degrees = Math.toDegrees(Math.atan2(bestX - qx, bestY - qy));
+        return degrees < 0 ? degrees + 360 : degrees;
+    }
+
+    private double bandGap(int band, double qy) {
+        double bottom = bandBottom + band * bandHeight;
+        return Math.max(0, Math.max(bottom - qy, qy - (bottom + bandHeight)));
+    }
+
+    private int bandOf(double planeY) {
+        int band = (int) Math.floor((planeY - bandBottom) / bandHeight);
+        return Math.max(0, Math.min(bandStart.length - 2, band));
+    }
+
+    private int next(int vertex) {
+        return vertex + 1 == x.length ? 0 : vertex + 1;
+    }
+
+    private double edgeMinY(int edge) {
+        return Math.min(y[edge], y[next(edge)]);
+    }
+
+    private double edgeMaxY(int edge) {
+        return Math.max(y[edge], y[next(edge)]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FenceShape)) {
+            return false;
+        }
+        FenceShape other = (FenceShape) o;
+        return type == other.type && halfWidth == other.halfWidth && Arrays.equals(points, other.points);
+    }
+
+    @Override
+    public int hashCode() {
+        return type.hashCode() * 31 + Arrays.hashCode(points);
+    }
+}
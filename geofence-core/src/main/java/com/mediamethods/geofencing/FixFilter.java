@@ -0,0 +1,148 @@
+package com.mediamethods.geofencing;
+
+/**
+ * Filter in front of the upload path. It drops fixes that do not tell the server anything
+ * new and smooths the rest.
+ *
+ * <ul>
+ * <li>Fixes implying an implausible speed from the current estimate are rejected as outliers.
+ * If several arrive in a row, the device really moved (e.g. a cold GPS or a tunnel) and the
+ * filter restarts from the new fix.</li>
+ * <li>Accepted fixes update an alpha-beta tracker of position and velocity, which removes
+ * jitter without the cost of a full Kalman filter.</li>
+ * <li>A smoothed position within the fix accuracy (or the minimum dead-band) of the last
+ * emitted one is dropped as stationary, except for a periodic keep-alive.</li>
+ * </ul>
+ *
+ * Not thread-safe.
+ */
+public class FixFilter {
+
+    // weights for the position and velocity correction of the alpha-beta tracker
+    static final double ALPHA = 0.5;
+    static final double BETA = 0.1;
+
+    // consecutive outliers after which the filter restarts from the newest fix
+    static final int MAX_CONSECUTIVE_OUTLIERS = 3;
+
+    private final double maxSpeed;
+    private final double minDeadBand;
+    private final long keepAliveMillis;
+
+    private boolean initialized;
+    private double latitude;
+    private double longitude;
+    private double velocityNorth;
+    private double velocityEast;
+    private long time;
+    private int consecutiveOutliers;
+
+    private LocationFix lastEmitted;
+
+    private long accepted;
+    private long stationary;
+    private long outliers;
+
+    /**
+     * @param maxSpeed        fastest plausible ground speed in metres per second
+     * @param minDeadBand     smallest movement in metres that counts, for fixes without accuracy
+     * @param keepAliveMillis emit a stationary fix after this long without any, 0 to never
+     */
+    public FixFilter(double maxSpeed, double minDeadBand, long keepAliveMillis) {
+        this.maxSpeed = maxSpeed;
+        this.minDeadBand = minDeadBand;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Returns the smoothed fix to upload, or null when the fix was dropped.
+     */
+    public LocationFix filter(LocationFix fix) {
+        if (!initialized) {
+            reset(fix);
+            return emit(fix);
+        }
+
+        long dtMillis = fix.getTime() - time;
+        if (dtMillis <= 0) {
+            // duplicate or out of order
+            stationary++;
+            return null;
+        }
+        double dt = dtMillis / 1000.0;
+
+        // predict, then compare with the measurement in local metres
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        double predictedNorth = velocityNorth * dt;
+        double predictedEast = velocityEast * dt;
+        double measuredNorth = (fix.getLatitude() - latitude) * GeoMath.METERS_PER_DEGREE;
+        double measuredEast = (fix.getLongitude() - longitude) * GeoMath.METERS_PER_DEGREE * cosLat;
+
+        double jump = Math.hypot(measuredNorth, measuredEast) - fix.getAccuracy();
+        if (jump > maxSpeed * dt) {
+            if (++consecutiveOutliers < MAX_CONSECUTIVE_OUTLIERS) {
+                outliers++;
+                return null;
+            }
+            reset(fix);
+            return emit(fix);
+        }
+        consecutiveOutliers = 0;
+
+        double residualNorth = measuredNorth - predictedNorth;
+        double residualEast = measuredEast - predictedEast;
+        double north = predictedNorth + ALPHA * residualNorth;
+        double east = predictedEast + ALPHA * residualEast;
+        velocityNorth += BETA * residualNorth / dt;
+        velocityEast += BETA * residualEast / dt;
+        latitude += north / GeoMath.METERS_PER_DEGREE;
+        longitude += east / (GeoMath.METERS_PER_DEGREE * cosLat);
+        time = fix.getTime();
+
+        LocationFix smoothed = new LocationFix(latitude, longitude, fix.getAccuracy(), fix.getSpeed(),
+                fix.getBearing(), fix.getTime());
+
+        double moved = GeoMath.distance(lastEmitted.getLatitude(), lastEmitted.getLongitude(), latitude, longitude);
+        boolean keepAlive = keepAliveMillis > 0 && fix.getTime() - lastEmitted.getTime() >= keepAliveMillis;
+        if (moved <= Math.max(fix.getAccuracy(), minDeadBand) && !keepAlive) {
+            stationary++;
+            return null;
+        }
+        return emit(smoothed);
+    }
+
+    /** Fixes passed on for upload. */
+    public long getAcceptedCount() {
+        return accepted;
+    }
+
+    /** Fixes dropped because the device had not moved beyond their accuracy. */
+    public long getStationaryCount() {
+        return stationary;
+    }
+
+    /** Fixes dropped for implying an implausible speed. */
+    public long getOutlierCount() {
+        return outliers;
+    }
+
+    public long getDroppedCount() {
+        return stationary + outliers;
+    }
+
+    private void reset(LocationFix fix) {
+        initialized = true;
+        latitude = fix.getLatitude();
+        longitude = fix.getLongitude();
+        velocityNorth = 0;
+        velocityEast = 0;
+        time = fix.getTime();
+        consecutiveOutliers = 0;
+    }
+
+    private LocationFix emit(LocationFix fix) {
+        lastEmitted = fix;
+        accepted++;
+        return fix;
+    }
+}
@@ -0,0 +1,241 @@
+package com.mediamethods.geofencing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The one HTTP client for the GeoLocationService.svc endpoints.
+ *
+ * Connections are kept alive and reused: responses are always read to the end and closed,
+ * never disconnected. Request bodies above {@link #GZIP_MIN_BYTES} are gzip-compressed,
+ * responses are requested gzip-compressed and inflated here, and reads go through a small
+ * pool of byte buffers instead of one byte at a time.
+ */
+public class GeoApiClient {
+
+    public static final String BASE_URL = "http://api.1.name.my/GeoLocationService.svc/";
+
+    public static final String CONTENT_TYPE_JSON = "application/json";
+
+    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 10000;
+    private static final int READ_TIMEOUT_IN_MILLISECONDS = 20000;
+
+    // smaller bodies are not worth the deflate header and CPU
+    static final int GZIP_MIN_BYTES = 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static GeoApiClient sInstance;
+
+    private final String baseUrl;
+    private final ArrayDeque<byte[]> bufferPool = new ArrayDeque<>();
+
+    public static synchronized GeoApiClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new GeoApiClient(BASE_URL);
+        }
+        return sInstance;
+    }
+
+    public GeoApiClient(String baseUrl) {
+        this.baseUrl = baseUrl;
+
+        // keep-alive is the default, but make sure nothing turned it off
+        System.setProperty("http.keepAlive", "true");
+    }
+
+    /**
+     * Posts to an endpoint and returns the open response. The caller must close it, which
+     * returns the connection to the keep-alive pool.
+     *
+     * @param body    request body, or null for an empty POST
+     * @param headers extra request headers, may be null
+     * @throws HttpException for 4xx and 5xx responses
+     */
+    public Response post(String endpoint, byte[] body, String contentType, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + endpoint).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
+        connection.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", contentType);
+        // asking explicitly turns off the platform's transparent gzip, Response inflates instead
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        byte[] payload = body == null ? new byte[0] : body;
+        if (payload.length >= GZIP_MIN_BYTES) {
+            payload = gzip(payload);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        connection.setFixedLengthStreamingMode(payload.length);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+
+        Response response = new Response(connection);
+        if (response.getStatus() >= 400) {
+            response.close();
+            throw new HttpException(endpoint, response.getStatus());
+        }
+        return response;
+    }
+
+    public Response post(String endpoint, byte[] body, String contentType) throws IOException {
+        return post(endpoint, body, contentType, null);
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+        OutputStream out = new GZIPOutputStream(new BufferedOutputStream(bytes));
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] acquireBuffer() {
+        synchronized (bufferPool) {
+            byte[] buffer = bufferPool.pollFirst();
+            return buffer != null ? buffer : new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        synchronized (bufferPool) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Thrown for 4xx and 5xx responses.
+     */
+    public static class HttpException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public HttpException(String endpoint, int status) {
+            super(endpoint + " returned HTTP " + status);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Whether the same request may succeed later: server errors, timeouts and throttling.
+         * Any other status means the server will not take the request as it is.
+         */
+        public boolean isTransient() {
+            return status >= 500 || status == 408 || status == 429;
+        }
+    }
+
+    /**
+     * An open response. The body may be read as a stream or in one go; either way close
+     * the response afterwards.
+     */
+    public class Response implements Closeable {
+
+        private final HttpURLConnection connection;
+        private final int status;
+        private InputStream body;
+
+        Response(HttpURLConnection connection) throws IOException {
+            this.connection = connection;
+            this.status = connection.getResponseCode();
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        /**
+         * The decompressed response body.
+         */
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in == null) {
+                    in = new ByteArrayInputStream(new byte[0]);
+                }
+                if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                }
+                body = in;
+            }
+            return body;
+        }
+
+        public byte[] readBytes() throws IOException {
+            int length = connection.getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : BUFFER_SIZE);
+            InputStream in = getBody();
+            byte[] buffer = acquireBuffer();
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+            return out.toByteArray();
+        }
+
+        public String readString() throws IOException {
+            return new String(readBytes(), "UTF-8");
+        }
+
+        /**
+         * Drains what is left of the body so the connection can be reused.
+         */
+        public void close() {
+            try {
+                InputStream in = getBody();
+                byte[] buffer = acquireBuffer();
+                try {
+                    while (in.read(buffer) != -1) {
+                        // discard
+                    }
+                } finally {
+                    releaseBuffer(buffer);
+                    in.close();
+                }
+            } catch (IOException ex) {
+                // a broken connection is not reused anyway
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which targets to register as platform geofences, which the platform allows only a
+ * limited number of.
+ *
+ * The nearest targets fill all slots but one. The last slot holds a refresh fence centred on
+ * the ranking position, with the boundary distance of the farthest registered target as its
+ * radius: no unregistered target can be reached without leaving it first. When the refresh
+ * fence reports an exit the set is ranked again from there, and only the difference is
+ * re-registered.
+ *
+ * Not thread-safe.
+ */
+public class GeofenceRotation {
+
+    /** Most geofences one app may register with Play services. */
+    public static final int MAX_GEOFENCES = 100;
+
+    public static final String REFRESH_FENCE_ID = "refresh";
+
+    // the platform does not resolve smaller fences reliably, but a target left out may be
+    // closer than that, and the device must leave the fence before it can reach one
+    static final float MIN_REFRESH_RADIUS_IN_METERS = 100;
+    // when even that target is around the device
+    private static final float SMALLEST_REFRESH_RADIUS_IN_METERS = 1;
+
+    private final int capacity;
+
+    // registered targets by request id
+    private Map<String, Target> registered = new HashMap<>();
+
+    private double refreshLatitude;
+    private double refreshLongitude;
+    private float refreshRadius = -1;
+
+    /**
+     * @param capacity geofences to use, including the refresh fence; at most {@link #MAX_GEOFENCES}
+     */
+    public GeofenceRotation(int capacity) {
+        if (capacity < 2 || capacity > MAX_GEOFENCES) {
+            throw new IllegalArgumentException("capacity must be between 2 and " + MAX_GEOFENCES);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Changes to make to the registered geofences.
+     */
+    public static class Update {
+
+        private final List<Target> added;
+        private final List<String> removed;
+        private final boolean refreshFence;
+
+        Update(List<Target> added, List<String> removed, boolean refreshFence) {
+            this.added = added;
+            this.removed = removed;
+            this.refreshFence = refreshFence;
+        }
+
+        /** Targets to register. */
+        public List<Target> getAdded() {
+            return added;
+        }
+
+        /** Request ids to unregister. */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Whether the refresh fence must be (re-)registered. When false and it was registered
+         * before, it is among {@link #getRemoved()}.
+         */
+        public boolean hasRefreshFence() {
+            return refreshFence;
+        }
+    }
+
+    /**
+     * True when nothing is registered yet, or the position is outside the refresh fence, as
+     * when the platform missed its exit.
+     */
+    public boolean needsRanking(double latitude, double longitude) {
+        if (registered.isEmpty()) {
+            return true;
+        }
+        return refreshRadius >= 0 && GeoMath.distance(latitude, longitude, refreshLatitude, refreshLongitude)
+                > refreshRadius;
+    }
+
+    /**
+     * Ranks the targets from the given position and returns what to change.
+     */
+    public Update rank(TargetIndex index, double latitude, double longitude) {
+        List<Target> nearest = new ArrayList<>(capacity);
+        boolean all = index.size() <= capacity;
+        // one place goes to the refresh fence; the first target left out bounds its radius
+        index.nearest(latitude, longitude, capacity, nearest);
+        Target firstLeftOut = all ? null : nearest.remove(nearest.size() - 1);
+
+        Map<String, Target> next = new HashMap<>();
+        List<Target> added = new ArrayList<>();
+        for (Target target : nearest) {
+            String id = requestId(target);
+            next.put(id, target);
+            if (!registered.containsKey(id)) {
+                added.add(target);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String id : registered.keySet()) {
+            if (!next.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+
+        boolean hadRefreshFence = refreshRadius >= 0;
+        if (all) {
+            // every target is registered, nothing to rotate in
+            refreshRadius = -1;
+            if (hadRefreshFence) {
+                removed.add(REFRESH_FENCE_ID);
+            }
+        } else {
+            Target farthest = nearest.get(nearest.size() - 1);
+            double reach = GeoMath.distance(latitude, longitude, farthest.getLatitude(), farthest.getLongitude())
+                    - farthest.getRadius();
+            refreshLatitude = latitude;
+            refreshLongitude = longitude;
+            double leftOut = GeoMath.distance(latitude, longitude, firstLeftOut.getLatitude(),
+                    firstLeftOut.getLongitude()) - firstLeftOut.getRadius();
+            refreshRadius = (float) Math.max(SMALLEST_REFRESH_RADIUS_IN_METERS,
+                    Math.max(reach, Math.min(MIN_REFRESH_RADIUS_IN_METERS, leftOut)));
+        }
+        registered = next;
+        return new Update(added, removed, refreshRadius >= 0);
+    }
+
+    /** Forgets the registered set, e.g. after the platform dropped all geofences. */
+    public void reset() {
+        registered = new HashMap<>();
+        refreshRadius = -1;
+    }
+
+    /** The registered target with the given request id, or null. */
+    public Target getTarget(String requestId) {
+        return registered.get(requestId);
+    }
+
+    public int getRegisteredCount() {
+        return registered.size();
+    }
+
+    public double getRefreshLatitude() {
+        return refreshLatitude;
+    }
+
+    public double getRefreshLongitude() {
+        return refreshLongitude;
+    }
+
+    /** Radius of the refresh fence, negative when there is none. */
+    public float getRefreshRadius() {
+        return refreshRadius;
+    }
+
+    /**
+     * Stable id of a target across target list refreshes, short enough for the platform's
+     * 100 character limit in practice.
+     */
+    public static String requestId(Target target) {
+        return target.getName() + '@' + target.getLatitude() + ',' + target.getLongitude();
+    }
+
+    /** Target name from a {@link #requestId}, which stays readable after a restart. */
+    public static String targetName(String requestId) {
+        int at = requestId.lastIndexOf('@');
+        return at >= 0 ? requestId.substring(0, at) : requestId;
+    }
+}
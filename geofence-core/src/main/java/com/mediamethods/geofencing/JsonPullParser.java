@@ -0,0 +1,509 @@
+package com.mediamethods.geofencing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for JSON, reading straight from a stream.
+ *
+ * Besides the usual token API it can match field names against a fixed list without
+ * allocating, parse numbers that the service sends either as numbers or as strings, and
+ * open a string value as a nested document ({@link #openString()}). The WCF endpoints wrap
+ * their payloads in string-encoded JSON, so the nested document is parsed while it is
+ * being unescaped instead of being copied into a String and parsed again.
+ *
+ * android.util.JsonReader is not used because it needs API 11.
+ */
+public class JsonPullParser implements Closeable {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Reader in;
+    private final char[] buffer = new char[4096];
+    private int pos;
+    private int limit;
+
+    private int[] stack = new int[32];
+    private int stackSize = 1;
+    private Token peeked;
+
+    // scratch space for names, numbers and strings
+    private char[] chars = new char[64];
+    private int charCount;
+
+    public JsonPullParser(Reader in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+
+        int c;
+        switch (stack[stackSize - 1]) {
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                return peeked = valueToken(nextNonWhitespace());
+            case NONEMPTY_DOCUMENT:
+                c = nextNonWhitespace();
+                if (c != -1) {
+                    throw syntaxError("trailing data");
+                }
+                return peeked = Token.END_DOCUMENT;
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                return peeked = c == ']' ? Token.END_ARRAY : valueToken(c);
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                expect(c, ',');
+                return peeked = valueToken(nextNonWhitespace());
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                }
+                if (stack[stackSize - 1] == NONEMPTY_OBJECT) {
+                    expect(c, ',');
+                    c = nextNonWhitespace();
+                }
+                expect(c, '"');
+                stack[stackSize - 1] = DANGLING_NAME;
+                return peeked = Token.NAME;
+            case DANGLING_NAME:
+                expect(nextNonWhitespace(), ':');
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                return peeked = valueToken(nextNonWhitespace());
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        consume(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        consume(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    public void beginArray() throws IOException {
+        consume(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        consume(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    public String nextName() throws IOException {
+        consume(Token.NAME);
+        readString();
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Reads the next name and returns its position in {@code candidates}, or -1 when it is
+     * none of them. Does not allocate.
+     */
+    public int nextName(String[] candidates) throws IOException {
+        consume(Token.NAME);
+        readString();
+        for (int i = 0; i < candidates.length; i++) {
+            if (matches(candidates[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            consume(Token.STRING);
+            readString();
+        } else if (token == Token.NUMBER || token == Token.BOOLEAN) {
+            consume(token);
+            readLiteral();
+        } else {
+            throw syntaxError("expected a string but was " + token);
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Reads a number, accepting both {@code 1.5} and {@code "1.5"}.
+     */
+    public double nextDouble() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            consume(Token.STRING);
+            readString();
+        } else {
+            consume(Token.NUMBER);
+            readLiteral();
+        }
+        return parseDouble();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        consume(Token.BOOLEAN);
+        readLiteral();
+        return matches("true");
+    }
+
+    public void nextNull() throws IOException {
+        consume(Token.NULL);
+        readLiteral();
+    }
+
+    public void skipValue() throws IOException {
+        Token token = peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    consume(Token.NAME);
+                    skipString();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                consume(Token.STRING);
+                skipString();
+                break;
+            case NUMBER:
+            case BOOLEAN:
+            case NULL:
+                consume(token);
+                readLiteral();
+                break;
+            default:
+                throw syntaxError("cannot skip " + token);
+        }
+    }
+
+    /**
+     * Returns a parser over the JSON document encoded in the next string value. It reads
+     * from this parser's stream as it goes; close it before continuing with this parser.
+     */
+    public JsonPullParser openString() throws IOException {
+        consume(Token.STRING);
+        return new JsonPullParser(new StringContentReader());
+    }
+
+    /**
+     * Same as {@link #openString()} when the next value is a string, otherwise this parser.
+     * Lets callers accept both {"payload": [...]} and {"payload": "[...]"}.
+     */
+    public JsonPullParser openValue() throws IOException {
+        return peek() == Token.STRING ? openString() : this;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void consume(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int state) {
+        if (stackSize == stack.length) {
+            int[] grown = new int[stackSize * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = state;
+    }
+
+    private Token valueToken(int c) throws IOException {
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                pos--;
+                return Token.BOOLEAN;
+            case 'n':
+                pos--;
+                return Token.NULL;
+            case -1:
+                throw syntaxError("unexpected end of input");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return Token.NUMBER;
+                }
+                throw syntaxError("unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private boolean matches(String candidate) {
+        if (candidate.length() != charCount) {
+            return false;
+        }
+        for (int i = 0; i < charCount; i++) {
+            if (candidate.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readString() throws IOException {
+        charCount = 0;
+        int c;
+        while ((c = readStringChar()) != -1) {
+            appendChar((char) c);
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (readStringChar() != -1) {
+            // discard
+        }
+    }
+
+    private void readLiteral() throws IOException {
+        charCount = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                return;
+            }
+            if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                pos--;
+                return;
+            }
+            appendChar((char) c);
+        }
+    }
+
+    /**
+     * Next unescaped character of the current string, or -1 after its closing quote.
+     */
+    private int readStringChar() throws IOException {
+        int c = read();
+        if (c == '"') {
+            return -1;
+        }
+        if (c == -1) {
+            throw syntaxError("unterminated string");
+        }
+        if (c != '\\') {
+            return c;
+        }
+        c = read();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("bad unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return value;
+            case -1:
+                throw syntaxError("unterminated string");
+            default:
+                // \" \\ \/ and anything else stand for themselves
+                return c;
+        }
+    }
+
+    private double parseDouble() throws IOException {
+        int i = 0;
+        int end = charCount;
+        while (i < end && chars[i] == ' ') {
+            i++;
+        }
+        while (end > i && chars[end - 1] == ' ') {
+            end--;
+        }
+        if (i == end) {
+            throw syntaxError("empty number");
+        }
+        int start = i;
+
+        // fast path for plain decimals with up to 15 significant digits, exact in a double
+        boolean negative = chars[i] == '-';
+        if (negative || chars[i] == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        boolean dot = false;
+        boolean any = false;
+        for (int j = i; j < end; j++) {
+            char c = chars[j];
+            if (c >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                if (digits > 15 || fraction >= POW10.length - 1) {
+                    return slowParseDouble(start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (dot) {
+                    fraction++;
+                }
+                any = true;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                // exponents and anything unusual
+                return slowParseDouble(start, end);
+            }
+        }
+        if (!any) {
+            throw syntaxError("bad number");
+        }
+        double value = mantissa / POW10[fraction];
+        return negative ? -value : value;
+    }
+
+    private double slowParseDouble(int start, int end) throws IOException {
+        try {
+            return Double.parseDouble(new String(chars, start, end - start));
+        } catch (NumberFormatException ex) {
+            throw syntaxError("bad number " + new String(chars, start, end - start));
+        }
+    }
+
+    private void appendChar(char c) {
+        if (charCount == chars.length) {
+            char[] grown = new char[chars.length * 2];
+            System.arraycopy(chars, 0, grown, 0, charCount);
+            chars = grown;
+        }
+        chars[charCount++] = c;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+    }
+
+    private void expect(int c, char expected) throws IOException {
+        if (c != expected) {
+            throw syntaxError("expected '" + expected + "'");
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+
+    /**
+     * Reader over the unescaped content of the string value this parser is positioned in.
+     */
+    private class StringContentReader extends Reader {
+
+        private boolean done;
+
+        @Override
+        public int read(char[] target, int offset, int count) throws IOException {
+            if (done) {
+                return -1;
+            }
+            int n = 0;
+            while (n < count) {
+                int c = readStringChar();
+                if (c == -1) {
+                    done = true;
+                    break;
+                }
+                target[offset + n++] = (char) c;
+            }
+            return n == 0 && done ? -1 : n;
+        }
+
+        /**
+         * Skips whatever the nested parser did not read, leaving the outer parser after the
+         * closing quote.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                skipString();
+                done = true;
+            }
+        }
+    }
+}
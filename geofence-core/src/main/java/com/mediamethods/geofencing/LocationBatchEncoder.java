@@ -0,0 +1,231 @@
+package com.mediamethods.geofencing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of an UpdateLocation batch, sent as {@link #CONTENT_TYPE}.
+ *
+ * <pre>
+ * version     byte (1)
+ * id length   varint, followed by the UTF-8 user id
+ * count       varint
+ * per fix     latitude, longitude  zigzag varints of 1e-7 degrees
+ *             time                 zigzag varint of milliseconds
+ * report      optional: varint length, followed by a UTF-8 metrics report; length 0 when
+ *             there is no report but transitions follow
+ * transitions optional: varint count, then per transition
+ *             type                 byte, {@link Transition.Type} ordinal
+ *             target name          varint length, followed by UTF-8
+ *             time                 zigzag varint of milliseconds, delta to the previous one
+ * </pre>
+ *
+ * The first fix is absolute; every later value is the difference to the previous fix, so a
+ * typical fix takes 6 to 9 bytes instead of some 70 bytes of JSON.
+ */
+public class LocationBatchEncoder {
+
+    public static final String CONTENT_TYPE = "application/x-location-batch";
+
+    static final int VERSION = 1;
+
+    // 1e-7 degrees is about 1 cm, well below any GPS accuracy
+    private static final double SCALE = 1e7;
+
+    private LocationBatchEncoder() {
+    }
+
+    public static byte[] encode(String userId, List<LocationFix> batch) throws IOException {
+        return encode(userId, batch, null);
+    }
+
+    /**
+     * @param report metrics report appended after the fixes, or null
+     */
+    public static byte[] encode(String userId, List<LocationFix> batch, String report) throws IOException {
+        return encode(userId, batch, report, null);
+    }
+
+    /**
+     * @param report      metrics report appended after the fixes, or null
+     * @param transitions geofence transitions detected on the device, or null
+     */
+    public static byte[] encode(String userId, List<LocationFix> batch, String report,
+                                List<Transition> transitions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + userId.length() + batch.size() * 9);
+        out.write(VERSION);
+
+        byte[] id = userId.getBytes("UTF-8");
+        writeVarint(out, id.length);
+        out.write(id);
+
+        writeVarint(out, batch.size());
+        long lastLatitude = 0;
+        long lastLongitude = 0;
+        long lastTime = 0;
+        for (LocationFix fix : batch) {
+            long latitude = Math.round(fix.getLatitude() * SCALE);
+            long longitude = Math.round(fix.getLongitude() * SCALE);
+            writeVarint(out, zigzag(latitude - lastLatitude));
+            writeVarint(out, zigzag(longitude - lastLongitude));
+            writeVarint(out, zigzag(fix.getTime() - lastTime));
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            lastTime = fix.getTime();
+        }
+
+        boolean hasTransitions = transitions != null && !transitions.isEmpty();
+        if (report != null || hasTransitions) {
+            byte[] bytes = report != null ? report.getBytes("UTF-8") : new byte[0];
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        if (hasTransitions) {
+            writeVarint(out, transitions.size());
+            long lastTransitionTime = 0;
+            for (Transition transition : transitions) {
+                out.write(transition.getType().ordinal());
+                byte[] name = transition.getTargetName().getBytes("UTF-8");
+                writeVarint(out, name.length);
+                out.write(name);
+                writeVarint(out, zigzag(transition.getTime() - lastTransitionTime));
+                lastTransitionTime = transition.getTime();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a batch produced by {@link #encode}. Accuracy, speed and bearing are not part of
+     * the encoding and come back as 0.
+     */
+    public static Batch decode(byte[] data) throws IOException {
+        int[] position = {0};
+        int version = readByte(data, position);
+        if (version != VERSION) {
+            throw new IOException("Unsupported location batch version " + version);
+        }
+
+        String userId = readString(data, position, (int) readVarint(data, position));
+
+        int count = (int) readVarint(data, position);
+        List<LocationFix> fixes = new ArrayList<>(Math.min(count, data.length));
+        long latitude = 0;
+        long longitude = 0;
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            latitude += unzigzag(readVarint(data, position));
+            longitude += unzigzag(readVarint(data, position));
+            time += unzigzag(readVarint(data, position));
+            fixes.add(new LocationFix(latitude / SCALE, longitude / SCALE, 0, 0, 0, time));
+        }
+
+        String report = null;
+        if (position[0] < data.length) {
+            int reportLength = (int) readVarint(data, position);
+            if (reportLength > 0) {
+                report = readString(data, position, reportLength);
+            }
+        }
+
+        List<Transition> transitions = new ArrayList<>();
+        if (position[0] < data.length) {
+            int transitionCount = (int) readVarint(data, position);
+            Transition.Type[] types = Transition.Type.values();
+            long transitionTime = 0;
+            for (int i = 0; i < transitionCount; i++) {
+                int type = readByte(data, position);
+                if (type >= types.length) {
+                    throw new IOException("Unknown transition type " + type);
+                }
+                String name = readString(data, position, (int) readVarint(data, position));
+                transitionTime += unzigzag(readVarint(data, position));
+                transitions.add(new Transition(types[type], name, transitionTime));
+            }
+        }
+        return new Batch(userId, fixes, report, transitions);
+    }
+
+    private static String readString(byte[] data, int[] position, int length) throws IOException {
+        if (length < 0 || position[0] + length > data.length) {
+            throw new EOFException("Truncated location batch");
+        }
+        String value = new String(data, position[0], length, "UTF-8");
+        position[0] += length;
+        return value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(data, position);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in location batch");
+    }
+
+    private static int readByte(byte[] data, int[] position) throws IOException {
+        if (position[0] >= data.length) {
+            throw new EOFException("Truncated location batch");
+        }
+        return data[position[0]++] & 0xFF;
+    }
+
+    /**
+     * A decoded batch.
+     */
+    public static class Batch {
+
+        private final String userId;
+        private final List<LocationFix> fixes;
+        private final String report;
+        private final List<Transition> transitions;
+
+        Batch(String userId, List<LocationFix> fixes, String report, List<Transition> transitions) {
+            this.userId = userId;
+            this.fixes = fixes;
+            this.report = report;
+            this.transitions = transitions;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public List<LocationFix> getFixes() {
+            return fixes;
+        }
+
+        /** Metrics report sent with the batch, or null. */
+        public String getReport() {
+            return report;
+        }
+
+        /** Transitions sent with the batch, empty when there were none. */
+        public List<Transition> getTransitions() {
+            return transitions;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded queue of fixes waiting to be uploaded. Decides when a batch is due and what to
+ * drop when the queue is full. Not thread safe; {@link LocationUploader} guards it.
+ *
+ * Times passed in are monotonic milliseconds so the batcher can be driven by a fake clock.
+ */
+public class LocationBatcher {
+
+    public enum OverflowPolicy {
+        /** Evict the oldest waiting fix to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard everything waiting and keep only the new fix. */
+        KEEP_LATEST
+    }
+
+    private final int capacity;
+    private final int batchSize;
+    private long flushIntervalMillis;
+    private final long coalesceMillis;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ArrayDeque<LocationFix> pending = new ArrayDeque<>();
+    private long oldestEnqueuedAt;
+    // time of the fix that opened the coalescing window, and whether the newest waiting fix
+    // must be sent as it is
+    private long windowStart;
+    private boolean lastIsKey;
+
+    private long dropped;
+    private long coalesced;
+
+    /**
+     * @param capacity            maximum number of fixes waiting at once
+     * @param batchSize           maximum number of fixes per upload
+     * @param flushIntervalMillis longest time a fix may wait before a partial batch is sent
+     * @param coalesceMillis      a fix less than this after the one that opened the window replaces
+     *                            the last waiting fix, so at most one fix per window is sent
+     */
+    public LocationBatcher(int capacity, int batchSize, long flushIntervalMillis, long coalesceMillis,
+                           OverflowPolicy overflowPolicy) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("capacity and batchSize must be positive");
+        }
+        this.capacity = capacity;
+        this.batchSize = Math.min(batchSize, capacity);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.coalesceMillis = coalesceMillis;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Changes how long a fix may wait, e.g. when the device moves between Wi-Fi and cellular.
+     * Fixes already waiting are held to the new deadline.
+     */
+    public void setFlushInterval(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public long getFlushInterval() {
+        return flushIntervalMillis;
+    }
+
+    public void add(LocationFix fix, long now) {
+        add(fix, now, false);
+    }
+
+    /**
+     * @param key whether the fix must be sent as it is, such as the one that confirmed a
+     *            transition; it neither replaces nor is replaced by a neighbour
+     */
+    public void add(LocationFix fix, long now, boolean key) {
+        LocationFix last = pending.peekLast();
+        // the window stays where it opened, so a steady stream cannot keep pushing it on
+        if (!key && !lastIsKey && last != null && fix.getTime() - windowStart < coalesceMillis) {
+            pending.pollLast();
+            pending.addLast(fix);
+            coalesced++;
+            return;
+        }
+
+        if (pending.size() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.KEEP_LATEST) {
+                dropped += pending.size();
+                pending.clear();
+            } else {
+                pending.pollFirst();
+                dropped++;
+            }
+        }
+
+        if (pending.isEmpty()) {
+            oldestEnqueuedAt = now;
+        }
+        pending.addLast(fix);
+        windowStart = fix.getTime();
+        lastIsKey = key;
+    }
+
+    public boolean isFlushDue(long now) {
+        return pending.size() >= batchSize
+                || (!pending.isEmpty() && now - oldestEnqueuedAt >= flushIntervalMillis);
+    }
+
+    /**
+     * Milliseconds until {@link #isFlushDue} becomes true without further fixes, or -1 when
+     * nothing is waiting.
+     */
+    public long millisUntilFlush(long now) {
+        if (pending.isEmpty()) {
+            return -1;
+        }
+        return isFlushDue(now) ? 0 : oldestEnqueuedAt + flushIntervalMillis - now;
+    }
+
+    /**
+     * Removes and returns up to one batch of the oldest waiting fixes.
+     */
+    public List<LocationFix> drainBatch() {
+        int count = Math.min(batchSize, pending.size());
+        List<LocationFix> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(pending.pollFirst());
+        }
+        // anything left keeps the old deadline, it has already waited that long
+        return batch;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /** Number of fixes discarded by the overflow policy. */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /** Number of fixes replaced by a newer fix before they were sent. */
+    public long getCoalesced() {
+        return coalesced;
+    }
+}
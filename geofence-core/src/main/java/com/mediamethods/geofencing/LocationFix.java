@@ -0,0 +1,52 @@
+package com.mediamethods.geofencing;
+
+/**
+ * Immutable copy of a location fix, detached from android.location.Location so it can be
+ * queued, batched and encoded off the main thread.
+ */
+public class LocationFix {
+
+    private final double latitude;
+    private final double longitude;
+    private final float accuracy;
+    private final float speed;
+    private final float bearing;
+    private final long time;
+
+    public LocationFix(double latitude, double longitude, float accuracy, float speed, float bearing, long time) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.bearing = bearing;
+        this.time = time;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /** Horizontal accuracy in metres, 0 when unknown. */
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /** Ground speed in metres per second, 0 when unknown. */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /** Bearing in degrees east of true north, 0 when unknown. */
+    public float getBearing() {
+        return bearing;
+    }
+
+    /** UTC time of the fix in milliseconds since the epoch. */
+    public long getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,193 @@
+package com.mediamethods.geofencing;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process counters and latency histograms for the location pipeline.
+ *
+ * Counters and histograms are registered by name once and then updated with single atomic
+ * operations, so recording is cheap enough for every fix. Everything is cumulative since
+ * process start.
+ */
+public class Metrics {
+
+    // counters
+    public static final String FIXES_RECEIVED = "fixes.received";
+    public static final String FIXES_ACCEPTED = "fixes.accepted";
+    public static final String FIXES_FILTERED = "fixes.filtered";
+    public static final String FIXES_SIMPLIFIED = "fixes.simplified";
+    public static final String GPS_INTERVAL_CHANGES = "gps.interval_changes";
+    public static final String UPLOAD_WAKEUPS = "upload.wakeups";
+    public static final String UPLOAD_PIGGYBACKED = "upload.piggybacked";
+    public static final String UPLOAD_FAILURES = "upload.failures";
+    public static final String UPLOAD_RETRIES = "upload.retries";
+    public static final String UPLOAD_REJECTED = "upload.rejected";
+    public static final String GEOFENCE_TRANSITIONS = "geofence.transitions";
+    public static final String TARGET_TILES_FETCHED = "targets.tiles_fetched";
+    public static final String TARGET_TILES_EVICTED = "targets.tiles_evicted";
+
+    // histograms
+    public static final String UPLOAD_RTT_MILLIS = "upload.rtt_ms";
+    public static final String UPLOAD_PARSE_MICROS = "upload.parse_us";
+    public static final String UPLOAD_QUEUE_DEPTH = "upload.queue";
+    public static final String TARGETS_DECODE_MILLIS = "targets.decode_ms";
+    public static final String TARGETS_LOAD_MILLIS = "targets.load_ms";
+    public static final String GEOFENCE_ALERT_MILLIS = "geofence.alert_ms";
+
+    private static Metrics sInstance;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, AtomicLong> counters = new LinkedHashMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    public static synchronized Metrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new Metrics();
+        }
+        return sInstance;
+    }
+
+    Metrics() {
+    }
+
+    /**
+     * Returns the counter of the given name, creating it on first use. Callers on hot paths
+     * should keep the returned reference.
+     */
+    public synchronized AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Human readable dump, one metric per line, for dumpsys.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        long uptimeSeconds = Math.max(1, (System.nanoTime() - startNanos) / 1000000000L);
+        writer.println("uptime " + uptimeSeconds + " s");
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            long value = entry.getValue().get();
+            writer.println(entry.getKey() + " " + value + " (" + String.format(Locale.US, "%.3f", (double) value / uptimeSeconds) + "/s)");
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            writer.println(entry.getKey() + " count=" + histogram.getCount()
+                    + " p50=" + histogram.percentile(50)
+                    + " p90=" + histogram.percentile(90)
+                    + " p99=" + histogram.percentile(99)
+                    + " max=" + histogram.getMax());
+        }
+    }
+
+    /**
+     * Compact single-line report for uploading, e.g.
+     * {@code up=600 fixes.received=1200 upload.rtt_ms=120/340/910/15}, where histograms are
+     * p50/p90/p99/count.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("up=").append((System.nanoTime() - startNanos) / 1000000000L);
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            report.append(' ').append(entry.getKey()).append('=').append(entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            report.append(' ').append(entry.getKey()).append('=')
+                    .append(histogram.percentile(50)).append('/')
+                    .append(histogram.percentile(90)).append('/')
+                    .append(histogram.percentile(99)).append('/')
+                    .append(histogram.getCount());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Log-linear histogram of non-negative values in the style of HdrHistogram: values below
+     * {@code 2^SUB_BUCKET_BITS} are counted exactly, larger ones in buckets of about 3%
+     * relative width. Values above {@link #MAX_VALUE} are counted as {@code MAX_VALUE}.
+     */
+    public static class Histogram {
+
+        static final int SUB_BUCKET_BITS = 5;
+        static final long MAX_VALUE = (1L << 40) - 1;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.min(Math.max(value, 0), MAX_VALUE);
+            buckets.incrementAndGet(bucketIndex(value));
+            count.incrementAndGet();
+
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, 0 when empty.
+         */
+        public long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        static long upperBound(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long mantissa = index - shift * SUB_BUCKETS;
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+}
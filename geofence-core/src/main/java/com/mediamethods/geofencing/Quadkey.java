@@ -0,0 +1,125 @@
+package com.mediamethods.geofencing;
+
+import java.util.Collection;
+
+/**
+ * Tiles of the Web Mercator grid used by map services, and their quadkeys: one digit 0-3 per
+ * zoom level, so a tile's key starts with the keys of every tile containing it.
+ *
+ * A tile is passed around as {@code x << 32 | y} at a zoom the caller keeps; the quadkey
+ * string is only needed on the wire.
+ */
+public final class Quadkey {
+
+    public static final int MAX_ZOOM = 23;
+
+    // Web Mercator stops short of the poles
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private Quadkey() {
+    }
+
+    /** The tile containing the point. */
+    public static long tile(double latitude, double longitude, int zoom) {
+        return pack(tileX(longitude, zoom), tileY(latitude, zoom));
+    }
+
+    public static String encode(long tile, int zoom) {
+        int x = x(tile);
+        int y = y(tile);
+        char[] digits = new char[zoom];
+        for (int i = 0; i < zoom; i++) {
+            int mask = 1 << (zoom - 1 - i);
+            digits[i] = (char) ('0' + ((x & mask) != 0 ? 1 : 0) + ((y & mask) != 0 ? 2 : 0));
+        }
+        return new String(digits);
+    }
+
+    /**
+     * The tile of a quadkey, at the zoom of its length.
+     *
+     * @throws IllegalArgumentException when it is not a quadkey
+     */
+    public static long decode(String quadkey) {
+        if (quadkey.length() == 0 || quadkey.length() > MAX_ZOOM) {
+            throw new IllegalArgumentException("Bad quadkey length " + quadkey.length());
+        }
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < quadkey.length(); i++) {
+            int digit = quadkey.charAt(i) - '0';
+            if (digit < 0 || digit > 3) {
+                throw new IllegalArgumentException("Bad quadkey " + quadkey);
+            }
+            x = (x << 1) | (digit & 1);
+            y = (y << 1) | (digit >> 1);
+        }
+        return pack(x, y);
+    }
+
+    /** {minLatitude, minLongitude, maxLatitude, maxLongitude} of the tile. */
+    public static double[] bounds(long tile, int zoom) {
+        int x = x(tile);
+        int y = y(tile);
+        return new double[]{latitude(y + 1, zoom), longitude(x, zoom), latitude(y, zoom), longitude(x + 1, zoom)};
+    }
+
+    /**
+     * Adds the tiles overlapping the box to {@code out}, unless there are more than
+     * {@code max}. The box must not cross the antimeridian.
+     *
+     * @return false when the box needs more than {@code max} tiles and nothing was added
+     */
+    public static boolean covering(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+                                   int zoom, int max, Collection<Long> out) {
+        int xLo = tileX(minLongitude, zoom);
+        int xHi = tileX(maxLongitude, zoom);
+        // y grows southwards
+        int yLo = tileY(maxLatitude, zoom);
+        int yHi = tileY(minLatitude, zoom);
+        if ((long) (xHi - xLo + 1) * (yHi - yLo + 1) > max) {
+            return false;
+        }
+        for (int y = yLo; y <= yHi; y++) {
+            for (int x = xLo; x <= xHi; x++) {
+                out.add(pack(x, y));
+            }
+        }
+        return true;
+    }
+
+    private static int tileX(double longitude, int zoom) {
+        int n = 1 << zoom;
+        int x = (int) Math.floor((longitude + 180) / 360 * n);
+        return Math.min(Math.max(x, 0), n - 1);
+    }
+
+    private static int tileY(double latitude, int zoom) {
+        int n = 1 << zoom;
+        double phi = Math.toRadians(Math.min(Math.max(latitude, -MAX_LATITUDE), MAX_LATITUDE));
+        double mercator = Math.log(Math.tan(phi) + 1 / Math.cos(phi));
+        int y = (int) Math.floor((1 - mercator / Math.PI) / 2 * n);
+        return Math.min(Math.max(y, 0), n - 1);
+    }
+
+    private static double longitude(int x, int zoom) {
+        return (double) x / (1 << zoom) * 360 - 180;
+    }
+
+    private static double latitude(int y, int zoom) {
+        double mercator = Math.PI * (1 - 2.0 * y / (1 << zoom));
+        return Math.toDegrees(Math.atan(Math.sinh(mercator)));
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int x(long tile) {
+        return (int) (tile >>> 32);
+    }
+
+    private static int y(long tile) {
+        return (int) tile;
+    }
+}
@@ -0,0 +1,154 @@
+package com.mediamethods.geofencing;
+
+/**
+ * Chooses how often, and how precisely, to ask for location fixes.
+ *
+ * The decision is based on the estimated time until the device can reach the nearest target
+ * boundary, from the distance to it and the speed towards it. The estimate maps onto a small
+ * ladder of tiers. Moving to a faster tier happens at once, but moving to a slower one needs
+ * the estimate to clear the tier limit by a margin, so noise around a limit does not make the
+ * request flap. Not thread-safe.
+ */
+public class SamplingScheduler {
+
+    public enum Priority {
+        HIGH_ACCURACY,
+        BALANCED_POWER_ACCURACY,
+        LOW_POWER,
+        NO_POWER
+    }
+
+    /**
+     * Used while the platform watches the geofences: no fixes of our own, only those other
+     * apps request, at most every 10 s.
+     */
+    public static final Plan PASSIVE = new Plan(300000, 10000, Priority.NO_POWER);
+
+    /**
+     * One rung of the ladder: used while the time to the boundary is below {@code maxSeconds}.
+     */
+    private static final Tier[] TIERS = {
+            new Tier(30, 1000, Priority.HIGH_ACCURACY),
+            new Tier(120, 5000, Priority.HIGH_ACCURACY),
+            new Tier(600, 30000, Priority.BALANCED_POWER_ACCURACY),
+            new Tier(3600, 120000, Priority.BALANCED_POWER_ACCURACY),
+            new Tier(Double.POSITIVE_INFINITY, 300000, Priority.LOW_POWER)
+    };
+
+    // tier used before the first estimate, matching the old fixed 5 s request
+    private static final int INITIAL_TIER = 1;
+
+    // a slower tier is only taken when the estimate is this much above the current tier's limit
+    static final double HYSTERESIS = 0.3;
+
+    // lowest speed assumed towards a boundary, a brisk walk; the device may start moving any time
+    static final double MIN_CLOSING_SPEED = 1.5;
+
+    // share of the ground speed assumed towards the boundary when heading away, allowing a turn
+    static final double TURN_ALLOWANCE = 0.5;
+
+    private int mTier = INITIAL_TIER;
+
+    public Plan getPlan() {
+        return TIERS[mTier].plan;
+    }
+
+    /**
+     * Re-evaluates the plan for a new fix and returns it.
+     *
+     * @param boundaryDistance distance to the nearest target edge in metres, negative inside
+     * @param accuracy         horizontal accuracy of the fix in metres, 0 when unknown
+     * @param speed            ground speed in metres per second, 0 when unknown
+     * @param closingSpeed     speed component towards the boundary, NaN when the heading is unknown
+     */
+    public Plan update(double boundaryDistance, double accuracy, double speed, double closingSpeed) {
+        double seconds = timeToBoundary(boundaryDistance, accuracy, speed, closingSpeed);
+
+        int tier = tierFor(seconds);
+        if (tier > mTier) {
+            // slowing down: only as far as the estimate clears the limits with some margin
+            tier = Math.max(mTier, tierFor(seconds / (1 + HYSTERESIS)));
+        }
+        mTier = tier;
+        return getPlan();
+    }
+
+    /**
+     * Conservative estimate of the seconds until the device can cross the nearest boundary,
+     * entering it from outside or leaving it from inside.
+     */
+    static double timeToBoundary(double boundaryDistance, double accuracy, double speed, double closingSpeed) {
+        double distance = Math.max(0, Math.abs(boundaryDistance) - accuracy);
+
+        double towards = Double.isNaN(closingSpeed) ? speed : closingSpeed;
+        towards = Math.max(towards, speed * TURN_ALLOWANCE);
+        towards = Math.max(towards, MIN_CLOSING_SPEED);
+        return distance / towards;
+    }
+
+    /**
+     * Component of the velocity towards the boundary of a circular target. For a polygon or
+     * corridor, pass the bearing to the nearest point of its outline and {@code inside} false.
+     *
+     * @param heading         direction of travel in degrees
+     * @param bearingToCentre direction from the device to the target centre in degrees
+     * @param inside          whether the device is inside the target, when the boundary lies away from the centre
+     */
+    static double closingSpeed(double speed, double heading, double bearingToCentre, boolean inside) {
+        double towardsCentre = speed * Math.cos(Math.toRadians(heading - bearingToCentre));
+        return inside ? -towardsCentre : towardsCentre;
+    }
+
+    private static int tierFor(double seconds) {
+        for (int i = 0; i < TIERS.length; i++) {
+            if (seconds < TIERS[i].maxSeconds) {
+                return i;
+            }
+        }
+        return TIERS.length - 1;
+    }
+
+    private static class Tier {
+
+        final double maxSeconds;
+        final Plan plan;
+
+        Tier(double maxSeconds, long intervalMillis, Priority priority) {
+            this.maxSeconds = maxSeconds;
+            this.plan = new Plan(intervalMillis, intervalMillis / 2, priority);
+        }
+    }
+
+    /**
+     * Location request settings for one tier.
+     */
+    public static class Plan {
+
+        private final long intervalMillis;
+        private final long fastestIntervalMillis;
+        private final Priority priority;
+
+        Plan(long intervalMillis, long fastestIntervalMillis, Priority priority) {
+            this.intervalMillis = intervalMillis;
+            this.fastestIntervalMillis = fastestIntervalMillis;
+            this.priority = priority;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        public long getFastestIntervalMillis() {
+            return fastestIntervalMillis;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public String toString() {
+            return priority + " every " + intervalMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.mediamethods.geofencing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Milestones of one cold start, in milliseconds since the process began.
+ *
+ * The clock starts at the first {@link #getInstance()}, which the Application makes first
+ * thing in onCreate. Each phase is recorded once, into a {@link Metrics} histogram named
+ * startup.&lt;phase&gt;_ms, so the timings show in dumpsys and ride along with the metrics report.
+ */
+public class StartupTrace {
+
+    public static final String SERVICE_CREATED = "service_created";
+    public static final String TARGETS_CACHED = "targets_cached";
+    public static final String TARGETS_FRESH = "targets_fresh";
+    public static final String MAP_READY = "map_ready";
+    public static final String TARGETS_DRAWN = "targets_drawn";
+    public static final String FIRST_FIX = "first_fix";
+    public static final String DEFERRED_INIT = "deferred_init";
+
+    private static StartupTrace sInstance;
+
+    private final Metrics metrics;
+    private final long startNanos;
+    private final Map<String, Long> marks = new LinkedHashMap<>();
+
+    public static synchronized StartupTrace getInstance() {
+        if (sInstance == null) {
+            sInstance = new StartupTrace(Metrics.getInstance(), System.nanoTime());
+        }
+        return sInstance;
+    }
+
+    StartupTrace(Metrics metrics, long startNanos) {
+        this.metrics = metrics;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Records that the phase was reached, unless it was before.
+     *
+     * @return milliseconds since the start, or -1 when the phase was already recorded
+     */
+    public long mark(String phase) {
+        return mark(phase, System.nanoTime());
+    }
+
+    synchronized long mark(String phase, long nowNanos) {
+        if (marks.containsKey(phase)) {
+            return -1;
+        }
+        long millis = (nowNanos - startNanos) / 1000000;
+        marks.put(phase, millis);
+        metrics.histogram("startup." + phase + "_ms").record(millis);
+        return millis;
+    }
+
+    /** Phases recorded so far, in the order they were reached. */
+    public synchronized Map<String, Long> getMarks() {
+        return new LinkedHashMap<>(marks);
+    }
+}
@@ -0,0 +1,83 @@
+package com.mediamethods.geofencing;
+
+/**
+ * A geofence target as returned by GetAllTargets: a circle, or a polygon or corridor
+ * {@link FenceShape}. For a shape, the position and radius are those of its bounding circle,
+ * so code that only knows circles stays conservative; {@link #boundaryDistance} is exact.
+ *
+ * Equal by value: a {@link TargetIndex} creates a new Target each time one is looked up.
+ */
+public class Target {
+
+    private final String name;
+    private final double latitude;
+    private final double longitude;
+    private final float radius;
+    private final FenceShape shape;
+
+    public Target(String name, double latitude, double longitude, float radius) {
+        this.name = name;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+        this.shape = null;
+    }
+
+    public Target(String name, FenceShape shape) {
+        this.name = name;
+        this.latitude = shape.getCentreLatitude();
+        this.longitude = shape.getCentreLongitude();
+        this.radius = shape.getBoundingRadius();
+        this.shape = shape;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    /** The polygon or corridor, null for a circle. */
+    public FenceShape getShape() {
+        return shape;
+    }
+
+    /**
+     * Distance from the point to the edge of the target in metres, negative inside.
+     */
+    public double boundaryDistance(double latitude, double longitude) {
+        if (shape != null) {
+            return shape.boundaryDistance(latitude, longitude);
+        }
+        return GeoMath.distance(latitude, longitude, this.latitude, this.longitude) - radius;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Target)) {
+            return false;
+        }
+        Target other = (Target) o;
+        return latitude == other.latitude && longitude == other.longitude && radius == other.radius
+                && name.equals(other.name) && (shape == null ? other.shape == null : shape.equals(other.shape));
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(latitude) * 31 + Double.doubleToLongBits(longitude);
+        return name.hashCode() * 31 + (int) (bits ^ (bits >>> 32));
+    }
+}
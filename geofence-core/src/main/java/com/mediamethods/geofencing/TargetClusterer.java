@@ -0,0 +1,104 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid-based clustering of targets for low zoom levels. Targets falling into the same
+ * square cell are merged into one cluster placed at their mean position. Cells are aligned
+ * to a fixed grid, so a cluster keeps its identity while the camera pans.
+ */
+public class TargetClusterer {
+
+    private TargetClusterer() {
+    }
+
+    /**
+     * Cell size in degrees that gives clusters roughly {@code cellPixels} apart on a web
+     * mercator map at the given zoom level.
+     */
+    public static double cellDegreesForZoom(float zoom, int cellPixels) {
+        return 360.0 / (256 * Math.pow(2, zoom)) * cellPixels;
+    }
+
+    public static List<Cluster> cluster(List<Target> targets, double cellDegrees) {
+        Map<Long, Cluster> cells = new LinkedHashMap<>();
+        for (Target target : targets) {
+            long row = (long) Math.floor((target.getLatitude() + 90) / cellDegrees);
+            long col = (long) Math.floor((target.getLongitude() + 180) / cellDegrees);
+            Long key = (row << 32) | col;
+
+            Cluster cluster = cells.get(key);
+            if (cluster == null) {
+                cluster = new Cluster(key, cellDegrees);
+                cells.put(key, cluster);
+            }
+            cluster.add(target);
+        }
+        return new ArrayList<>(cells.values());
+    }
+
+    public static class Cluster {
+
+        private final long cell;
+        private final double cellDegrees;
+        private double latitudeSum;
+        private double longitudeSum;
+        private int count;
+        private Target first;
+
+        Cluster(long cell, double cellDegrees) {
+            this.cell = cell;
+            this.cellDegrees = cellDegrees;
+        }
+
+        void add(Target target) {
+            if (count == 0) {
+                first = target;
+            }
+            latitudeSum += target.getLatitude();
+            longitudeSum += target.getLongitude();
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /** The only target of a single-target cluster, otherwise null. */
+        public Target getTarget() {
+            return count == 1 ? first : null;
+        }
+
+        public double getLatitude() {
+            return latitudeSum / count;
+        }
+
+        public double getLongitude() {
+            return longitudeSum / count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Cluster)) {
+                return false;
+            }
+            Cluster other = (Cluster) o;
+            // the marker sits at the mean position, so a cluster whose members moved is a new one
+            return cell == other.cell && cellDegrees == other.cellDegrees && count == other.count
+                    && Double.compare(latitudeSum, other.latitudeSum) == 0
+                    && Double.compare(longitudeSum, other.longitudeSum) == 0
+                    && (count != 1 || first.equals(other.first));
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(cellDegrees);
+            long centre = Double.doubleToLongBits(latitudeSum) * 31 + Double.doubleToLongBits(longitudeSum);
+            return ((int) (cell ^ (cell >>> 32)) * 31 + (int) (bits ^ (bits >>> 32)) + count) * 31
+                    + (int) (centre ^ (centre >>> 32));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.mediamethods.geofencing;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A GetTargetChanges response: the targets added, changed and removed since the version the
+ * client sent. Targets are identified by name, so an upsert replaces the target of the same
+ * name. When the service no longer has the changes since that version it answers with
+ * {@link #isReset()} and the client loads the whole list again.
+ *
+ * Like GetAllTargets, the result and its payload may be nested objects or JSON-encoded strings.
+ */
+public class TargetDelta {
+
+    private static final String[] ENVELOPE_FIELDS = {"GetTargetChangesResult"};
+    private static final String[] RESULT_FIELDS = {"payload"};
+
+    private static final int FIELD_VERSION = 0;
+    private static final int FIELD_RESET = 1;
+    private static final int FIELD_UPSERTS = 2;
+    private static final int FIELD_REMOVED = 3;
+    private static final String[] PAYLOAD_FIELDS = {"version", "reset", "upserts", "removed"};
+
+    private long version = -1;
+    private boolean reset;
+    private final List<Target> upserts = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+
+    TargetDelta() {
+    }
+
+    public static TargetDelta decode(Reader reader) throws IOException {
+        TargetDelta delta = new TargetDelta();
+        JsonPullParser parser = new JsonPullParser(reader);
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName(ENVELOPE_FIELDS) == 0) {
+                delta.decodeResult(parser);
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        if (delta.version < 0 && !delta.reset) {
+            throw new IOException("Target changes without a version");
+        }
+        return delta;
+    }
+
+    /** Version of the target set after these changes. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** True when the changes are not available and the whole list must be loaded. */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /** Added targets and new versions of changed ones. */
+    public List<Target> getUpserts() {
+        return upserts;
+    }
+
+    /** Names of removed targets. */
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Works out what applying the changes to {@code current} takes.
+     *
+     * @param added   receives the targets that are new, including new versions of changed ones
+     * @param dropped receives the targets of {@code current} that go, including the old
+     *                versions of changed ones
+     */
+    public void changes(List<Target> current, List<Target> added, List<Target> dropped) {
+        Map<String, Target> replacements = new LinkedHashMap<>();
+        for (Target target : upserts) {
+            replacements.put(target.getName(), target);
+        }
+        Set<String> gone = new HashSet<>(removed);
+
+        for (Target target : current) {
+            if (gone.contains(target.getName()) || replacements.containsKey(target.getName())) {
+                dropped.add(target);
+            }
+        }
+        added.addAll(replacements.values());
+    }
+
+    private void decodeResult(JsonPullParser outer) throws IOException {
+        JsonPullParser parser = outer.openValue();
+        try {
+            parser.beginObject();
+            while (parser.hasNext()) {
+                if (parser.nextName(RESULT_FIELDS) == 0) {
+                    decodePayload(parser);
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+        } finally {
+            if (parser != outer) {
+                parser.close();
+            }
+        }
+    }
+
+    private void decodePayload(JsonPullParser outer) throws IOException {
+        TargetListDecoder.ShapeSink upsertSink = new TargetListDecoder.ShapeSink() {
+            public void onTarget(String name, double latitude, double longitude, float radius) {
+                upserts.add(new Target(name, latitude, longitude, radius));
+            }
+
+            public void onShape(String name, FenceShape shape) {
+                upserts.add(new Target(name, shape));
+            }
+        };
+        JsonPullParser parser = outer.openValue();
+        try {
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int field = parser.nextName(PAYLOAD_FIELDS);
+                if (field == -1 || parser.peek() == JsonPullParser.Token.NULL) {
+                    parser.skipValue();
+                    continue;
+                }
+                switch (field) {
+                    case FIELD_VERSION:
+                        version = (long) parser.nextDouble();
+                        break;
+                    case FIELD_RESET:
+                        reset = parser.nextBoolean();
+                        break;
+                    case FIELD_UPSERTS:
+                        parser.beginArray();
+                        while (parser.hasNext()) {
+                            TargetListDecoder.decodeTarget(parser, upsertSink);
+                        }
+                        parser.endArray();
+                        break;
+                    case FIELD_REMOVED:
+                        parser.beginArray();
+                        while (parser.hasNext()) {
+                            removed.add(parser.nextString());
+                        }
+                        parser.endArray();
+                        break;
+                }
+            }
+            parser.endObject();
+        } finally {
+            if (parser != outer) {
+                parser.close();
+            }
+        }
+    }
+}
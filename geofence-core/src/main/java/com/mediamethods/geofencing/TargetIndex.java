@@ -0,0 +1,467 @@
+package com.mediamethods.geofencing;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable grid index over a set of targets, used to answer nearest-target and
+ * inside/outside queries on the device instead of asking UpdateLocation.
+ *
+ * Targets are bucketed into fixed-size latitude/longitude cells and stored sorted by cell,
+ * so a lookup is a binary search over the occupied cells followed by a scan of that cell.
+ * Nearest-target searches walk outwards ring by ring and stop as soon as no unvisited
+ * cell can hold a closer boundary.
+ *
+ * The targets live in a {@link TargetStore} whose rows are in cell order, and Target objects
+ * are only created for results. A store mapped from a snapshot written by this index is used
+ * in place.
+ *
+ * Polygons and corridors are bucketed and pruned by their bounding circle, which never
+ * overstates how close they are, and then measured against their true outline.
+ */
+public class TargetIndex {
+
+    public static final double CELL_SIZE_DEGREES = 0.05;
+
+    private static final int COLUMNS = (int) Math.ceil(360 / CELL_SIZE_DEGREES);
+
+    // beyond this many rings a plain scan is cheaper than probing empty cells
+    private static final int MAX_RING = 16;
+
+    private final TargetStore store;
+    // the prepared outline of each polygon or corridor row, null when there are none
+    private final FenceShape[] shapes;
+    private final long[] cellKeys;
+    private final int[] cellStart;
+    private final float maxRadius;
+    private final int minRow;
+    private final int maxRow;
+    private final int minCol;
+    private final int maxCol;
+
+    public TargetIndex(List<Target> list) {
+        this(sortByCell(list));
+    }
+
+    // the rows of the store must be in cell order
+    private TargetIndex(TargetStore sorted) {
+        int count = sorted.size();
+        store = sorted;
+        long[] keys = new long[count];
+        int[] starts = new int[count + 1];
+        int cells = 0;
+        float radius = 0;
+        int rowLo = Integer.MAX_VALUE, rowHi = Integer.MIN_VALUE;
+        int colLo = Integer.MAX_VALUE, colHi = Integer.MIN_VALUE;
+        FenceShape[] outlines = null;
+
+        for (int i = 0; i < count; i++) {
+            long key = cellKey(sorted, i);
+
+            if (sorted.hasShape(i)) {
+                if (outlines == null) {
+                    outlines = new FenceShape[count];
+                }
+                outlines[i] = sorted.getShape(i);
+            }
+
+            if (cells == 0 || keys[cells - 1] != key) {
+                keys[cells] = key;
+                starts[cells] = i;
+                cells++;
+            }
+
+            radius = Math.max(radius, sorted.getRadius(i));
+            int row = (int) (key / COLUMNS);
+            int col = (int) (key % COLUMNS);
+            rowLo = Math.min(rowLo, row);
+            rowHi = Math.max(rowHi, row);
+            colLo = Math.min(colLo, col);
+            colHi = Math.max(colHi, col);
+        }
+        starts[cells] = count;
+
+        shapes = outlines;
+        cellKeys = Arrays.copyOf(keys, cells);
+        cellStart = Arrays.copyOf(starts, cells + 1);
+        maxRadius = radius;
+        minRow = rowLo;
+        maxRow = rowHi;
+        minCol = colLo;
+        maxCol = colHi;
+    }
+
+    /**
+     * An index over the targets of the store. The store itself is used when its rows are
+     * already in cell order, as in a snapshot of {@link #getStore()}; otherwise it is copied.
+     */
+    public static TargetIndex of(TargetStore store) {
+        for (int i = 1; i < store.size(); i++) {
+            if (cellKey(store, i) < cellKey(store, i - 1)) {
+                return new TargetIndex(sortByCell(store));
+            }
+        }
+        return new TargetIndex(store);
+    }
+
+    private static TargetStore sortByCell(List<Target> list) {
+        int count = list.size();
+
+        // sort by (cell, position) packed into one primitive key
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            Target target = list.get(i);
+            order[i] = (cellKey(row(target.getLatitude()), col(target.getLongitude())) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        TargetStore.Builder builder = new TargetStore.Builder(count);
+        for (int i = 0; i < count; i++) {
+            builder.add(list.get((int) order[i]));
+        }
+        return builder.build();
+    }
+
+    private static TargetStore sortByCell(TargetStore store) {
+        int count = store.size();
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (cellKey(store, i) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        TargetStore.Builder builder = new TargetStore.Builder(count);
+        for (int i = 0; i < count; i++) {
+            builder.add(store, (int) order[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * A new index with the targets of this one, less {@code removed} plus {@code added}.
+     * Only the added targets are sorted; the rest are copied over in cell order, so small
+     * changes to a large set cost a linear pass rather than a rebuild.
+     *
+     * @param removed targets of this index, matched by value
+     */
+    public TargetIndex withChanges(List<Target> added, List<Target> removed) {
+        boolean[] gone = new boolean[store.size()];
+        for (Target target : removed) {
+            int row = indexOf(target);
+            if (row >= 0) {
+                gone[row] = true;
+            }
+        }
+        TargetStore fresh = sortByCell(added);
+
+        TargetStore.Builder builder = new TargetStore.Builder(store.size() + fresh.size());
+        int next = 0;
+        for (int i = 0; i < store.size(); i++) {
+            if (gone[i]) {
+                continue;
+            }
+            long key = cellKey(store, i);
+            while (next < fresh.size() && cellKey(fresh, next) < key) {
+                builder.add(fresh, next++);
+            }
+            builder.add(store, i);
+        }
+        while (next < fresh.size()) {
+            builder.add(fresh, next++);
+        }
+        return new TargetIndex(builder.build());
+    }
+
+    /** The targets, in cell order. */
+    public TargetStore getStore() {
+        return store;
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /** Largest radius, or bounding radius, of any target; 0 when the index is empty. */
+    public float getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Returns the target whose boundary is closest to the given point, or null when the
+     * index is empty. A negative boundary distance means the point is inside that target.
+     */
+    public Nearest nearest(double latitude, double longitude) {
+        if (store.size() == 0) {
+            return null;
+        }
+
+        int row = row(latitude);
+        int col = col(longitude);
+        int lastRing = Math.max(Math.max(row - minRow, maxRow - row), Math.max(col - minCol, maxCol - col));
+        double ringMeters = minCellMeters(latitude);
+
+        Nearest best = new Nearest();
+        for (int ring = 0; ring <= lastRing; ring++) {
+            if (ring > MAX_RING) {
+                scan(0, store.size(), latitude, longitude, best);
+                break;
+            }
+            // every target in this ring is at least (ring - 1) cells away from the query point
+            if (best.row >= 0 && (ring - 1) * ringMeters - maxRadius >= best.boundaryDistance) {
+                break;
+            }
+            visitRing(row, col, ring, latitude, longitude, best);
+        }
+        best.target = target(best.row);
+        return best;
+    }
+
+    /**
+     * Adds the {@code count} targets with the closest boundaries to {@code out}, closest
+     * first, and returns how many were added. Searches a box around the point that doubles
+     * until no target outside it can beat the ones found.
+     */
+    public int nearest(double latitude, double longitude, int count, List<Target> out) {
+        if (count <= 0 || store.size() == 0) {
+            return 0;
+        }
+        double meters = Math.max(1000, 2 * maxRadius);
+        while (true) {
+            double latitudeSpan = meters / GeoMath.METERS_PER_DEGREE;
+            double longitudeSpan = latitudeSpan / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+            boolean everything = latitudeSpan >= 180 || longitudeSpan >= 180;
+            Rows found = new Rows();
+            if (everything) {
+                for (int i = 0; i < store.size(); i++) {
+                    found.add(i);
+                }
+            } else {
+                queryRows(latitude - latitudeSpan, longitude - longitudeSpan,
+                        latitude + latitudeSpan, longitude + longitudeSpan, found);
+            }
+
+            Ranked[] ranked = new Ranked[found.size];
+            for (int i = 0; i < ranked.length; i++) {
+                int row = found.rows[i];
+                ranked[i] = new Ranked(row, boundaryDistance(row, latitude, longitude, GeoMath.distance(latitude,
+                        longitude, store.getLatitude(row), store.getLongitude(row))));
+            }
+            Arrays.sort(ranked);
+
+            // anything outside the box has its centre further away than the box half-size
+            if (everything || (ranked.length >= count && ranked[count - 1].boundaryDistance <= meters - maxRadius)) {
+                int added = Math.min(count, ranked.length);
+                for (int i = 0; i < added; i++) {
+                    out.add(target(ranked[i].row));
+                }
+                return added;
+            }
+            meters *= 2;
+        }
+    }
+
+    /**
+     * Returns true when the point lies within the radius of any target.
+     */
+    public boolean isInside(double latitude, double longitude) {
+        Nearest nearest = nearest(latitude, longitude);
+        return nearest != null && nearest.isInside();
+    }
+
+    /**
+     * Adds every target whose centre lies in the given box to {@code out}. The box must not
+     * cross the antimeridian.
+     */
+    public void query(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+                      List<Target> out) {
+        Rows found = new Rows();
+        queryRows(minLatitude, minLongitude, maxLatitude, maxLongitude, found);
+        for (int i = 0; i < found.size; i++) {
+            out.add(target(found.rows[i]));
+        }
+    }
+
+    private void queryRows(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+                           Rows out) {
+        int rowLo = Math.max(row(minLatitude), minRow);
+        int rowHi = Math.min(row(maxLatitude), maxRow);
+        int colLo = Math.max(col(minLongitude), minCol);
+        int colHi = Math.min(col(maxLongitude), maxCol);
+
+        for (int row = rowLo; row <= rowHi; row++) {
+            // the cells of one row are contiguous in key order
+            int cell = Arrays.binarySearch(cellKeys, cellKey(row, colLo));
+            if (cell < 0) {
+                cell = -cell - 1;
+            }
+            long lastKey = cellKey(row, colHi);
+            for (; cell < cellKeys.length && cellKeys[cell] <= lastKey; cell++) {
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    double lat = store.getLatitude(i);
+                    double lon = store.getLongitude(i);
+                    if (lat >= minLatitude && lat <= maxLatitude && lon >= minLongitude && lon <= maxLongitude) {
+                        out.add(i);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Whether the index holds this target, with the same position, radius and shape. */
+    public boolean contains(Target target) {
+        return indexOf(target) >= 0;
+    }
+
+    /** Row of a target equal to the given one, or -1. */
+    private int indexOf(Target target) {
+        int cell = Arrays.binarySearch(cellKeys, cellKey(row(target.getLatitude()), col(target.getLongitude())));
+        if (cell < 0) {
+            return -1;
+        }
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            if (store.getLatitude(i) == target.getLatitude() && store.getLongitude(i) == target.getLongitude()
+                    && store.getRadius(i) == target.getRadius() && store.getName(i).equals(target.getName())) {
+                FenceShape shape = shapes != null ? shapes[i] : null;
+                if (shape == null ? target.getShape() == null : shape.equals(target.getShape())) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void visitRing(int row, int col, int ring, double latitude, double longitude, Nearest best) {
+        for (int r = row - ring; r <= row + ring; r++) {
+            if (r < minRow || r > maxRow) {
+                continue;
+            }
+            boolean edgeRow = r == row - ring || r == row + ring;
+            int step = edgeRow ? 1 : 2 * ring;
+            for (int c = col - ring; c <= col + ring; c += Math.max(step, 1)) {
+                if (c >= minCol && c <= maxCol) {
+                    visitCell(r, c, latitude, longitude, best);
+                }
+            }
+        }
+    }
+
+    private void visitCell(int row, int col, double latitude, double longitude, Nearest best) {
+        int cell = Arrays.binarySearch(cellKeys, cellKey(row, col));
+        if (cell >= 0) {
+            scan(cellStart[cell], cellStart[cell + 1], latitude, longitude, best);
+        }
+    }
+
+    private void scan(int from, int to, double latitude, double longitude, Nearest best) {
+        for (int i = from; i < to; i++) {
+            double distance = GeoMath.distance(latitude, longitude, store.getLatitude(i), store.getLongitude(i));
+            // the bounding circle decides whether an outline is worth measuring
+            if (best.row >= 0 && distance - store.getRadius(i) >= best.boundaryDistance) {
+                continue;
+            }
+            double boundary = boundaryDistance(i, latitude, longitude, distance);
+            if (best.row < 0 || boundary < best.boundaryDistance) {
+                best.row = i;
+                best.distance = distance;
+                best.boundaryDistance = boundary;
+            }
+        }
+    }
+
+    private double boundaryDistance(int row, double latitude, double longitude, double centreDistance) {
+        if (shapes != null && shapes[row] != null) {
+            return shapes[row].boundaryDistance(latitude, longitude);
+        }
+        return centreDistance - store.getRadius(row);
+    }
+
+    /** The Target of a row, sharing the prepared outline. */
+    private Target target(int row) {
+        if (shapes != null && shapes[row] != null) {
+            return new Target(store.getName(row), shapes[row]);
+        }
+        return store.get(row);
+    }
+
+    private static double minCellMeters(double latitude) {
+        // cells narrow towards the poles; use the narrowest width the ring walk can reach
+        double edge = Math.min(Math.abs(latitude) + MAX_RING * CELL_SIZE_DEGREES, 89.0);
+        return CELL_SIZE_DEGREES * GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(edge));
+    }
+
+    private static int row(double latitude) {
+        return (int) Math.floor((latitude + 90) / CELL_SIZE_DEGREES);
+    }
+
+    private static int col(double longitude) {
+        return (int) Math.floor((longitude + 180) / CELL_SIZE_DEGREES);
+    }
+
+    private static long cellKey(TargetStore store, int i) {
+        return cellKey(row(store.getLatitude(i)), col(store.getLongitude(i)));
+    }
+
+    private static long cellKey(int row, int col) {
+        return (long) row * COLUMNS + col;
+    }
+
+    /** Growable list of rows. */
+    private static class Rows {
+
+        int[] rows = new int[64];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+    }
+
+    private static class Ranked implements Comparable<Ranked> {
+
+        final int row;
+        final double boundaryDistance;
+
+        Ranked(int row, double boundaryDistance) {
+            this.row = row;
+            this.boundaryDistance = boundaryDistance;
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            return Double.compare(boundaryDistance, other.boundaryDistance);
+        }
+    }
+
+    /**
+     * Result of a nearest-target lookup.
+     */
+    public static class Nearest {
+
+        private Target target;
+        // row of the best target while searching
+        private int row = -1;
+        private double distance;
+        private double boundaryDistance;
+
+        public Target getTarget() {
+            return target;
+        }
+
+        /** Distance from the query point to the target centre. */
+        public double getDistance() {
+            return distance;
+        }
+
+        /** Distance from the query point to the target edge; negative when inside. */
+        public double getBoundaryDistance() {
+            return boundaryDistance;
+        }
+
+        public boolean isInside() {
+            return boundaryDistance <= 0;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.mediamethods.geofencing;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Decodes a GetAllTargets or GetTargetsInTile response in one pass. Accepts the result and its payload either
+ * as nested JSON or as string-encoded JSON, and the target fields either as numbers or as
+ * numeric strings, which is how the service currently sends them.
+ *
+ * The result may carry the version of the target set next to the payload, which
+ * GetTargetChanges needs to send only what changed since.
+ *
+ * A target is a circle unless its {@code type} is {@code polygon} or {@code corridor}. Those
+ * list their {@code points} as latitude, longitude, latitude, longitude and so on, in an
+ * array or a comma-separated string; a corridor's {@code radius} is its half-width.
+ */
+public class TargetListDecoder {
+
+    public interface TargetSink {
+        void onTarget(String name, double latitude, double longitude, float radius);
+    }
+
+    /**
+     * A sink for polygon and corridor targets as well. Other sinks get their bounding circle.
+     */
+    public interface ShapeSink extends TargetSink {
+        void onShape(String name, FenceShape shape);
+    }
+
+    /**
+     * A sink that also receives the version of the target set, when the response has one.
+     */
+    public interface VersionedTargetSink extends TargetSink {
+        void onVersion(long version);
+    }
+
+    // GetTargetsInTile answers in the same format
+    private static final String[] ENVELOPE_FIELDS = {"GetAllTargetsResult", "GetTargetsInTileResult"};
+    private static final String[] RESULT_FIELDS = {"payload", "version"};
+
+    private static final int FIELD_LATITUDE = 0;
+    private static final int FIELD_LONGITUDE = 1;
+    private static final int FIELD_RADIUS = 2;
+    private static final int FIELD_NAME = 3;
+    private static final int FIELD_TYPE = 4;
+    private static final int FIELD_POINTS = 5;
+    private static final String[] TARGET_FIELDS = {"latitude", "longitude", "radius", "name", "type", "points"};
+
+    private TargetListDecoder() {
+    }
+
+    /**
+     * @return the number of targets passed to the sink
+     */
+    public static int decode(Reader reader, TargetSink sink) throws IOException {
+        JsonPullParser parser = new JsonPullParser(reader);
+        int count = 0;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName(ENVELOPE_FIELDS) >= 0) {
+                count += decodeResult(parser, sink);
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        return count;
+    }
+
+    private static int decodeResult(JsonPullParser outer, TargetSink sink) throws IOException {
+        JsonPullParser parser = outer.openValue();
+        int count = 0;
+        try {
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int field = parser.nextName(RESULT_FIELDS);
+                if (field == 0) {
+                    count += decodePayload(parser, sink);
+                } else if (field == 1 && sink instanceof VersionedTargetSink
+                        && parser.peek() != JsonPullParser.Token.NULL) {
+                    ((VersionedTargetSink) sink).onVersion((long) parser.nextDouble());
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+        } finally {
+            if (parser != outer) {
+                parser.close();
+            }
+        }
+        return count;
+    }
+
+    private static int decodePayload(JsonPullParser outer, TargetSink sink) throws IOException {
+        JsonPullParser parser = outer.openValue();
+        int count = 0;
+        try {
+            parser.beginArray();
+            while (parser.hasNext()) {
+                if (decodeTarget(parser, sink)) {
+                    count++;
+                }
+            }
+            parser.endArray();
+        } finally {
+            if (parser != outer) {
+                parser.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes one target object; also used for the upserts of a {@link TargetDelta}.
+     */
+    static boolean decodeTarget(JsonPullParser parser, TargetSink sink) throws IOException {
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        float radius = 0;
+        String name = "";
+        String type = null;
+        double[] points = null;
+
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int field = parser.nextName(TARGET_FIELDS);
+            if (field == -1 || parser.peek() == JsonPullParser.Token.NULL) {
+                parser.skipValue();
+                continue;
+            }
+            switch (field) {
+                case FIELD_LATITUDE:
+                    latitude = parser.nextDouble();
+                    break;
+                case FIELD_LONGITUDE:
+                    longitude = parser.nextDouble();
+                    break;
+                case FIELD_RADIUS:
+                    radius = (float) parser.nextDouble();
+                    break;
+                case FIELD_NAME:
+                    name = parser.nextString();
+                    break;
+                case FIELD_TYPE:
+                    type = parser.nextString();
+                    break;
+                case FIELD_POINTS:
+                    points = decodePoints(parser);
+                    break;
+            }
+        }
+        parser.endObject();
+
+        if ("polygon".equals(type) || "corridor".equals(type)) {
+            FenceShape shape;
+            try {
+                shape = "polygon".equals(type) ? FenceShape.polygon(points != null ? points : new double[0])
+                        : FenceShape.corridor(points != null ? points : new double[0], radius);
+            } catch (IllegalArgumentException ex) {
+                // a broken outline cannot be evaluated either
+                return false;
+            }
+            if (sink instanceof ShapeSink) {
+                ((ShapeSink) sink).onShape(name, shape);
+            } else {
+                sink.onTarget(name, shape.getCentreLatitude(), shape.getCentreLongitude(), shape.getBoundingRadius());
+            }
+            return true;
+        }
+
+        // a target without a position cannot be evaluated
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return false;
+        }
+        sink.onTarget(name, latitude, longitude, radius);
+        return true;
+    }
+
+    private static double[] decodePoints(JsonPullParser parser) throws IOException {
+        if (parser.peek() == JsonPullParser.Token.STRING) {
+            String[] values = parser.nextString().split(",");
+            double[] points = new double[values.length];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    points[i] = Double.parseDouble(values[i].trim());
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad points: " + ex.getMessage());
+            }
+            return points;
+        }
+        double[] points = new double[16];
+        int count = 0;
+        parser.beginArray();
+        while (parser.hasNext()) {
+            if (count == points.length) {
+                points = Arrays.copyOf(points, count * 2);
+            }
+            points[count++] = parser.nextDouble();
+        }
+        parser.endArray();
+        return Arrays.copyOf(points, count);
+    }
+}
@@ -0,0 +1,357 @@
+package com.mediamethods.geofencing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Targets stored column by column in one ByteBuffer rather than as objects: about 28 bytes
+ * plus the UTF-8 name per target, against a few hundred for a Target with its String.
+ * Polygon and corridor targets add their vertices.
+ *
+ * The buffer layout is also the snapshot file format, so {@link #map(File)} uses a snapshot in
+ * place without parsing it, and its pages stay outside the Java heap. Little-endian:
+ *
+ * <pre>
+ * int magic, int format, long version, int count, int name bytes, int shape doubles, int 0
+ * double[count] latitudes
+ * double[count] longitudes
+ * float[count] radii
+ * int[count + 1] name offsets
+ * int[count + 1] shape offsets
+ * double[shape doubles] shapes
+ * byte[name bytes] names
+ * </pre>
+ *
+ * A circle has an empty shape. Otherwise it is the type (1 polygon, 2 corridor), the
+ * half-width and the latitude and longitude of each point.
+ *
+ * Immutable and safe to read from any thread. Targets are only created by {@link #get(int)}.
+ */
+public class TargetStore {
+
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int MAGIC = 0x31535447; // "GTS1"
+    private static final int HEADER_BYTES = 32;
+    private static final int OFFSET_VERSION = 8;
+
+    private static final int SHAPE_POLYGON = 1;
+    private static final int SHAPE_CORRIDOR = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final long version;
+    private final int count;
+    private final int longitudes;
+    private final int radii;
+    private final int nameOffsets;
+    private final int shapeOffsets;
+    private final int shapes;
+    private final int names;
+
+    private TargetStore(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a target snapshot");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported target snapshot format " + buffer.getInt(4));
+        }
+        this.buffer = buffer;
+        version = buffer.getLong(OFFSET_VERSION);
+        count = buffer.getInt(16);
+        longitudes = HEADER_BYTES + 8 * count;
+        radii = longitudes + 8 * count;
+        nameOffsets = radii + 4 * count;
+        shapeOffsets = nameOffsets + 4 * (count + 1);
+        shapes = shapeOffsets + 4 * (count + 1);
+        names = shapes + 8 * buffer.getInt(24);
+        if (count < 0 || buffer.getInt(24) < 0 || buffer.getInt(24) > buffer.capacity() / 8 || (long) names + buffer.getInt(20) != buffer.capacity()) {
+            throw new IOException("Truncated target snapshot");
+        }
+    }
+
+    /**
+     * Maps a snapshot written by {@link #writeTo(File, long)}.
+     *
+     * @throws IOException when the file is missing, truncated or of another format
+     */
+    public static TargetStore map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping stays valid after the channel is closed
+            return new TargetStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the store as a snapshot with the given version of the target set. The file is
+     * replaced only once complete, so a reader never maps half of it.
+     */
+    public void writeTo(File file, long version) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        source.limit(HEADER_BYTES);
+        header.put(source);
+        header.putLong(OFFSET_VERSION, version);
+        header.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            channel.write(header);
+            ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_BYTES);
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Version of the target set this store was written with, -1 when not from a snapshot. */
+    public long getVersion() {
+        return version;
+    }
+
+    public double getLatitude(int i) {
+        return buffer.getDouble(HEADER_BYTES + 8 * i);
+    }
+
+    public double getLongitude(int i) {
+        return buffer.getDouble(longitudes + 8 * i);
+    }
+
+    public float getRadius(int i) {
+        return buffer.getFloat(radii + 4 * i);
+    }
+
+    public String getName(int i) {
+        int start = buffer.getInt(nameOffsets + 4 * i);
+        int end = buffer.getInt(nameOffsets + 4 * (i + 1));
+        byte[] bytes = new byte[end - start];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = buffer.get(names + start + j);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /** True when the row is a polygon or corridor rather than a circle. */
+    public boolean hasShape(int i) {
+        return buffer.getInt(shapeOffsets + 4 * (i + 1)) > buffer.getInt(shapeOffsets + 4 * i);
+    }
+
+    /** A new shape for the given row, null for a circle. */
+    public FenceShape getShape(int i) {
+        int start = buffer.getInt(shapeOffsets + 4 * i);
+        int end = buffer.getInt(shapeOffsets + 4 * (i + 1));
+        if (end == start) {
+            return null;
+        }
+        int base = shapes + 8 * start;
+        double[] points = new double[end - start - 2];
+        for (int j = 0; j < points.length; j++) {
+            points[j] = buffer.getDouble(base + 8 * (j + 2));
+        }
+        FenceShape.Type type = (int) buffer.getDouble(base) == SHAPE_CORRIDOR
+                ? FenceShape.Type.CORRIDOR : FenceShape.Type.POLYGON;
+        return FenceShape.of(type, points, (float) buffer.getDouble(base + 8));
+    }
+
+    /** A new Target for the given row. */
+    public Target get(int i) {
+        FenceShape shape = getShape(i);
+        if (shape != null) {
+            return new Target(getName(i), shape);
+        }
+        return new Target(getName(i), getLatitude(i), getLongitude(i), getRadius(i));
+    }
+
+    /** A view that creates the Targets as they are read. */
+    public List<Target> asList() {
+        return new AbstractList<Target>() {
+            @Override
+            public Target get(int i) {
+                return TargetStore.this.get(i);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Collects targets into a new store on the heap. Also a sink for
+     * {@link TargetListDecoder}, so a response goes into the store without a Target per entry.
+     */
+    public static class Builder implements TargetListDecoder.ShapeSink {
+
+        private double[] latitudes;
+        private double[] longitudes;
+        private float[] radii;
+        private int[] nameEnds;
+        private byte[] names;
+        private int[] shapeEnds;
+        private double[] shapes = new double[0];
+        private int count;
+        private int nameBytes;
+        private int shapeDoubles;
+
+        public Builder(int expectedCount) {
+            int capacity = Math.max(16, expectedCount);
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            radii = new float[capacity];
+            nameEnds = new int[capacity];
+            names = new byte[capacity * 16];
+            shapeEnds = new int[capacity];
+        }
+
+        @Override
+        public void onTarget(String name, double latitude, double longitude, float radius) {
+            add(name, latitude, longitude, radius);
+        }
+
+        @Override
+        public void onShape(String name, FenceShape shape) {
+            add(name, shape);
+        }
+
+        public Builder add(Target target) {
+            if (target.getShape() != null) {
+                return add(target.getName(), target.getShape());
+            }
+            return add(target.getName(), target.getLatitude(), target.getLongitude(), target.getRadius());
+        }
+
+        public Builder add(String name, FenceShape shape) {
+            double[] points = shape.getPoints();
+            ensureShapeCapacity(points.length + 2);
+            shapes[shapeDoubles] = shape.getType() == FenceShape.Type.CORRIDOR ? SHAPE_CORRIDOR : SHAPE_POLYGON;
+            shapes[shapeDoubles + 1] = shape.getHalfWidth();
+            System.arraycopy(points, 0, shapes, shapeDoubles + 2, points.length);
+            shapeDoubles += points.length + 2;
+            return add(name, shape.getCentreLatitude(), shape.getCentreLongitude(), shape.getBoundingRadius());
+        }
+
+        public Builder add(String name, double latitude, double longitude, float radius) {
+            byte[] bytes = name.getBytes(UTF_8);
+            ensureNameCapacity(bytes.length);
+            System.arraycopy(bytes, 0, names, nameBytes, bytes.length);
+            return append(latitude, longitude, radius, bytes.length);
+        }
+
+        /** Copies a row of another store, without decoding its name. */
+        public Builder add(TargetStore store, int i) {
+            int start = store.buffer.getInt(store.nameOffsets + 4 * i);
+            int length = store.buffer.getInt(store.nameOffsets + 4 * (i + 1)) - start;
+            ensureNameCapacity(length);
+            for (int j = 0; j < length; j++) {
+                names[nameBytes + j] = store.buffer.get(store.names + start + j);
+            }
+            int shapeStart = store.buffer.getInt(store.shapeOffsets + 4 * i);
+            int shapeLength = store.buffer.getInt(store.shapeOffsets + 4 * (i + 1)) - shapeStart;
+            ensureShapeCapacity(shapeLength);
+            for (int j = 0; j < shapeLength; j++) {
+                shapes[shapeDoubles++] = store.buffer.getDouble(store.shapes + 8 * (shapeStart + j));
+            }
+            return append(store.getLatitude(i), store.getLongitude(i), store.getRadius(i), length);
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public TargetStore build() {
+            int nameOffsets = HEADER_BYTES + 20 * count;
+            ByteBuffer buffer = ByteBuffer.allocate(nameOffsets + 8 * (count + 1) + 8 * shapeDoubles + nameBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(-1).putInt(count).putInt(nameBytes)
+                    .putInt(shapeDoubles).putInt(0);
+            for (int i = 0; i < count; i++) {
+                buffer.putDouble(latitudes[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                buffer.putDouble(longitudes[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                buffer.putFloat(radii[i]);
+            }
+            buffer.putInt(0);
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(nameEnds[i]);
+            }
+            buffer.putInt(0);
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(shapeEnds[i]);
+            }
+            for (int i = 0; i < shapeDoubles; i++) {
+                buffer.putDouble(shapes[i]);
+            }
+            buffer.put(names, 0, nameBytes);
+            try {
+                return new TargetStore(buffer);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private Builder append(double latitude, double longitude, float radius, int nameLength) {
+            if (count == latitudes.length) {
+                int capacity = count * 2;
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                radii = Arrays.copyOf(radii, capacity);
+                nameEnds = Arrays.copyOf(nameEnds, capacity);
+                shapeEnds = Arrays.copyOf(shapeEnds, capacity);
+            }
+            latitudes[count] = latitude;
+            longitudes[count] = longitude;
+            radii[count] = radius;
+            nameBytes += nameLength;
+            nameEnds[count] = nameBytes;
+            shapeEnds[count] = shapeDoubles;
+            count++;
+            return this;
+        }
+
+        private void ensureShapeCapacity(int length) {
+            if (shapeDoubles + length > shapes.length) {
+                shapes = Arrays.copyOf(shapes, Math.max(shapes.length * 2, shapeDoubles + length));
+            }
+        }
+
+        private void ensureNameCapacity(int length) {
+            if (nameBytes + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, nameBytes + length));
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The quadkey tiles of targets loaded on the device, for catalogues too large to hold whole.
+ * Targets belong to the tile containing their centre, and all loaded tiles share one
+ * {@link TargetIndex}.
+ *
+ * The caller works out the tiles it wants, around the fix, ahead along the direction of
+ * travel and under the map viewport, loads the missing ones and then calls
+ * {@link #evict(Collection)}, which drops the least recently used other tiles until the
+ * targets fit the memory budget.
+ *
+ * Not thread-safe.
+ */
+public class TileSet {
+
+    // store bytes per target besides its name and outline, see TargetStore
+    private static final int ROW_BYTES = 24;
+    private static final int SHAPE_BYTES = 20;
+    private static final int POINT_BYTES = 16;
+
+    // spacing of the points along the path ahead whose tiles are wanted
+    private static final double AHEAD_STEP_IN_METERS = 2000;
+
+    private final int zoom;
+    private final long budgetBytes;
+
+    private TargetIndex index = new TargetIndex(Collections.<Target>emptyList());
+
+    // estimated bytes per loaded tile, least recently used first
+    private final LinkedHashMap<Long, Long> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public TileSet(int zoom, long budgetBytes) {
+        this.zoom = zoom;
+        this.budgetBytes = budgetBytes;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    /** The targets of every loaded tile. */
+    public TargetIndex getIndex() {
+        return index;
+    }
+
+    /** Number of loaded tiles. */
+    public int size() {
+        return tiles.size();
+    }
+
+    /** Estimated memory the loaded targets take. */
+    public long getByteSize() {
+        return bytes;
+    }
+
+    public boolean contains(long tile) {
+        return tiles.containsKey(tile);
+    }
+
+    public long tileOf(double latitude, double longitude) {
+        return Quadkey.tile(latitude, longitude, zoom);
+    }
+
+    /**
+     * Adds the tiles within {@code meters} of the point to {@code out}.
+     */
+    public void around(double latitude, double longitude, double meters, Collection<Long> out) {
+        double latitudeSpan = meters / GeoMath.METERS_PER_DEGREE;
+        double longitudeSpan = latitudeSpan / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+        Quadkey.covering(Math.max(-90, latitude - latitudeSpan), Math.max(-180, longitude - longitudeSpan),
+                Math.min(90, latitude + latitudeSpan), Math.min(180, longitude + longitudeSpan),
+                zoom, Integer.MAX_VALUE, out);
+    }
+
+    /**
+     * Adds the tiles within {@code meters} of the path covered in the next {@code seconds} at
+     * the given speed and bearing, so they are loaded before the device gets there.
+     */
+    public void ahead(double latitude, double longitude, float speed, float bearing, long seconds, double meters,
+                      Collection<Long> out) {
+        double distance = speed * seconds;
+        double north = Math.cos(Math.toRadians(bearing)) / GeoMath.METERS_PER_DEGREE;
+        double east = Math.sin(Math.toRadians(bearing))
+                / (GeoMath.METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude))));
+        for (double d = AHEAD_STEP_IN_METERS; d < distance + AHEAD_STEP_IN_METERS; d += AHEAD_STEP_IN_METERS) {
+            double step = Math.min(d, distance);
+            around(latitude + step * north, longitude + step * east, meters, out);
+        }
+    }
+
+    /** Marks the tiles as just used, so they are evicted last. */
+    public void touch(Collection<Long> wanted) {
+        for (Long tile : wanted) {
+            tiles.get(tile);
+        }
+    }
+
+    /**
+     * Loads a tile, replacing its previous targets. Targets of the store outside the tile
+     * are ignored.
+     */
+    public void put(long tile, TargetStore store) {
+        List<Target> added = new ArrayList<>(store.size());
+        long tileBytes = 0;
+        for (int i = 0; i < store.size(); i++) {
+            if (tileOf(store.getLatitude(i), store.getLongitude(i)) == tile) {
+                Target target = store.get(i);
+                added.add(target);
+                tileBytes += bytes(target);
+            }
+        }
+        List<Target> removed = new ArrayList<>();
+        if (tiles.containsKey(tile)) {
+            targetsIn(tile, removed);
+        }
+        index = index.withChanges(added, removed);
+        Long previous = tiles.put(tile, tileBytes);
+        bytes += tileBytes - (previous != null ? previous : 0);
+    }
+
+    /**
+     * Applies changes of the target set. Added targets outside the loaded tiles are left out
+     * and, like the removed targets not loaded, do not go into {@code applied}.
+     *
+     * @param added   new targets, including new versions of changed ones
+     * @param removed loaded targets that go, including old versions of changed ones
+     */
+    public void change(List<Target> added, List<Target> removed, List<Target> appliedAdded,
+                       List<Target> appliedRemoved) {
+        for (Target target : removed) {
+            Long tile = tileOf(target.getLatitude(), target.getLongitude());
+            if (tiles.containsKey(tile)) {
+                appliedRemoved.add(target);
+                adjust(tile, -bytes(target));
+            }
+        }
+        for (Target target : added) {
+            Long tile = tileOf(target.getLatitude(), target.getLongitude());
+            if (tiles.containsKey(tile)) {
+                appliedAdded.add(target);
+                adjust(tile, bytes(target));
+            }
+        }
+        if (!appliedAdded.isEmpty() || !appliedRemoved.isEmpty()) {
+            index = index.withChanges(appliedAdded, appliedRemoved);
+        }
+    }
+
+    /**
+     * Drops the least recently used tiles not in {@code pinned} until the targets fit the
+     * budget.
+     *
+     * @return the number of tiles dropped
+     */
+    public int evict(Collection<Long> pinned) {
+        if (bytes <= budgetBytes) {
+            return 0;
+        }
+        List<Target> removed = new ArrayList<>();
+        int evicted = 0;
+        Iterator<Map.Entry<Long, Long>> it = tiles.entrySet().iterator();
+        while (bytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (pinned.contains(entry.getKey())) {
+                continue;
+            }
+            targetsIn(entry.getKey(), removed);
+            bytes -= entry.getValue();
+            it.remove();
+            evicted++;
+        }
+        if (!removed.isEmpty()) {
+            index = index.withChanges(Collections.<Target>emptyList(), removed);
+        }
+        return evicted;
+    }
+
+    /**
+     * Takes over the targets of an index, e.g. from a snapshot, as loaded tiles. Tiles
+     * without targets are not known to be loaded.
+     */
+    public void restore(TargetIndex restored) {
+        Map<Long, Long> restoredTiles = new HashMap<>();
+        long restoredBytes = 0;
+        TargetStore store = restored.getStore();
+        for (int i = 0; i < store.size(); i++) {
+            Long tile = tileOf(store.getLatitude(i), store.getLongitude(i));
+            long rowBytes = ROW_BYTES + store.getName(i).length()
+                    + (store.hasShape(i) ? shapeBytes(store.getShape(i)) : 0);
+            Long tileBytes = restoredTiles.get(tile);
+            restoredTiles.put(tile, (tileBytes != null ? tileBytes : 0) + rowBytes);
+            restoredBytes += rowBytes;
+        }
+        index = restored;
+        tiles.clear();
+        tiles.putAll(restoredTiles);
+        bytes = restoredBytes;
+    }
+
+    /** Drops every tile. */
+    public void clear() {
+        index = new TargetIndex(Collections.<Target>emptyList());
+        tiles.clear();
+        bytes = 0;
+    }
+
+    /** The loaded tiles, least recently used first. */
+    public Set<Long> getTiles() {
+        return Collections.unmodifiableSet(tiles.keySet());
+    }
+
+    private void targetsIn(long tile, List<Target> out) {
+        double[] bounds = Quadkey.bounds(tile, zoom);
+        List<Target> candidates = new ArrayList<>();
+        index.query(bounds[0], bounds[1], bounds[2], bounds[3], candidates);
+        for (Target target : candidates) {
+            // targets on a shared edge belong to one tile only
+            if (tileOf(target.getLatitude(), target.getLongitude()) == tile) {
+                out.add(target);
+            }
+        }
+    }
+
+    private void adjust(Long tile, long delta) {
+        tiles.put(tile, tiles.get(tile) + delta);
+        bytes += delta;
+    }
+
+    private static long bytes(Target target) {
+        FenceShape shape = target.getShape();
+        return ROW_BYTES + target.getName().length() + (shape != null ? shapeBytes(shape) : 0);
+    }
+
+    private static long shapeBytes(FenceShape shape) {
+        return SHAPE_BYTES + POINT_BYTES * shape.getPointCount();
+    }
+}
@@ -0,0 +1,141 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming line simplification of a track, by the opening window method: points are held
+ * back while the segment from the last kept point to the newest one passes within the
+ * tolerance of every point in between. When a new point breaks that, the previous point is
+ * kept as a vertex and becomes the start of the next segment.
+ *
+ * The kept points reproduce the path within the tolerance. Key points, such as the fix that
+ * confirmed a geofence transition, are always kept. Points are held back for at most the
+ * given delay and the window is bounded, so the cost per point is bounded too.
+ *
+ * Not thread-safe.
+ */
+public class TrajectorySimplifier {
+
+    private final double tolerance;
+    private final int maxWindow;
+    private final long maxDelayMillis;
+
+    // last kept point and the points held back since
+    private LocationFix anchor;
+    private final List<LocationFix> window = new ArrayList<>();
+
+    private long inputCount;
+    private long keptCount;
+
+    /**
+     * @param toleranceMeters largest distance of a dropped point from the simplified path
+     * @param maxWindow       most points held back at once
+     * @param maxDelayMillis  longest a point is held back, measured in fix time
+     */
+    public TrajectorySimplifier(double toleranceMeters, int maxWindow, long maxDelayMillis) {
+        this.tolerance = toleranceMeters;
+        this.maxWindow = maxWindow;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Adds a fix and appends the points it makes final to {@code out}.
+     *
+     * @return the number of points appended
+     */
+    public int add(LocationFix fix, List<LocationFix> out) {
+        inputCount++;
+        if (anchor == null) {
+            return keep(fix, out);
+        }
+
+        int kept = 0;
+        if (window.size() >= maxWindow || !coversWindow(fix)) {
+            // the last point that still fit is a vertex
+            kept += keep(window.get(window.size() - 1), out);
+        }
+        if (fix.getTime() - anchor.getTime() >= maxDelayMillis) {
+            // the segment to this fix covers everything held back, so nothing is lost
+            kept += keep(fix, out);
+        } else {
+            window.add(fix);
+        }
+        return kept;
+    }
+
+    /**
+     * Adds a fix that must be kept, and appends it with any points it makes final to
+     * {@code out}.
+     *
+     * @return the number of points appended
+     */
+    public int addKey(LocationFix fix, List<LocationFix> out) {
+        inputCount++;
+        int kept = 0;
+        if (anchor != null && !window.isEmpty() && !coversWindow(fix)) {
+            kept += keep(window.get(window.size() - 1), out);
+        }
+        return kept + keep(fix, out);
+    }
+
+    /**
+     * Appends the newest point held back, if any, so the path ends where the device is.
+     *
+     * @return the number of points appended
+     */
+    public int flush(List<LocationFix> out) {
+        if (window.isEmpty()) {
+            return 0;
+        }
+        return keep(window.get(window.size() - 1), out);
+    }
+
+    /** Points added so far. */
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    /** Points kept so far. */
+    public long getKeptCount() {
+        return keptCount;
+    }
+
+    private int keep(LocationFix fix, List<LocationFix> out) {
+        out.add(fix);
+        keptCount++;
+        anchor = fix;
+        window.clear();
+        return 1;
+    }
+
+    /**
+     * Whether the segment from the anchor to {@code end} passes within the tolerance of every
+     * point held back.
+     */
+    private boolean coversWindow(LocationFix end) {
+        // local equirectangular projection around the anchor, in metres
+        double cosLatitude = Math.cos(Math.toRadians(anchor.getLatitude()));
+        double ex = (end.getLongitude() - anchor.getLongitude()) * cosLatitude * GeoMath.METERS_PER_DEGREE;
+        double ey = (end.getLatitude() - anchor.getLatitude()) * GeoMath.METERS_PER_DEGREE;
+        double lengthSquared = ex * ex + ey * ey;
+        double toleranceSquared = tolerance * tolerance;
+
+        for (int i = 0; i < window.size(); i++) {
+            LocationFix point = window.get(i);
+            double px = (point.getLongitude() - anchor.getLongitude()) * cosLatitude * GeoMath.METERS_PER_DEGREE;
+            double py = (point.getLatitude() - anchor.getLatitude()) * GeoMath.METERS_PER_DEGREE;
+
+            // distance to the closest point of the segment, not of the infinite line, so
+            // turning back is not mistaken for going straight
+            double t = lengthSquared > 0 ? (px * ex + py * ey) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            double dx = px - t * ex;
+            double dy = py - t * ey;
+            if (dx * dx + dy * dy > toleranceSquared) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,40 @@
+package com.mediamethods.geofencing;
+
+/**
+ * A confirmed geofence transition, as detected by {@link TransitionDetector} and reported to
+ * UpdateLocation.
+ */
+public class Transition {
+
+    public enum Type {
+        ENTER, EXIT, DWELL
+    }
+
+    private final Type type;
+    private final String targetName;
+    private final long time;
+
+    public Transition(Type type, String targetName, long time) {
+        this.type = type;
+        this.targetName = targetName;
+        this.time = time;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTargetName() {
+        return targetName;
+    }
+
+    /** Time of the fix that confirmed the transition. */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + targetName + " @" + time;
+    }
+}
@@ -0,0 +1,200 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks inside/outside/dwell state per target from successive fixes and reports confirmed
+ * transitions.
+ *
+ * A fix has to be inside the boundary by a hysteresis margin to count as inside, and outside
+ * it by the same margin to count as outside, so a device standing on the edge does not
+ * flap. Polygons and corridors are evaluated against their outline, not their bounding
+ * circle. When the whole accuracy circle is on the right side of the boundary one fix is
+ * enough; otherwise {@link #CONFIRM_FIXES} fixes in a row are needed. Fixes less accurate
+ * than the configured maximum only advance dwell timers.
+ *
+ * Not thread-safe.
+ */
+public class TransitionDetector {
+
+    // the margin is this fraction of the radius, but at least MIN_HYSTERESIS_IN_METERS and at
+    // most half the radius, so small targets can still be entered; shapes use the radius of a
+    // circle of about their size
+    static final double HYSTERESIS = 0.1;
+    static final double MIN_HYSTERESIS_IN_METERS = 10;
+
+    // consecutive fixes needed when the accuracy circle straddles the boundary
+    static final int CONFIRM_FIXES = 2;
+
+    private final long dwellMillis;
+    private final float maxAccuracy;
+
+    // targets that are inside or about to be, by name and position
+    private final Map<String, State> states = new HashMap<>();
+    private final List<Target> candidates = new ArrayList<>();
+    // the index of the last update, to notice when it was replaced
+    private TargetIndex lastIndex;
+
+    private static class State {
+
+        Target target;
+        boolean inside;
+        int confirmations;
+        long enteredAt;
+        boolean dwelling;
+
+        State(Target target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * @param dwellMillis time inside a target before a DWELL is reported
+     * @param maxAccuracy fixes with a larger accuracy radius cannot cause enters or exits
+     */
+    public TransitionDetector(long dwellMillis, float maxAccuracy) {
+        this.dwellMillis = dwellMillis;
+        this.maxAccuracy = maxAccuracy;
+    }
+
+    /**
+     * Evaluates a fix against the targets of the index and adds the transitions it confirms
+     * to {@code out}.
+     *
+     * @return the number of transitions added
+     */
+    public int update(LocationFix fix, TargetIndex index, List<Transition> out) {
+        int added = 0;
+        boolean usable = fix.getAccuracy() <= maxAccuracy;
+        float accuracy = fix.getAccuracy();
+
+        // targets already tracked, which may have left the index
+        Iterator<State> iterator = states.values().iterator();
+        while (iterator.hasNext()) {
+            State state = iterator.next();
+            Target target = state.target;
+            double boundary = target.boundaryDistance(fix.getLatitude(), fix.getLongitude());
+            double margin = margin(target);
+
+            if (!state.inside) {
+                if (!usable) {
+                    continue;
+                }
+                if (boundary > -margin) {
+                    iterator.remove();
+                } else if (++state.confirmations >= CONFIRM_FIXES) {
+                    enter(state, fix.getTime(), out);
+                    added++;
+                }
+                continue;
+            }
+
+            if (usable) {
+                if (boundary < margin) {
+                    state.confirmations = 0;
+                } else if (boundary - accuracy >= margin
+                        || ++state.confirmations >= CONFIRM_FIXES) {
+                    iterator.remove();
+                    out.add(new Transition(Transition.Type.EXIT, target.getName(), fix.getTime()));
+                    added++;
+                    continue;
+                }
+            }
+            if (!state.dwelling && fix.getTime() - state.enteredAt >= dwellMillis) {
+                state.dwelling = true;
+                out.add(new Transition(Transition.Type.DWELL, target.getName(), fix.getTime()));
+                added++;
+            }
+        }
+
+        // forget targets a delta or a tile eviction took away, once their exit had its chance
+        if (index != null && index != lastIndex) {
+            Iterator<State> tracked = states.values().iterator();
+            while (tracked.hasNext()) {
+                if (!index.contains(tracked.next().target)) {
+                    tracked.remove();
+                }
+            }
+            lastIndex = index;
+        }
+
+        if (!usable || index == null || index.size() == 0) {
+            return added;
+        }
+
+        // new targets: only centres within the largest (bounding) radius can have the fix inside
+        double reach = index.getMaxRadius();
+        double latitudeSpan = reach / GeoMath.METERS_PER_DEGREE;
+        double longitudeSpan = latitudeSpan / Math.max(0.01, Math.cos(Math.toRadians(fix.getLatitude())));
+        candidates.clear();
+        index.query(fix.getLatitude() - latitudeSpan, fix.getLongitude() - longitudeSpan,
+                fix.getLatitude() + latitudeSpan, fix.getLongitude() + longitudeSpan, candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            Target target = candidates.get(i);
+            if (GeoMath.distance(fix.getLatitude(), fix.getLongitude(), target.getLatitude(), target.getLongitude())
+                    > target.getRadius()) {
+                continue;
+            }
+            double boundary = target.boundaryDistance(fix.getLatitude(), fix.getLongitude());
+            if (boundary > -margin(target)) {
+                continue;
+            }
+            String key = GeofenceRotation.requestId(target);
+            State state = states.get(key);
+            if (state != null) {
+                // evaluated above; pick up the current instance after a target list refresh
+                state.target = target;
+                continue;
+            }
+            state = new State(target);
+            states.put(key, state);
+            if (boundary + accuracy <= 0) {
+                enter(state, fix.getTime(), out);
+                added++;
+            } else {
+                state.confirmations = 1;
+            }
+        }
+        candidates.clear();
+        return added;
+    }
+
+    /** Targets the device is currently inside. */
+    public int getInsideCount() {
+        int count = 0;
+        for (State state : states.values()) {
+            if (state.inside) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Whether an entry into the target was reported and no exit since. */
+    public boolean isInside(Target target) {
+        State state = states.get(GeofenceRotation.requestId(target));
+        return state != null && state.inside;
+    }
+
+    /** Forgets all state without reporting exits. */
+    public void reset() {
+        states.clear();
+        lastIndex = null;
+    }
+
+    private static void enter(State state, long time, List<Transition> out) {
+        state.inside = true;
+        state.confirmations = 0;
+        state.enteredAt = time;
+        out.add(new Transition(Transition.Type.ENTER, state.target.getName(), time));
+    }
+
+    static double margin(Target target) {
+        double radius = target.getShape() != null ? target.getShape().getEquivalentRadius() : target.getRadius();
+        return Math.min(radius / 2.0, Math.max(MIN_HYSTERESIS_IN_METERS, radius * HYSTERESIS));
+    }
+}
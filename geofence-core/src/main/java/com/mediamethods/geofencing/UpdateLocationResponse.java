@@ -0,0 +1,90 @@
+package com.mediamethods.geofencing;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The parts of an UpdateLocation response the clients use. Like GetAllTargets, the result
+ * and its payload may be nested objects or JSON-encoded strings.
+ */
+public class UpdateLocationResponse {
+
+    private static final String[] ENVELOPE_FIELDS = {"UpdateLocationResult"};
+    private static final String[] RESULT_FIELDS = {"payload"};
+    private static final String[] PAYLOAD_FIELDS = {"distanceToClosest", "targetsVersion"};
+
+    private double distanceToClosest = Double.NaN;
+    private long targetsVersion = -1;
+
+    UpdateLocationResponse() {
+    }
+
+    public static UpdateLocationResponse decode(Reader reader) throws IOException {
+        UpdateLocationResponse response = new UpdateLocationResponse();
+        JsonPullParser parser = new JsonPullParser(reader);
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName(ENVELOPE_FIELDS) == 0) {
+                response.decodeResult(parser);
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        return response;
+    }
+
+    /** Distance from the reported position to the closest target in metres, NaN when absent. */
+    public double getDistanceToClosest() {
+        return distanceToClosest;
+    }
+
+    /**
+     * Current version of the target set, -1 when absent. A client behind it fetches the
+     * changes with GetTargetChanges.
+     */
+    public long getTargetsVersion() {
+        return targetsVersion;
+    }
+
+    private void decodeResult(JsonPullParser outer) throws IOException {
+        JsonPullParser parser = outer.openValue();
+        try {
+            parser.beginObject();
+            while (parser.hasNext()) {
+                if (parser.nextName(RESULT_FIELDS) == 0) {
+                    decodePayload(parser);
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+        } finally {
+            if (parser != outer) {
+                parser.close();
+            }
+        }
+    }
+
+    private void decodePayload(JsonPullParser outer) throws IOException {
+        JsonPullParser parser = outer.openValue();
+        try {
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int field = parser.nextName(PAYLOAD_FIELDS);
+                if (field == -1 || parser.peek() == JsonPullParser.Token.NULL) {
+                    parser.skipValue();
+                } else if (field == 0) {
+                    distanceToClosest = parser.nextDouble();
+                } else {
+                    targetsVersion = (long) parser.nextDouble();
+                }
+            }
+            parser.endObject();
+        } finally {
+            if (parser != outer) {
+                parser.close();
+            }
+        }
+    }
+}
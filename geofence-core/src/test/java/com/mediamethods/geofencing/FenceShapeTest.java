@@ -0,0 +1,144 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FenceShapeTest {
+
+    private static final double LATITUDE = 3.139;
+    private static final double LONGITUDE = 101.6869;
+
+    /** {lat, lon} of a point {@code east} and {@code north} metres from the origin. */
+    private static double[] at(double east, double north) {
+        return new double[]{LATITUDE + north / GeoMath.METERS_PER_DEGREE,
+                LONGITUDE + east / (GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)))};
+    }
+
+    /** Points through the corners given in metres, each side split into {@code steps} edges. */
+    private static double[] outline(double[][] corners, int steps, boolean closed) {
+        int sides = closed ? corners.length : corners.length - 1;
+        double[] points = new double[(sides * steps + (closed ? 0 : 1)) * 2];
+        int n = 0;
+        for (int c = 0; c < sides; c++) {
+            double[] from = corners[c];
+            double[] to = corners[(c + 1) % corners.length];
+            for (int s = 0; s < steps; s++) {
+                double[] point = at(from[0] + (to[0] - from[0]) * s / steps, from[1] + (to[1] - from[1]) * s / steps);
+                points[n++] = point[0];
+                points[n++] = point[1];
+            }
+        }
+        if (!closed) {
+            double[] last = corners[corners.length - 1];
+            double[] point = at(last[0], last[1]);
+            points[n++] = point[0];
+            points[n] = point[1];
+        }
+        return points;
+    }
+
+    // an L-shaped lot, 200 m on the long sides, with the north-east quarter cut out
+    private static final double[][] L_SHAPE = {{0, 0}, {200, 0}, {200, 100}, {100, 100}, {100, 200}, {0, 200}};
+
+    private static boolean containsByScan(double[] points, double latitude, double longitude) {
+        boolean inside = false;
+        int count = points.length / 2;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            double yi = points[2 * i];
+            double xi = points[2 * i + 1];
+            double yj = points[2 * j];
+            double xj = points[2 * j + 1];
+            if ((yi > latitude) != (yj > latitude) && longitude < (xj - xi) * (latitude - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    @Test
+    public void polygon_concaveLot() {
+        FenceShape shape = FenceShape.polygon(outline(L_SHAPE, 20, true));
+        assertEquals(120, shape.getPointCount());
+
+        double[] inLot = at(50, 50);
+        assertTrue(shape.contains(inLot[0], inLot[1]));
+        assertEquals(-50, shape.boundaryDistance(inLot[0], inLot[1]), 0.5);
+
+        // the cut-out corner lies inside the bounding box but outside the lot
+        double[] inNotch = at(150, 150);
+        assertFalse(shape.contains(inNotch[0], inNotch[1]));
+        assertEquals(50, shape.boundaryDistance(inNotch[0], inNotch[1]), 0.5);
+
+        double[] west = at(-30, 50);
+        assertEquals(30, shape.boundaryDistance(west[0], west[1]), 0.5);
+        assertEquals(90, shape.bearingToBoundary(west[0], west[1]), 1);
+    }
+
+    @Test
+    public void polygon_containsMatchesScan() {
+        double[] points = outline(L_SHAPE, 20, true);
+        FenceShape shape = FenceShape.polygon(points);
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            double[] point = at(-50 + random.nextDouble() * 300, -50 + random.nextDouble() * 300);
+            assertEquals(containsByScan(points, point[0], point[1]), shape.contains(point[0], point[1]));
+        }
+    }
+
+    @Test
+    public void polygon_dropsClosingPoint() {
+        double[] a = at(0, 0);
+        double[] b = at(100, 0);
+        double[] c = at(0, 100);
+        FenceShape open = FenceShape.polygon(new double[]{a[0], a[1], b[0], b[1], c[0], c[1]});
+        FenceShape closed = FenceShape.polygon(new double[]{a[0], a[1], b[0], b[1], c[0], c[1], a[0], a[1]});
+
+        assertEquals(3, closed.getPointCount());
+        assertEquals(open, closed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void polygon_needsThreePoints() {
+        double[] a = at(0, 0);
+        double[] b = at(100, 0);
+        FenceShape.polygon(new double[]{a[0], a[1], b[0], b[1]});
+    }
+
+    @Test
+    public void boundingCircle_holdsEveryPoint() {
+        double[] points = outline(L_SHAPE, 5, true);
+        FenceShape shape = FenceShape.polygon(points);
+        for (int i = 0; i < points.length; i += 2) {
+            assertTrue(GeoMath.distance(shape.getCentreLatitude(), shape.getCentreLongitude(),
+                    points[i], points[i + 1]) <= shape.getBoundingRadius());
+        }
+    }
+
+    @Test
+    public void corridor_withinHalfWidthOfTheLine() {
+        FenceShape shape = FenceShape.corridor(outline(new double[][]{{0, 0}, {1000, 0}, {1000, 1000}}, 10, false), 30);
+
+        double[] inside = at(500, -20);
+        assertTrue(shape.contains(inside[0], inside[1]));
+        assertEquals(-10, shape.boundaryDistance(inside[0], inside[1]), 0.5);
+        // from inside, the nearest outline lies away from the line
+        assertEquals(180, shape.bearingToBoundary(inside[0], inside[1]), 1);
+
+        double[] outside = at(1040, 500);
+        assertFalse(shape.contains(outside[0], outside[1]));
+        assertEquals(10, shape.boundaryDistance(outside[0], outside[1]), 0.5);
+        assertEquals(270, shape.bearingToBoundary(outside[0], outside[1]), 1);
+
+        // the ends are round
+        double[] pastStart = at(-40, 0);
+        assertEquals(10, shape.boundaryDistance(pastStart[0], pastStart[1]), 0.5);
+
+        // the square the line turns around is not part of it
+        double[] corner = at(500, 500);
+        assertFalse(shape.contains(corner[0], corner[1]));
+        assertEquals(470, shape.boundaryDistance(corner[0], corner[1]), 0.5);
+    }
+}
@@ -0,0 +1,72 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FixFilterTest {
+
+    private static LocationFix fix(double north, double east, float accuracy, long time) {
+        return new LocationFix(3.0 + north / GeoMath.METERS_PER_DEGREE, 101.0 + east / GeoMath.METERS_PER_DEGREE,
+                accuracy, 0, 0, time);
+    }
+
+    @Test
+    public void stationaryJitter_isDropped() throws Exception {
+        FixFilter filter = new FixFilter(70, 5, 0);
+        Random random = new Random(1);
+        assertNotNull(filter.filter(fix(0, 0, 10, 0)));
+
+        for (int i = 1; i <= 600; i++) {
+            // ten fixes a second scattered within the accuracy radius
+            double north = (random.nextDouble() - 0.5) * 16;
+            double east = (random.nextDouble() - 0.5) * 16;
+            assertNull(filter.filter(fix(north, east, 10, i * 100)));
+        }
+        assertEquals(1, filter.getAcceptedCount());
+        assertEquals(600, filter.getStationaryCount());
+    }
+
+    @Test
+    public void steadyMovement_isPassedOn() throws Exception {
+        FixFilter filter = new FixFilter(70, 5, 0);
+        int accepted = 0;
+        for (int i = 0; i < 60; i++) {
+            // 15 m/s east, one fix a second
+            if (filter.filter(fix(0, i * 15, 5, i * 1000)) != null) {
+                accepted++;
+            }
+        }
+        assertTrue("accepted " + accepted, accepted >= 55);
+    }
+
+    @Test
+    public void implausibleJump_isRejectedUntilConfirmed() throws Exception {
+        FixFilter filter = new FixFilter(70, 5, 0);
+        filter.filter(fix(0, 0, 5, 0));
+        filter.filter(fix(0, 10, 5, 1000));
+
+        assertNull(filter.filter(fix(0, 5000, 5, 2000)));
+        assertEquals(1, filter.getOutlierCount());
+
+        LocationFix next = filter.filter(fix(0, 25, 5, 3000));
+        assertNotNull(next);
+
+        // a far position confirmed by several fixes in a row is taken over
+        assertNull(filter.filter(fix(0, 20000, 5, 4000)));
+        assertNull(filter.filter(fix(0, 20010, 5, 5000)));
+        LocationFix restarted = filter.filter(fix(0, 20020, 5, 6000));
+        assertNotNull(restarted);
+        assertEquals(fix(0, 20020, 5, 0).getLongitude(), restarted.getLongitude(), 1e-9);
+    }
+
+    @Test
+    public void keepAlive_emitsWhileStationary() throws Exception {
+        FixFilter filter = new FixFilter(70, 5, 60000);
+        filter.filter(fix(0, 0, 10, 0));
+        assertNull(filter.filter(fix(1, 1, 10, 30000)));
+        assertNotNull(filter.filter(fix(1, 1, 10, 60000)));
+    }
+}
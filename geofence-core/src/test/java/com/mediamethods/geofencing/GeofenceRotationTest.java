@@ -0,0 +1,93 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeofenceRotationTest {
+
+    /** Targets every 100 m due north, radius 20 m. */
+    private static TargetIndex line(int count) {
+        return line(count, 100, 20);
+    }
+
+    private static TargetIndex line(int count, double spacing, float radius) {
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            targets.add(new Target("t" + i, 3.0 + i * spacing / GeoMath.METERS_PER_DEGREE, 101.0, radius));
+        }
+        return new TargetIndex(targets);
+    }
+
+    private static double north(double meters) {
+        return 3.0 + meters / GeoMath.METERS_PER_DEGREE;
+    }
+
+    @Test
+    public void firstRanking_registersNearestAndRefreshFence() {
+        GeofenceRotation rotation = new GeofenceRotation(10);
+        assertTrue(rotation.needsRanking(3.0, 101.0));
+
+        GeofenceRotation.Update update = rotation.rank(line(100), 3.0, 101.0);
+
+        assertEquals(9, update.getAdded().size());
+        assertTrue(update.getRemoved().isEmpty());
+        assertTrue(update.hasRefreshFence());
+        // the ninth target is 800 m away, its edge 780 m
+        assertEquals(780, rotation.getRefreshRadius(), 1);
+        assertFalse(rotation.needsRanking(north(700), 101.0));
+        assertTrue(rotation.needsRanking(north(800), 101.0));
+    }
+
+    @Test
+    public void moving_reregistersOnlyTheDifference() {
+        GeofenceRotation rotation = new GeofenceRotation(10);
+        TargetIndex index = line(100);
+        rotation.rank(index, 3.0, 101.0);
+
+        GeofenceRotation.Update update = rotation.rank(index, north(800), 101.0);
+
+        // t0..t8 before; t4..t12 now
+        assertEquals(4, update.getAdded().size());
+        assertEquals(4, update.getRemoved().size());
+        assertTrue(update.getRemoved().contains(GeofenceRotation.requestId(new Target("t0", 3.0, 101.0, 20))));
+        assertEquals(9, rotation.getRegisteredCount());
+    }
+
+    @Test
+    public void fewTargets_needNoRefreshFence() {
+        GeofenceRotation rotation = new GeofenceRotation(10);
+        GeofenceRotation.Update update = rotation.rank(line(10), 3.0, 101.0);
+
+        assertEquals(10, update.getAdded().size());
+        assertFalse(update.hasRefreshFence());
+        assertFalse(rotation.needsRanking(north(5000), 101.0));
+
+        String id = GeofenceRotation.requestId(update.getAdded().get(3));
+        assertSame(update.getAdded().get(3), rotation.getTarget(id));
+        assertEquals(update.getAdded().get(3).getName(), GeofenceRotation.targetName(id));
+    }
+
+    @Test
+    public void denseCluster_refreshFenceEndsBeforeTheFirstTargetLeftOut() {
+        GeofenceRotation rotation = new GeofenceRotation(10);
+        // every 10 m: the tenth target, the first left out, has its edge 88 m away
+        rotation.rank(line(100, 10, 2), 3.0, 101.0);
+
+        assertTrue(rotation.getRefreshRadius() < GeofenceRotation.MIN_REFRESH_RADIUS_IN_METERS);
+        assertEquals(88, rotation.getRefreshRadius(), 1);
+        assertTrue(rotation.needsRanking(north(89), 101.0));
+    }
+
+    @Test
+    public void sparseTargets_keepTheMinimumRadius() {
+        GeofenceRotation rotation = new GeofenceRotation(2);
+        // the one registered target's edge is 40 m away, the first left out's 540 m
+        rotation.rank(line(10, 500, 10), north(-50), 101.0);
+
+        assertEquals(GeofenceRotation.MIN_REFRESH_RADIUS_IN_METERS, rotation.getRefreshRadius(), 0);
+    }
+}
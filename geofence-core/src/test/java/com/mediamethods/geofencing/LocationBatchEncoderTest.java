@@ -0,0 +1,85 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationBatchEncoderTest {
+
+    @Test
+    public void roundTripsBatch() throws Exception {
+        List<LocationFix> batch = new ArrayList<>();
+        batch.add(new LocationFix(3.1579123, 101.7116456, 5, 0, 0, 1456790400000L));
+        batch.add(new LocationFix(3.1579500, 101.7115000, 5, 0, 0, 1456790401000L));
+        batch.add(new LocationFix(-33.8688197, -151.2092955, 5, 0, 0, 1456790399000L));
+
+        LocationBatchEncoder.Batch decoded = LocationBatchEncoder.decode(
+                LocationBatchEncoder.encode("user-\u00e9", batch));
+
+        assertEquals("user-\u00e9", decoded.getUserId());
+        assertNull(decoded.getReport());
+        assertEquals(3, decoded.getFixes().size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.get(i).getLatitude(), decoded.getFixes().get(i).getLatitude(), 1e-7);
+            assertEquals(batch.get(i).getLongitude(), decoded.getFixes().get(i).getLongitude(), 1e-7);
+            assertEquals(batch.get(i).getTime(), decoded.getFixes().get(i).getTime());
+        }
+    }
+
+    @Test
+    public void movingBatch_isAboutTenTimesSmallerThanJson() throws Exception {
+        List<LocationFix> batch = new ArrayList<>();
+        StringBuilder json = new StringBuilder("{\"id\":\"0123456789abcdef\",\"locations\":[");
+        for (int i = 0; i < 50; i++) {
+            LocationFix fix = new LocationFix(3.1579 + i * 0.0001, 101.7116 + i * 0.00007, 5, 10, 0,
+                    1456790400000L + i * 1000);
+            batch.add(fix);
+            json.append("{\"longitude\":").append(fix.getLongitude())
+                    .append(",\"latitude\":").append(fix.getLatitude())
+                    .append(",\"time\":").append(fix.getTime()).append("},");
+        }
+
+        int binary = LocationBatchEncoder.encode("0123456789abcdef", batch).length;
+        assertTrue("binary " + binary + " json " + json.length(), binary * 8 < json.length());
+    }
+
+    @Test
+    public void carriesMetricsReport() throws Exception {
+        List<LocationFix> batch = new ArrayList<>();
+        batch.add(new LocationFix(3.0, 101.0, 5, 0, 0, 1000));
+
+        LocationBatchEncoder.Batch decoded = LocationBatchEncoder.decode(
+                LocationBatchEncoder.encode("id", batch, "up=60 fixes.received=3"));
+        assertEquals("up=60 fixes.received=3", decoded.getReport());
+        assertEquals(1, decoded.getFixes().size());
+    }
+
+    @Test
+    public void carriesTransitionsWithoutReport() throws Exception {
+        List<Transition> transitions = new ArrayList<>();
+        transitions.add(new Transition(Transition.Type.ENTER, "Caf\u00e9", 1456790400000L));
+        transitions.add(new Transition(Transition.Type.EXIT, "Caf\u00e9", 1456790460000L));
+
+        LocationBatchEncoder.Batch decoded = LocationBatchEncoder.decode(LocationBatchEncoder.encode(
+                "id", new ArrayList<LocationFix>(), null, transitions));
+        assertNull(decoded.getReport());
+        assertEquals(0, decoded.getFixes().size());
+        assertEquals(2, decoded.getTransitions().size());
+        assertEquals(Transition.Type.EXIT, decoded.getTransitions().get(1).getType());
+        assertEquals("Caf\u00e9", decoded.getTransitions().get(1).getTargetName());
+        assertEquals(1456790460000L, decoded.getTransitions().get(1).getTime());
+    }
+
+    @Test(expected = java.io.EOFException.class)
+    public void truncatedBatch_fails() throws Exception {
+        List<LocationFix> batch = new ArrayList<>();
+        batch.add(new LocationFix(3.0, 101.0, 5, 0, 0, 1000));
+        byte[] data = LocationBatchEncoder.encode("id", batch);
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        LocationBatchEncoder.decode(truncated);
+    }
+}
@@ -0,0 +1,101 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationBatcherTest {
+
+    private static LocationFix fix(long time) {
+        return new LocationFix(3.0, 101.0, 5, 0, 0, time);
+    }
+
+    @Test
+    public void flushesWhenBatchIsFull() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(10, 3, 60000, 0, LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        batcher.add(fix(0), 0);
+        batcher.add(fix(100), 0);
+        assertFalse(batcher.isFlushDue(0));
+
+        batcher.add(fix(200), 0);
+        assertTrue(batcher.isFlushDue(0));
+        assertEquals(3, batcher.drainBatch().size());
+        assertEquals(-1, batcher.millisUntilFlush(0));
+    }
+
+    @Test
+    public void flushesPartialBatchAfterInterval() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(10, 5, 1000, 0, LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        batcher.add(fix(0), 500);
+        assertEquals(1000, batcher.millisUntilFlush(500));
+        assertFalse(batcher.isFlushDue(1499));
+        assertTrue(batcher.isFlushDue(1500));
+    }
+
+    @Test
+    public void changedIntervalAppliesToWaitingFixes() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(10, 5, 120000, 0, LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        batcher.add(fix(0), 1000);
+        assertEquals(120000, batcher.millisUntilFlush(1000));
+
+        // e.g. moved onto Wi-Fi: the waiting fix is held to the shorter interval
+        batcher.setFlushInterval(15000);
+        assertEquals(6000, batcher.millisUntilFlush(10000));
+        assertTrue(batcher.isFlushDue(16000));
+    }
+
+    @Test
+    public void coalescesFixesWithinWindow() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(10, 5, 1000, 1000, LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        // a steady stream keeps the newest fix of every second, not just one in all
+        for (int i = 0; i < 30; i++) {
+            batcher.add(fix(i * 100), 0);
+        }
+        assertEquals(3, batcher.size());
+        assertEquals(27, batcher.getCoalesced());
+        List<LocationFix> batch = batcher.drainBatch();
+        assertEquals(900, batch.get(0).getTime());
+        assertEquals(1900, batch.get(1).getTime());
+        assertEquals(2900, batch.get(2).getTime());
+    }
+
+    @Test
+    public void keyFixesAreNeverCoalesced() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(10, 5, 1000, 1000, LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        batcher.add(fix(0), 0);
+        batcher.add(fix(100), 0, true);
+        batcher.add(fix(200), 0);
+        batcher.add(fix(300), 0);
+
+        List<LocationFix> batch = batcher.drainBatch();
+        assertEquals(3, batch.size());
+        assertEquals(0, batch.get(0).getTime());
+        assertEquals(100, batch.get(1).getTime());
+        assertEquals(300, batch.get(2).getTime());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFixes() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(3, 3, 1000, 0, LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            batcher.add(fix(i * 1000), 0);
+        }
+        List<LocationFix> batch = batcher.drainBatch();
+        assertEquals(2, batcher.getDropped());
+        assertEquals(2000, batch.get(0).getTime());
+        assertEquals(4000, batch.get(2).getTime());
+    }
+
+    @Test
+    public void keepLatestDiscardsBacklog() throws Exception {
+        LocationBatcher batcher = new LocationBatcher(3, 3, 1000, 0, LocationBatcher.OverflowPolicy.KEEP_LATEST);
+        for (int i = 0; i < 4; i++) {
+            batcher.add(fix(i * 1000), 0);
+        }
+        assertEquals(1, batcher.size());
+        assertEquals(3, batcher.getDropped());
+        assertEquals(3000, batcher.drainBatch().get(0).getTime());
+    }
+}
@@ -0,0 +1,65 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void histogram_percentilesWithinBucketPrecision() throws Exception {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.percentile(50), 500 * 0.04);
+        assertEquals(990, histogram.percentile(99), 990 * 0.04);
+        assertEquals(1000, histogram.percentile(100));
+    }
+
+    @Test
+    public void histogram_bucketsAreContiguous() throws Exception {
+        long previousUpper = -1;
+        for (int index = 0; index <= Metrics.Histogram.bucketIndex(Metrics.Histogram.MAX_VALUE); index++) {
+            long upper = Metrics.Histogram.upperBound(index);
+            assertEquals(index, Metrics.Histogram.bucketIndex(previousUpper + 1));
+            assertEquals(index, Metrics.Histogram.bucketIndex(upper));
+            previousUpper = upper;
+        }
+    }
+
+    @Test
+    public void reportAndDump_includeEveryMetric() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter(Metrics.FIXES_RECEIVED).addAndGet(12);
+        metrics.histogram(Metrics.UPLOAD_RTT_MILLIS).record(120);
+
+        String report = metrics.report();
+        assertTrue(report, report.contains(" fixes.received=12"));
+        assertTrue(report, report.contains(" upload.rtt_ms=120/120/120/1"));
+
+        StringWriter dump = new StringWriter();
+        metrics.dump(new PrintWriter(dump));
+        assertTrue(dump.toString(), dump.toString().contains("upload.rtt_ms count=1 p50=120"));
+    }
+
+    @Test
+    public void startupTrace_recordsEachPhaseOnce() throws Exception {
+        Metrics metrics = new Metrics();
+        StartupTrace trace = new StartupTrace(metrics, 0);
+
+        assertEquals(250, trace.mark(StartupTrace.TARGETS_CACHED, 250000000L));
+        assertEquals(-1, trace.mark(StartupTrace.TARGETS_CACHED, 900000000L));
+        assertEquals(400, trace.mark(StartupTrace.TARGETS_DRAWN, 400000000L));
+
+        assertEquals(2, trace.getMarks().size());
+        assertEquals(1, metrics.histogram("startup.targets_cached_ms").getCount());
+        assertEquals(250, metrics.histogram("startup.targets_cached_ms").getMax());
+    }
+}
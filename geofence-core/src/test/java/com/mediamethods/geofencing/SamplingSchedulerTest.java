@@ -0,0 +1,56 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SamplingSchedulerTest {
+
+    @Test
+    public void farAndStill_usesLowPower() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        SamplingScheduler.Plan plan = scheduler.update(20000, 10, 0, Double.NaN);
+        assertEquals(SamplingScheduler.Priority.LOW_POWER, plan.getPriority());
+        assertEquals(300000, plan.getIntervalMillis());
+    }
+
+    @Test
+    public void fastApproach_speedsUpImmediately() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        scheduler.update(20000, 10, 0, Double.NaN);
+
+        // 20 km away but closing at motorway speed: reached within ten minutes
+        SamplingScheduler.Plan plan = scheduler.update(20000, 10, 35, 35);
+        assertEquals(SamplingScheduler.Priority.BALANCED_POWER_ACCURACY, plan.getPriority());
+        assertEquals(30000, plan.getIntervalMillis());
+
+        plan = scheduler.update(500, 10, 35, 35);
+        assertEquals(SamplingScheduler.Priority.HIGH_ACCURACY, plan.getPriority());
+        assertEquals(1000, plan.getIntervalMillis());
+    }
+
+    @Test
+    public void jitterAroundTierLimit_doesNotFlap() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        // 120 s at walking pace is 180 m
+        SamplingScheduler.Plan near = scheduler.update(170, 0, 0, Double.NaN);
+        assertEquals(5000, near.getIntervalMillis());
+
+        assertSame(near, scheduler.update(190, 0, 0, Double.NaN));
+        assertSame(near, scheduler.update(175, 0, 0, Double.NaN));
+        assertSame(near, scheduler.update(230, 0, 0, Double.NaN));
+
+        // clearly beyond the margin
+        assertEquals(30000, scheduler.update(250, 0, 0, Double.NaN).getIntervalMillis());
+    }
+
+    @Test
+    public void headingAway_stillAllowsForTurn() throws Exception {
+        double away = SamplingScheduler.closingSpeed(20, 180, 0, false);
+        assertEquals(-20, away, 1e-9);
+        // half the ground speed is still assumed towards the boundary
+        assertEquals(100, SamplingScheduler.timeToBoundary(1000, 0, 20, away), 1e-9);
+        // inside, the boundary is reached by moving away from the centre
+        assertEquals(20, SamplingScheduler.closingSpeed(20, 180, 0, true), 1e-9);
+    }
+}
@@ -0,0 +1,37 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TargetClustererTest {
+
+    private static final double CELL = 0.01;
+
+    @Test
+    public void sameMembersGiveEqualClusters() {
+        List<TargetClusterer.Cluster> before = TargetClusterer.cluster(Arrays.asList(
+                new Target("a", 3.1001, 101.6001, 50), new Target("b", 3.1009, 101.6009, 50)), CELL);
+        List<TargetClusterer.Cluster> after = TargetClusterer.cluster(Arrays.asList(
+                new Target("a", 3.1001, 101.6001, 50), new Target("b", 3.1009, 101.6009, 50)), CELL);
+
+        assertEquals(1, before.size());
+        assertEquals(before.get(0), after.get(0));
+        assertEquals(before.get(0).hashCode(), after.get(0).hashCode());
+    }
+
+    @Test
+    public void clusterWithMovedMembersIsNotEqual() {
+        // same cell and member count, but the marker belongs elsewhere
+        TargetClusterer.Cluster before = TargetClusterer.cluster(Arrays.asList(
+                new Target("a", 3.1001, 101.6001, 50), new Target("b", 3.1002, 101.6002, 50)), CELL).get(0);
+        TargetClusterer.Cluster after = TargetClusterer.cluster(Arrays.asList(
+                new Target("a", 3.1001, 101.6001, 50), new Target("c", 3.1009, 101.6009, 50)), CELL).get(0);
+
+        assertEquals(before.getCount(), after.getCount());
+        assertNotEquals(before, after);
+    }
+}
@@ -0,0 +1,161 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TargetIndexTest {
+
+    @Test
+    public void emptyIndex_hasNoNearest() throws Exception {
+        TargetIndex index = new TargetIndex(Collections.<Target>emptyList());
+        assertNull(index.nearest(3.0, 101.0));
+        assertFalse(index.isInside(3.0, 101.0));
+    }
+
+    @Test
+    public void nearest_matchesLinearScan() throws Exception {
+        Random random = new Random(42);
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            targets.add(new Target("t" + i, 2.5 + random.nextDouble(), 101.0 + random.nextDouble(), 50 + random.nextInt(500)));
+        }
+        TargetIndex index = new TargetIndex(targets);
+
+        for (int i = 0; i < 500; i++) {
+            // include query points well outside the populated area
+            double lat = 1.5 + random.nextDouble() * 3;
+            double lon = 100.0 + random.nextDouble() * 3;
+
+            double expected = Double.MAX_VALUE;
+            for (Target target : targets) {
+                double d = GeoMath.distance(lat, lon, target.getLatitude(), target.getLongitude()) - target.getRadius();
+                expected = Math.min(expected, d);
+            }
+
+            assertEquals(expected, index.nearest(lat, lon).getBoundaryDistance(), 1e-6);
+        }
+    }
+
+    @Test
+    public void nearestK_matchesSortedScan() throws Exception {
+        Random random = new Random(11);
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            targets.add(new Target("t" + i, 2.5 + random.nextDouble(), 101.0 + random.nextDouble(), 50 + random.nextInt(500)));
+        }
+        TargetIndex index = new TargetIndex(targets);
+
+        for (int i = 0; i < 20; i++) {
+            final double lat = 1.5 + random.nextDouble() * 3;
+            final double lon = 100.0 + random.nextDouble() * 3;
+            List<Target> expected = new ArrayList<>(targets);
+            Collections.sort(expected, new java.util.Comparator<Target>() {
+                public int compare(Target a, Target b) {
+                    return Double.compare(
+                            GeoMath.distance(lat, lon, a.getLatitude(), a.getLongitude()) - a.getRadius(),
+                            GeoMath.distance(lat, lon, b.getLatitude(), b.getLongitude()) - b.getRadius());
+                }
+            });
+
+            List<Target> nearest = new ArrayList<>();
+            assertEquals(99, index.nearest(lat, lon, 99, nearest));
+            assertEquals(expected.subList(0, 99), nearest);
+        }
+
+        List<Target> all = new ArrayList<>();
+        assertEquals(3000, index.nearest(3.0, 101.5, 5000, all));
+    }
+
+    @Test
+    public void isInside_usesRadius() throws Exception {
+        List<Target> targets = new ArrayList<>();
+        targets.add(new Target("klcc", 3.1579, 101.7116, 200));
+        TargetIndex index = new TargetIndex(targets);
+
+        assertTrue(index.isInside(3.1580, 101.7117));
+        assertFalse(index.isInside(3.1700, 101.7116));
+        assertEquals(-200, index.nearest(3.1579, 101.7116).getBoundaryDistance(), 1e-6);
+    }
+
+    @Test
+    public void nearest_usesPolygonOutline() throws Exception {
+        // a strip 2 km long and 20 m wide: its bounding circle is 1 km across
+        double north = 10 / GeoMath.METERS_PER_DEGREE;
+        double east = 1000 / (GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(3.0)));
+        Target strip = new Target("strip", FenceShape.polygon(new double[]{
+                3.0 - north, 101.0 - east, 3.0 - north, 101.0 + east, 3.0 + north, 101.0 + east, 3.0 + north, 101.0 - east}));
+        Target kiosk = new Target("kiosk", 3.0 + 300 / GeoMath.METERS_PER_DEGREE, 101.0, 10);
+        TargetIndex index = new TargetIndex(Arrays.asList(strip, kiosk));
+
+        double latitude = 3.0 + 500 / GeoMath.METERS_PER_DEGREE;
+        assertFalse(index.isInside(latitude, 101.0));
+        assertEquals(kiosk, index.nearest(latitude, 101.0).getTarget());
+        assertEquals(190, index.nearest(latitude, 101.0).getBoundaryDistance(), 0.5);
+
+        List<Target> two = new ArrayList<>();
+        index.nearest(latitude, 101.0, 2, two);
+        assertEquals(Arrays.asList(kiosk, strip), two);
+        assertTrue(index.isInside(3.0, 101.0 + east / 2));
+    }
+
+    @Test
+    public void query_returnsTargetsInBox() throws Exception {
+        Random random = new Random(7);
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            targets.add(new Target("t" + i, 2.0 + random.nextDouble() * 2, 100.0 + random.nextDouble() * 3, 100));
+        }
+        TargetIndex index = new TargetIndex(targets);
+
+        List<Target> found = new ArrayList<>();
+        index.query(2.5, 101.0, 3.1, 101.75, found);
+
+        int expected = 0;
+        for (Target target : targets) {
+            if (target.getLatitude() >= 2.5 && target.getLatitude() <= 3.1
+                    && target.getLongitude() >= 101.0 && target.getLongitude() <= 101.75) {
+                expected++;
+                assertTrue(found.contains(target));
+            }
+        }
+        assertEquals(expected, found.size());
+    }
+
+    @Test
+    public void withChanges_matchesRebuild() throws Exception {
+        Random random = new Random(5);
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            targets.add(new Target("t" + i, 2.5 + random.nextDouble(), 101.0 + random.nextDouble(), 50 + random.nextInt(500)));
+        }
+        TargetIndex index = new TargetIndex(targets);
+
+        List<Target> added = new ArrayList<>();
+        List<Target> removed = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            removed.add(targets.remove(random.nextInt(targets.size())));
+            added.add(new Target("n" + i, 2.0 + random.nextDouble() * 2, 100.5 + random.nextDouble() * 2, 800));
+        }
+        targets.addAll(added);
+        TargetIndex changed = index.withChanges(added, removed);
+        TargetIndex rebuilt = new TargetIndex(targets);
+
+        assertEquals(rebuilt.size(), changed.size());
+        assertEquals(800, changed.getMaxRadius(), 0);
+        for (int i = 0; i < 500; i++) {
+            double lat = 1.5 + random.nextDouble() * 3;
+            double lon = 100.0 + random.nextDouble() * 3;
+            assertEquals(rebuilt.nearest(lat, lon).getTarget(), changed.nearest(lat, lon).getTarget());
+        }
+        List<Target> found = new ArrayList<>();
+        changed.query(2.0, 100.0, 4.0, 103.0, found);
+        assertEquals(targets.size(), found.size());
+    }
+}
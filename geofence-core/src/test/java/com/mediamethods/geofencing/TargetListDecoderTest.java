@@ -0,0 +1,155 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TargetListDecoderTest {
+
+    private static List<Target> decode(String json) throws IOException {
+        final List<Target> targets = new ArrayList<>();
+        TargetListDecoder.decode(new StringReader(json), new TargetListDecoder.TargetSink() {
+            public void onTarget(String name, double latitude, double longitude, float radius) {
+                targets.add(new Target(name, latitude, longitude, radius));
+            }
+        });
+        return targets;
+    }
+
+    private static String quote(String json) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : json.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    @Test
+    public void decodesStringEncodedEnvelope() throws Exception {
+        // what the WCF service sends today: result and payload are both JSON strings
+        String payload = "[{\"latitude\":\"3.011233\",\"longitude\":\"101.670246\",\"radius\":\"150\","
+                + "\"name\":\"Caf\\u00e9 \\\"A\\\"\"}]";
+        String json = "{\"GetAllTargetsResult\":" + quote("{\"status\":0,\"payload\":" + quote(payload) + "}") + "}";
+
+        List<Target> targets = decode(json);
+
+        assertEquals(1, targets.size());
+        Target target = targets.get(0);
+        assertEquals(3.011233, target.getLatitude(), 0);
+        assertEquals(101.670246, target.getLongitude(), 0);
+        assertEquals(150, target.getRadius(), 0);
+        assertEquals("Caf\u00e9 \"A\"", target.getName());
+    }
+
+    @Test
+    public void decodesNestedEnvelopeWithNumbers() throws Exception {
+        String json = "{\"GetAllTargetsResult\":{\"payload\":["
+                + "{\"name\":\"a\",\"latitude\":-1.5,\"longitude\":2.25e1,\"radius\":10,\"extra\":{\"x\":[1,true,null]}},"
+                + "{\"name\":\"b\",\"latitude\":null,\"longitude\":1,\"radius\":1},"
+                + "{\"name\":\"c\",\"latitude\":0.123456789012345678,\"longitude\":1,\"radius\":1}"
+                + "]},\"other\":\"ignored\"}";
+
+        List<Target> targets = decode(json);
+
+        assertEquals(2, targets.size());
+        assertEquals(-1.5, targets.get(0).getLatitude(), 0);
+        assertEquals(22.5, targets.get(0).getLongitude(), 0);
+        assertEquals(0.123456789012345678, targets.get(1).getLatitude(), 0);
+    }
+
+    @Test
+    public void emptyPayload() throws Exception {
+        assertEquals(0, decode("{\"GetAllTargetsResult\":\"{\\\"payload\\\":\\\"[]\\\"}\"}").size());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedInputFails() throws Exception {
+        decode("{\"GetAllTargetsResult\":{\"payload\":[{\"latitude\":1");
+    }
+
+    @Test
+    public void decodesShapes() throws Exception {
+        String json = "{\"GetAllTargetsResult\":{\"payload\":["
+                + "{\"name\":\"lot\",\"type\":\"polygon\",\"points\":\"3.0,101.0, 3.0,101.01, 3.01,101.0\"},"
+                + "{\"name\":\"road\",\"type\":\"corridor\",\"radius\":25,\"points\":[3.0,101.0,3.2,101.2]},"
+                + "{\"name\":\"odd\",\"type\":\"polygon\",\"points\":[3.0,101.0,3.0]}"
+                + "]}}";
+        final List<Target> targets = new ArrayList<>();
+        TargetListDecoder.decode(new StringReader(json), new TargetListDecoder.ShapeSink() {
+            public void onTarget(String name, double latitude, double longitude, float radius) {
+                targets.add(new Target(name, latitude, longitude, radius));
+            }
+
+            public void onShape(String name, FenceShape shape) {
+                targets.add(new Target(name, shape));
+            }
+        });
+
+        assertEquals(2, targets.size());
+        assertEquals(FenceShape.polygon(new double[]{3.0, 101.0, 3.0, 101.01, 3.01, 101.0}), targets.get(0).getShape());
+        assertEquals(FenceShape.Type.CORRIDOR, targets.get(1).getShape().getType());
+        assertEquals(25, targets.get(1).getShape().getHalfWidth(), 0);
+
+        // a sink that only knows circles gets the bounding circle
+        List<Target> circles = decode(json);
+        assertEquals(2, circles.size());
+        assertNull(circles.get(0).getShape());
+        assertEquals(targets.get(0).getRadius(), circles.get(0).getRadius(), 0);
+    }
+
+    @Test
+    public void decodesVersion() throws Exception {
+        final long[] version = {-1};
+        int count = TargetListDecoder.decode(new StringReader("{\"GetAllTargetsResult\":{\"version\":42,\"payload\":[]}}"),
+                new TargetListDecoder.VersionedTargetSink() {
+                    public void onTarget(String name, double latitude, double longitude, float radius) {
+                    }
+
+                    public void onVersion(long value) {
+                        version[0] = value;
+                    }
+                });
+
+        assertEquals(0, count);
+        assertEquals(42, version[0]);
+    }
+
+    @Test
+    public void delta_replacesChangedAndDropsRemovedByName() throws Exception {
+        String payload = "{\"version\":7,\"upserts\":[{\"name\":\"b\",\"latitude\":\"1\",\"longitude\":\"2\",\"radius\":\"30\"},"
+                + "{\"name\":\"d\",\"latitude\":3,\"longitude\":4,\"radius\":40}],\"removed\":[\"c\"]}";
+        String json = "{\"GetTargetChangesResult\":" + quote("{\"status\":0,\"payload\":" + quote(payload) + "}") + "}";
+        TargetDelta delta = TargetDelta.decode(new StringReader(json));
+
+        List<Target> current = new ArrayList<>();
+        current.add(new Target("a", 0, 0, 10));
+        current.add(new Target("b", 1, 2, 20));
+        current.add(new Target("c", 2, 3, 30));
+        List<Target> added = new ArrayList<>();
+        List<Target> dropped = new ArrayList<>();
+        delta.changes(current, added, dropped);
+
+        assertEquals(7, delta.getVersion());
+        assertFalse(delta.isReset());
+        assertEquals(2, added.size());
+        assertEquals(30, added.get(0).getRadius(), 0);
+        assertEquals("d", added.get(1).getName());
+        assertEquals(2, dropped.size());
+        assertTrue(dropped.contains(current.get(1)));
+        assertTrue(dropped.contains(current.get(2)));
+    }
+
+    @Test
+    public void delta_reset() throws Exception {
+        TargetDelta delta = TargetDelta.decode(new StringReader("{\"GetTargetChangesResult\":{\"payload\":{\"reset\":true}}}"));
+        assertTrue(delta.isReset());
+    }
+}
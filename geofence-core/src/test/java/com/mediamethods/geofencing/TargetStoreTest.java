@@ -0,0 +1,109 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TargetStoreTest {
+
+    private static List<Target> targets(int count) {
+        Random random = new Random(9);
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            targets.add(new Target("t\u00e9" + i, 2.5 + random.nextDouble(), 101.0 + random.nextDouble(),
+                    50 + random.nextInt(500)));
+        }
+        return targets;
+    }
+
+    @Test
+    public void snapshot_mapsBackToTheSameTargets() throws Exception {
+        List<Target> targets = targets(1000);
+        TargetIndex index = new TargetIndex(targets);
+        File file = File.createTempFile("targets", ".snapshot");
+        try {
+            index.getStore().writeTo(file, 17);
+            TargetStore mapped = TargetStore.map(file);
+
+            assertEquals(17, mapped.getVersion());
+            assertEquals(1000, mapped.size());
+            assertTrue(mapped.asList().containsAll(targets));
+
+            // a snapshot of an index is already in cell order and used in place
+            TargetIndex reopened = TargetIndex.of(mapped);
+            assertSame(mapped, reopened.getStore());
+            assertEquals(index.nearest(3.0, 101.5).getTarget(), reopened.nearest(3.0, 101.5).getTarget());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void snapshot_keepsShapes() throws Exception {
+        List<Target> targets = new ArrayList<>();
+        targets.add(new Target("kiosk", 3.5, 101.5, 10));
+        targets.add(new Target("lot", FenceShape.polygon(new double[]{3.0, 101.0, 3.0, 101.01, 3.01, 101.0})));
+        targets.add(new Target("road", FenceShape.corridor(new double[]{3.3, 101.0, 3.4, 101.2, 3.4, 101.5}, 25)));
+        File file = File.createTempFile("targets", ".snapshot");
+        try {
+            new TargetIndex(targets).getStore().writeTo(file, 3);
+            TargetStore mapped = TargetStore.map(file);
+
+            assertTrue(mapped.asList().containsAll(targets));
+            TargetIndex reopened = TargetIndex.of(mapped);
+            assertTrue(reopened.isInside(3.002, 101.002));
+            // inside the lot's bounding circle but beyond its hypotenuse
+            assertFalse(reopened.isInside(3.009, 101.009));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void builder_keepsOrderUntilIndexed() throws Exception {
+        TargetStore.Builder builder = new TargetStore.Builder(1);
+        for (Target target : targets(100)) {
+            builder.add(target);
+        }
+        TargetStore store = builder.build();
+
+        assertEquals(-1, store.getVersion());
+        assertEquals(targets(100), store.asList());
+        assertNotSame(store, TargetIndex.of(store).getStore());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws Exception {
+        File file = File.createTempFile("targets", ".snapshot");
+        try {
+            new TargetIndex(targets(10)).getStore().writeTo(file, 1);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 1);
+            raf.close();
+            TargetStore.map(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws Exception {
+        File file = File.createTempFile("targets", ".snapshot");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("{\"GetAllTargetsResult\":{}}".getBytes("UTF-8"));
+            out.close();
+            TargetStore.map(file);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TileSetTest {
+
+    private static final int ZOOM = 12;
+
+    @Test
+    public void quadkey_roundTripsAndBoundsContainThePoint() {
+        long tile = Quadkey.tile(3.1390, 101.6869, ZOOM);
+        String quadkey = Quadkey.encode(tile, ZOOM);
+
+        assertEquals(ZOOM, quadkey.length());
+        assertEquals(tile, Quadkey.decode(quadkey));
+        // a tile's key starts with that of its parent
+        assertTrue(quadkey.startsWith(Quadkey.encode(Quadkey.tile(3.1390, 101.6869, 5), 5)));
+
+        double[] bounds = Quadkey.bounds(tile, ZOOM);
+        assertTrue(bounds[0] <= 3.1390 && 3.1390 < bounds[2]);
+        assertTrue(bounds[1] <= 101.6869 && 101.6869 < bounds[3]);
+        assertEquals(360.0 / (1 << ZOOM), bounds[3] - bounds[1], 1e-9);
+    }
+
+    @Test
+    public void quadkey_coveringStopsAtTheLimit() {
+        List<Long> out = new ArrayList<>();
+        assertTrue(Quadkey.covering(3.0, 101.0, 3.2, 101.2, ZOOM, 100, out));
+        assertEquals(9, out.size());
+
+        out.clear();
+        assertFalse(Quadkey.covering(-10, 90, 10, 120, ZOOM, 100, out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void ahead_followsTheBearing() {
+        TileSet tiles = new TileSet(ZOOM, Long.MAX_VALUE);
+        Set<Long> around = new LinkedHashSet<>();
+        tiles.around(3.0, 101.0, 1000, around);
+
+        // ten minutes east at 25 m/s is 15 km, over a tile further
+        Set<Long> ahead = new LinkedHashSet<>();
+        tiles.ahead(3.0, 101.0, 25, 90, 600, 1000, ahead);
+
+        assertTrue(ahead.contains(tiles.tileOf(3.0, 101.0 + 15000 / GeoMath.METERS_PER_DEGREE)));
+        assertFalse(ahead.contains(tiles.tileOf(3.0, 101.0 - 15000 / GeoMath.METERS_PER_DEGREE)));
+        assertTrue(ahead.size() > around.size());
+    }
+
+    @Test
+    public void put_replacesTheTileAndIgnoresOthers() {
+        TileSet tiles = new TileSet(ZOOM, Long.MAX_VALUE);
+        long tile = tiles.tileOf(3.1390, 101.6869);
+
+        tiles.put(tile, store(new Target("a", 3.1390, 101.6869, 100), new Target("b", 3.1391, 101.6870, 100),
+                new Target("elsewhere", 5.0, 100.0, 100)));
+        assertEquals(2, tiles.getIndex().size());
+        assertEquals(1, tiles.size());
+
+        tiles.put(tile, store(new Target("a", 3.1390, 101.6869, 150)));
+        assertEquals(1, tiles.getIndex().size());
+        assertEquals(150, tiles.getIndex().nearest(3.1390, 101.6869).getTarget().getRadius(), 0);
+    }
+
+    @Test
+    public void evict_dropsLeastRecentlyUsedUnpinnedTiles() {
+        // some 30 bytes per target, so three fit
+        TileSet tiles = new TileSet(ZOOM, 100);
+        long first = tiles.tileOf(1.0, 101.0);
+        long second = tiles.tileOf(2.0, 101.0);
+        long third = tiles.tileOf(3.0, 101.0);
+        long fourth = tiles.tileOf(4.0, 101.0);
+        tiles.put(first, store(new Target("first", 1.0, 101.0, 10)));
+        tiles.put(second, store(new Target("second", 2.0, 101.0, 10)));
+        tiles.put(third, store(new Target("third", 3.0, 101.0, 10)));
+        tiles.touch(Collections.singletonList(first));
+        tiles.put(fourth, store(new Target("fourth", 4.0, 101.0, 10)));
+
+        // "second" is the least recently used; "first" was touched since
+        assertEquals(1, tiles.evict(Arrays.asList(fourth)));
+        assertFalse(tiles.contains(second));
+        assertTrue(tiles.contains(first));
+        assertEquals(3, tiles.getIndex().size());
+        assertTrue(tiles.getByteSize() <= 100);
+
+        // pinned tiles stay even over the budget
+        TileSet small = new TileSet(ZOOM, 0);
+        small.put(first, store(new Target("first", 1.0, 101.0, 10)));
+        assertEquals(0, small.evict(Collections.singletonList(first)));
+        assertEquals(1, small.getIndex().size());
+    }
+
+    @Test
+    public void change_onlyAppliesToLoadedTiles() {
+        TileSet tiles = new TileSet(ZOOM, Long.MAX_VALUE);
+        Target loaded = new Target("loaded", 3.1390, 101.6869, 100);
+        tiles.put(tiles.tileOf(3.1390, 101.6869), store(loaded));
+
+        List<Target> added = new ArrayList<>();
+        List<Target> removed = new ArrayList<>();
+        tiles.change(Arrays.asList(new Target("next door", 3.1395, 101.6870, 50), new Target("far", 5.0, 100.0, 50)),
+                Collections.singletonList(loaded), added, removed);
+
+        assertEquals(1, added.size());
+        assertEquals("next door", added.get(0).getName());
+        assertEquals(Collections.singletonList(loaded), removed);
+        assertEquals(1, tiles.getIndex().size());
+        assertEquals("next door", tiles.getIndex().nearest(3.1390, 101.6869).getTarget().getName());
+    }
+
+    @Test
+    public void restore_splitsTheSnapshotIntoTiles() {
+        TargetIndex index = new TargetIndex(Arrays.asList(new Target("a", 1.0, 101.0, 10),
+                new Target("b", 1.0001, 101.0001, 10), new Target("c", 2.0, 101.0, 10)));
+        TileSet tiles = new TileSet(ZOOM, Long.MAX_VALUE);
+        tiles.restore(index);
+
+        assertEquals(2, tiles.size());
+        assertTrue(tiles.contains(tiles.tileOf(2.0, 101.0)));
+        assertSame(index, tiles.getIndex());
+    }
+
+    private static TargetStore store(Target... targets) {
+        TargetStore.Builder builder = new TargetStore.Builder(targets.length);
+        for (Target target : targets) {
+            builder.add(target);
+        }
+        return builder.build();
+    }
+}
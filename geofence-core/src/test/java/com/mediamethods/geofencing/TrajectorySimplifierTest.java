@@ -0,0 +1,112 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrajectorySimplifierTest {
+
+    private static LocationFix at(double north, double east, long seconds) {
+        return new LocationFix(3.0 + north / GeoMath.METERS_PER_DEGREE,
+                101.0 + east / (GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(3.0))), 5, 0, 0, seconds * 1000);
+    }
+
+    /** Largest distance of any input point from the polyline through the kept points. */
+    private static double maxDeviation(List<LocationFix> input, List<LocationFix> kept) {
+        double worst = 0;
+        for (LocationFix point : input) {
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i + 1 < kept.size(); i++) {
+                best = Math.min(best, segmentDistance(point, kept.get(i), kept.get(i + 1)));
+            }
+            if (kept.size() == 1) {
+                best = GeoMath.distance(point.getLatitude(), point.getLongitude(),
+                        kept.get(0).getLatitude(), kept.get(0).getLongitude());
+            }
+            worst = Math.max(worst, best);
+        }
+        return worst;
+    }
+
+    private static double segmentDistance(LocationFix p, LocationFix a, LocationFix b) {
+        double scale = Math.cos(Math.toRadians(a.getLatitude())) * GeoMath.METERS_PER_DEGREE;
+        double ex = (b.getLongitude() - a.getLongitude()) * scale;
+        double ey = (b.getLatitude() - a.getLatitude()) * GeoMath.METERS_PER_DEGREE;
+        double px = (p.getLongitude() - a.getLongitude()) * scale;
+        double py = (p.getLatitude() - a.getLatitude()) * GeoMath.METERS_PER_DEGREE;
+        double length = ex * ex + ey * ey;
+        double t = length > 0 ? Math.max(0, Math.min(1, (px * ex + py * ey) / length)) : 0;
+        return Math.hypot(px - t * ex, py - t * ey);
+    }
+
+    @Test
+    public void straightRoad_dropsOverNinetyPercent() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(10, 100, 60000);
+        Random random = new Random(3);
+        List<LocationFix> input = new ArrayList<>();
+        List<LocationFix> kept = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            // 15 m/s with 3 m of sideways GPS jitter
+            LocationFix fix = at(i * 15, random.nextGaussian() * 3, i);
+            input.add(fix);
+            simplifier.add(fix, kept);
+        }
+        simplifier.flush(kept);
+
+        assertTrue("kept " + kept.size(), kept.size() * 10 < input.size());
+        assertTrue(maxDeviation(input, kept) <= 10 + 1e-6);
+    }
+
+    @Test
+    public void corner_isKept() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(5, 100, 600000);
+        List<LocationFix> input = new ArrayList<>();
+        List<LocationFix> kept = new ArrayList<>();
+        for (int i = 0; i <= 20; i++) {
+            input.add(at(i * 10, 0, i));
+        }
+        for (int i = 1; i <= 20; i++) {
+            input.add(at(200, i * 10, 20 + i));
+        }
+        for (LocationFix fix : input) {
+            simplifier.add(fix, kept);
+        }
+        simplifier.flush(kept);
+
+        assertEquals(3, kept.size());
+        assertSame(input.get(20), kept.get(1));
+        assertTrue(maxDeviation(input, kept) <= 5 + 1e-6);
+    }
+
+    @Test
+    public void keyPoint_isAlwaysKept() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(10, 100, 600000);
+        List<LocationFix> kept = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            simplifier.add(at(i * 10, 0, i), kept);
+        }
+        LocationFix key = at(100, 0, 10);
+        simplifier.addKey(key, kept);
+
+        assertEquals(2, kept.size());
+        assertSame(key, kept.get(1));
+        assertEquals(11, simplifier.getInputCount());
+        assertEquals(2, simplifier.getKeptCount());
+    }
+
+    @Test
+    public void pointsAreNotHeldBackLongerThanTheDelay() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(10, 100, 30000);
+        List<LocationFix> kept = new ArrayList<>();
+        for (int i = 0; i <= 90; i++) {
+            simplifier.add(at(i, 0, i), kept);
+        }
+        // first point, then one every 30 s
+        assertEquals(4, kept.size());
+        assertEquals(90000, kept.get(3).getTime());
+    }
+}
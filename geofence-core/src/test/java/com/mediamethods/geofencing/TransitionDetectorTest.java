@@ -0,0 +1,107 @@
+package com.mediamethods.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransitionDetectorTest {
+
+    private static final double LATITUDE = 3.139;
+    private static final double LONGITUDE = 101.6869;
+
+    private final TargetIndex index = new TargetIndex(Collections.singletonList(
+            new Target("cafe", LATITUDE, LONGITUDE, 100)));
+    private final TransitionDetector detector = new TransitionDetector(60000, 100);
+    private final List<Transition> out = new ArrayList<>();
+
+    /** A fix {@code meters} north of the target centre. */
+    private static LocationFix at(double meters, float accuracy, long seconds) {
+        return new LocationFix(LATITUDE + meters / GeoMath.METERS_PER_DEGREE, LONGITUDE, accuracy, 0, 0,
+                seconds * 1000);
+    }
+
+    @Test
+    public void accurateFixEntersImmediately() {
+        assertEquals(0, detector.update(at(300, 10, 0), index, out));
+        assertEquals(1, detector.update(at(50, 10, 5), index, out));
+
+        assertEquals(Transition.Type.ENTER, out.get(0).getType());
+        assertEquals("cafe", out.get(0).getTargetName());
+        assertEquals(5000, out.get(0).getTime());
+        assertEquals(1, detector.getInsideCount());
+        assertTrue(detector.isInside(new Target("cafe", LATITUDE, LONGITUDE, 100)));
+        assertFalse(detector.isInside(new Target("cafe", LATITUDE + 0.5, LONGITUDE, 100)));
+    }
+
+    @Test
+    public void polygonEntersAtItsOutline() {
+        // a triangle 800 m wide with its apex 400 m north of the target centre
+        double north = 400 / GeoMath.METERS_PER_DEGREE;
+        double east = north / Math.cos(Math.toRadians(LATITUDE));
+        TargetIndex shapes = new TargetIndex(Collections.singletonList(new Target("lot", FenceShape.polygon(
+                new double[]{LATITUDE, LONGITUDE - east, LATITUDE, LONGITUDE + east, LATITUDE + north, LONGITUDE}))));
+
+        // beyond the apex: inside the bounding circle, outside the triangle
+        assertEquals(0, detector.update(at(420, 10, 0), shapes, out));
+        assertEquals(1, detector.update(at(50, 10, 5), shapes, out));
+        assertEquals(Transition.Type.ENTER, out.get(0).getType());
+    }
+
+    @Test
+    public void targetsGoneFromTheIndexAreForgotten() {
+        assertEquals(1, detector.update(at(0, 10, 0), index, out));
+
+        // a delta removed the target while the device is still there
+        TargetIndex without = new TargetIndex(Collections.singletonList(
+                new Target("other", LATITUDE + 0.5, LONGITUDE, 100)));
+        assertEquals(0, detector.update(at(0, 10, 5), without, out));
+        assertEquals(0, detector.getInsideCount());
+    }
+
+    @Test
+    public void inaccurateFixNeedsConfirmation() {
+        // the accuracy circle reaches outside: one fix is not enough
+        assertEquals(0, detector.update(at(60, 60, 0), index, out));
+        assertEquals(1, detector.update(at(70, 60, 5), index, out));
+        assertEquals(Transition.Type.ENTER, out.get(0).getType());
+
+        // too inaccurate to count at all
+        TransitionDetector other = new TransitionDetector(60000, 100);
+        assertEquals(0, other.update(at(0, 150, 0), index, out));
+        assertEquals(0, other.update(at(0, 150, 5), index, out));
+        assertEquals(0, other.getInsideCount());
+    }
+
+    @Test
+    public void edgeJitterDoesNotFlap() {
+        detector.update(at(0, 5, 0), index, out);
+        out.clear();
+
+        // within the 10 m margin on both sides of the 100 m radius
+        for (int i = 1; i <= 20; i++) {
+            detector.update(at(i % 2 == 0 ? 95 : 108, 5, i), index, out);
+        }
+        assertTrue(out.toString(), out.isEmpty());
+
+        detector.update(at(130, 5, 30), index, out);
+        assertEquals(1, out.size());
+        assertEquals(Transition.Type.EXIT, out.get(0).getType());
+        assertEquals(0, detector.getInsideCount());
+    }
+
+    @Test
+    public void dwellReportedOnceAfterDwellTime() {
+        detector.update(at(0, 5, 0), index, out);
+        detector.update(at(10, 5, 30), index, out);
+        detector.update(at(10, 500, 60), index, out);
+        detector.update(at(10, 5, 90), index, out);
+
+        assertEquals(2, out.size());
+        assertEquals(Transition.Type.DWELL, out.get(1).getType());
+        assertEquals(60000, out.get(1).getTime());
+    }
+}
@@ -0,0 +1,806 @@
+package com.mediamethods.geofencing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reference implementation of GeoLocationService.svc for local development and load tests.
+ *
+ * <ul>
+ * <li>{@code POST UpdateLocation} takes a JSON or binary location batch, keeps the newest fix
+ * per device and answers with the distance from it to the closest target edge, looked up in a
+ * {@link TargetIndex}. Geofence transitions the device reports are counted.</li>
+ * <li>{@code POST GetAllTargets} returns every target and the version of the set. The
+ * response carries an ETag and Last-Modified, and a matching If-None-Match gets 304.</li>
+ * <li>{@code POST GetTargetChanges} takes {@code {"since":<version>}} and returns the targets
+ * added, changed and removed since, by name, or a reset when that version is too old.</li>
+ * <li>{@code POST GetTargetsInTile} takes {@code {"tile":"<quadkey>"}} and returns the targets
+ * whose centre lies in that Web Mercator tile, in the GetAllTargets format. Its ETag only
+ * covers the targets, so a tile nothing changed in revalidates across versions.</li>
+ * </ul>
+ *
+ * Every change to the targets bumps the version, which UpdateLocation responses carry so
+ * clients notice they are behind.
+ *
+ * Both answer with the envelope of the production service, where {@code *Result} and its
+ * {@code payload} are JSON-encoded strings. Gzip is accepted and sent like GeoApiClient
+ * expects.
+ */
+public class GeoLocationServer {
+
+    public static final String PATH = "/GeoLocationService.svc/";
+
+    static {
+        // without it small responses wait for the delayed ACK, some 40 ms per request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // changes older than this many are forgotten; clients further behind reload everything
+    private static final int CHANGE_LOG_CAPACITY = 10000;
+
+    private static final String[] CHANGE_REQUEST_FIELDS = {"since"};
+    private static final String[] TILE_REQUEST_FIELDS = {"tile"};
+
+    private volatile Targets targets;
+
+    // guarded by this: the changes after version changeLogBase, oldest first
+    private final List<Change> changeLog = new ArrayList<>();
+    private long changeLogBase = 1;
+
+    private final ConcurrentHashMap<String, LocationFix> devices = new ConcurrentHashMap<>();
+
+    private final AtomicLong updateRequests = new AtomicLong();
+    private final AtomicLong fixesReceived = new AtomicLong();
+    private final AtomicLong transitionsReceived = new AtomicLong();
+    private final AtomicLong targetRequests = new AtomicLong();
+    private final AtomicLong changeRequests = new AtomicLong();
+    private final AtomicLong tileRequests = new AtomicLong();
+
+    /**
+     * @param port    port to listen on, 0 for any free port
+     * @param threads request handler threads
+     */
+    public GeoLocationServer(int port, int threads, List<Target> targets) throws IOException {
+        setTargets(targets);
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext(PATH + "UpdateLocation", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleUpdateLocation(exchange);
+            }
+        });
+        server.createContext(PATH + "GetAllTargets", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleGetAllTargets(exchange);
+            }
+        });
+        server.createContext(PATH + "GetTargetChanges", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleGetTargetChanges(exchange);
+            }
+        });
+        server.createContext(PATH + "GetTargetsInTile", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleGetTargetsInTile(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /** Base URL for a {@link GeoApiClient} on this machine. */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort() + PATH;
+    }
+
+    /**
+     * Replaces the target list. Targets are matched by name; when any was added, changed or
+     * removed the version goes up and the changes are logged for GetTargetChanges.
+     */
+    public synchronized void setTargets(List<Target> list) throws IOException {
+        Targets previous = targets;
+        long version = 1;
+        if (previous != null) {
+            Map<String, Target> next = byName(list);
+            List<Change> changes = new ArrayList<>();
+            for (Target target : next.values()) {
+                Target old = previous.byName.get(target.getName());
+                if (!target.equals(old)) {
+                    changes.add(new Change(previous.version + 1, target.getName(), target));
+                }
+            }
+            for (String name : previous.byName.keySet()) {
+                if (!next.containsKey(name)) {
+                    changes.add(new Change(previous.version + 1, name, null));
+                }
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+            version = previous.version + 1;
+            changeLog.addAll(changes);
+            if (changeLog.size() > CHANGE_LOG_CAPACITY) {
+                List<Change> forgotten = changeLog.subList(0, changeLog.size() - CHANGE_LOG_CAPACITY);
+                changeLogBase = forgotten.get(forgotten.size() - 1).version;
+                forgotten.clear();
+            }
+        }
+        targets = new Targets(list, version, System.currentTimeMillis());
+    }
+
+    /** Adds the target, or replaces the one of the same name. */
+    public synchronized void putTarget(Target target) throws IOException {
+        Map<String, Target> next = new LinkedHashMap<>(targets.byName);
+        next.put(target.getName(), target);
+        setTargets(new ArrayList<>(next.values()));
+    }
+
+    public synchronized void removeTarget(String name) throws IOException {
+        Map<String, Target> next = new LinkedHashMap<>(targets.byName);
+        next.remove(name);
+        setTargets(new ArrayList<>(next.values()));
+    }
+
+    public long getTargetsVersion() {
+        return targets.version;
+    }
+
+    /** Newest fix received from the device, or null. */
+    public LocationFix getDevice(String id) {
+        return devices.get(id);
+    }
+
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    public long getUpdateRequests() {
+        return updateRequests.get();
+    }
+
+    public long getFixesReceived() {
+        return fixesReceived.get();
+    }
+
+    public long getTransitionsReceived() {
+        return transitionsReceived.get();
+    }
+
+    public long getTargetRequests() {
+        return targetRequests.get();
+    }
+
+    public long getChangeRequests() {
+        return changeRequests.get();
+    }
+
+    public long getTileRequests() {
+        return tileRequests.get();
+    }
+
+    private void handleUpdateLocation(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = readRequestBody(exchange);
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+            LocationBatchEncoder.Batch batch;
+            try {
+                if (LocationBatchEncoder.CONTENT_TYPE.equals(contentType)) {
+                    batch = LocationBatchEncoder.decode(body);
+                } else if (contentType == null || contentType.startsWith("application/json")) {
+                    batch = decodeJsonBatch(body);
+                } else {
+                    exchange.sendResponseHeaders(415, -1);
+                    return;
+                }
+            } catch (IOException ex) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (batch.getUserId() == null || (batch.getFixes().isEmpty() && batch.getTransitions().isEmpty())) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            updateRequests.incrementAndGet();
+            fixesReceived.addAndGet(batch.getFixes().size());
+            transitionsReceived.addAndGet(batch.getTransitions().size());
+            LocationFix latest = batch.getFixes().isEmpty()
+                    ? devices.get(batch.getUserId()) : batch.getFixes().get(batch.getFixes().size() - 1);
+            if (latest != null) {
+                devices.put(batch.getUserId(), latest);
+            }
+
+            Targets current = targets;
+            TargetIndex.Nearest nearest = latest == null
+                    ? null : current.index.nearest(latest.getLatitude(), latest.getLongitude());
+            double distance = nearest == null ? -1 : Math.max(0, nearest.getBoundaryDistance());
+            String payload = "{\"distanceToClosest\":\"" + String.format(Locale.US, "%.1f", distance)
+                    + "\",\"targetsVersion\":" + current.version + "}";
+            sendJson(exchange, envelope("UpdateLocationResult", payload).getBytes("UTF-8"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleGetAllTargets(HttpExchange exchange) throws IOException {
+        try {
+            targetRequests.incrementAndGet();
+            readRequestBody(exchange);
+
+            Targets current = targets;
+            exchange.getResponseHeaders().set("ETag", current.etag);
+            exchange.getResponseHeaders().set("Last-Modified", current.lastModified);
+            if (current.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            sendJson(exchange, current.body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleGetTargetChanges(HttpExchange exchange) throws IOException {
+        try {
+            changeRequests.incrementAndGet();
+            long since = -1;
+            try {
+                JsonPullParser parser = new JsonPullParser(
+                        new InputStreamReader(new ByteArrayInputStream(readRequestBody(exchange)), "UTF-8"));
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    if (parser.nextName(CHANGE_REQUEST_FIELDS) == 0 && parser.peek() != JsonPullParser.Token.NULL) {
+                        since = (long) parser.nextDouble();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+            } catch (IOException ex) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (since < 0) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            sendJson(exchange, envelope("GetTargetChangesResult", changesSince(since)).getBytes("UTF-8"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleGetTargetsInTile(HttpExchange exchange) throws IOException {
+        try {
+            tileRequests.incrementAndGet();
+            String quadkey = null;
+            long tile;
+            try {
+                JsonPullParser parser = new JsonPullParser(
+                        new InputStreamReader(new ByteArrayInputStream(readRequestBody(exchange)), "UTF-8"));
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    if (parser.nextName(TILE_REQUEST_FIELDS) == 0 && parser.peek() != JsonPullParser.Token.NULL) {
+                        quadkey = parser.nextString();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                if (quadkey == null) {
+                    throw new IOException("No tile");
+                }
+                tile = Quadkey.decode(quadkey);
+            } catch (IOException | IllegalArgumentException ex) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            Targets current = targets;
+            Tile body = current.tile(tile, quadkey.length());
+            exchange.getResponseHeaders().set("ETag", body.etag);
+            exchange.getResponseHeaders().set("Last-Modified", current.lastModified);
+            if (body.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            sendJson(exchange, body.body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The GetTargetChanges payload for a client at the given version: the latest state of
+     * every target changed since, or a reset when the log does not reach back that far.
+     */
+    private synchronized String changesSince(long since) {
+        long version = targets.version;
+        if (since < changeLogBase || since > version) {
+            return "{\"version\":" + version + ",\"reset\":true}";
+        }
+
+        // a later change of the same target wins; null marks a removal
+        Map<String, Target> latest = new LinkedHashMap<>();
+        for (Change change : changeLog) {
+            if (change.version > since) {
+                latest.remove(change.name);
+                latest.put(change.name, change.target);
+            }
+        }
+
+        StringBuilder upserts = new StringBuilder();
+        StringBuilder removed = new StringBuilder();
+        for (Map.Entry<String, Target> entry : latest.entrySet()) {
+            if (entry.getValue() != null) {
+                if (upserts.length() > 0) {
+                    upserts.append(',');
+                }
+                appendTarget(upserts, entry.getValue());
+            } else {
+                if (removed.length() > 0) {
+                    removed.append(',');
+                }
+                removed.append(quote(entry.getKey()));
+            }
+        }
+        return "{\"version\":" + version + ",\"upserts\":[" + upserts + "],\"removed\":[" + removed + "]}";
+    }
+
+    private static LocationBatchEncoder.Batch decodeJsonBatch(byte[] body) throws IOException {
+        final String[] fields = {"id", "latitude", "longitude", "locations", "transitions"};
+        final String[] locationFields = {"latitude", "longitude", "time"};
+        final String[] transitionFields = {"type", "target", "time"};
+
+        String id = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        List<LocationFix> fixes = new ArrayList<>();
+        List<Transition> transitions = new ArrayList<>();
+
+        JsonPullParser parser = new JsonPullParser(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int field = parser.nextName(fields);
+            if (field == -1 || parser.peek() == JsonPullParser.Token.NULL) {
+                parser.skipValue();
+            } else if (field == 0) {
+                id = parser.nextString();
+            } else if (field == 1) {
+                latitude = parser.nextDouble();
+            } else if (field == 2) {
+                longitude = parser.nextDouble();
+            } else if (field == 4) {
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    transitions.add(decodeJsonTransition(parser, transitionFields));
+                }
+                parser.endArray();
+            } else {
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    double[] values = {Double.NaN, Double.NaN, 0};
+                    parser.beginObject();
+                    while (parser.hasNext()) {
+                        int locationField = parser.nextName(locationFields);
+                        if (locationField == -1 || parser.peek() == JsonPullParser.Token.NULL) {
+                            parser.skipValue();
+                        } else {
+                            values[locationField] = parser.nextDouble();
+                        }
+                    }
+                    parser.endObject();
+                    if (!Double.isNaN(values[0]) && !Double.isNaN(values[1])) {
+                        fixes.add(new LocationFix(values[0], values[1], 0, 0, 0, (long) values[2]));
+                    }
+                }
+                parser.endArray();
+            }
+        }
+        parser.endObject();
+
+        // the single-fix request without a "locations" array
+        if (fixes.isEmpty() && !Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            fixes.add(new LocationFix(latitude, longitude, 0, 0, 0, System.currentTimeMillis()));
+        }
+        return new LocationBatchEncoder.Batch(id, fixes, null, transitions);
+    }
+
+    private static Transition decodeJsonTransition(JsonPullParser parser, String[] fields) throws IOException {
+        Transition.Type type = null;
+        String target = null;
+        long time = 0;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int field = parser.nextName(fields);
+            if (field == -1 || parser.peek() == JsonPullParser.Token.NULL) {
+                parser.skipValue();
+            } else if (field == 0) {
+                try {
+                    type = Transition.Type.valueOf(parser.nextString());
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Unknown transition type");
+                }
+            } else if (field == 1) {
+                target = parser.nextString();
+            } else {
+                time = (long) parser.nextDouble();
+            }
+        }
+        parser.endObject();
+        if (type == null || target == null) {
+            throw new IOException("Incomplete transition");
+        }
+        return new Transition(type, target, time);
+    }
+
+    private static byte[] readRequestBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        return readFully(in);
+    }
+
+    private static void sendJson(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip") && body.length >= GeoApiClient.GZIP_MIN_BYTES) {
+            body = gzip(body);
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The production envelope: {@code {"<result>":"{\"status\":0,\"payload\":\"<payload>\"}"}}.
+     */
+    static String envelope(String resultName, String payload) {
+        return envelope(resultName, payload, -1);
+    }
+
+    /**
+     * The envelope with the version of the target set next to the payload, when not negative.
+     */
+    static String envelope(String resultName, String payload, long version) {
+        String result = "{\"status\":0," + (version >= 0 ? "\"version\":" + version + "," : "")
+                + "\"payload\":" + quote(payload) + "}";
+        return "{\"" + resultName + "\":" + quote(result) + "}";
+    }
+
+    private static StringBuilder appendTarget(StringBuilder sb, Target target) {
+        // the production service sends every field as a string
+        FenceShape shape = target.getShape();
+        if (shape == null) {
+            return sb.append("{\"latitude\":\"").append(target.getLatitude())
+                    .append("\",\"longitude\":\"").append(target.getLongitude())
+                    .append("\",\"radius\":\"").append(target.getRadius())
+                    .append("\",\"name\":").append(quote(target.getName())).append('}');
+        }
+        sb.append("{\"type\":\"").append(shape.getType() == FenceShape.Type.CORRIDOR ? "corridor" : "polygon");
+        if (shape.getType() == FenceShape.Type.CORRIDOR) {
+            sb.append("\",\"radius\":\"").append(shape.getHalfWidth());
+        }
+        sb.append("\",\"points\":\"");
+        double[] points = shape.getPoints();
+        for (int i = 0; i < points.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(points[i]);
+        }
+        return sb.append("\",\"name\":").append(quote(target.getName())).append('}');
+    }
+
+    private static Map<String, Target> byName(List<Target> list) {
+        Map<String, Target> map = new LinkedHashMap<>();
+        for (Target target : list) {
+            map.put(target.getName(), target);
+        }
+        return map;
+    }
+
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 16).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads targets from CSV lines of {@code name,latitude,longitude,radius}, or
+     * {@code name,polygon,lat,lon,lat,lon,...} and {@code name,corridor,halfWidth,lat,lon,...};
+     * lines starting with # are skipped.
+     */
+    public static List<Target> readTargets(File file) throws IOException {
+        List<Target> list = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if ("polygon".equals(fields[1]) || "corridor".equals(fields[1])) {
+                    boolean corridor = "corridor".equals(fields[1]);
+                    int first = corridor ? 3 : 2;
+                    double[] points = new double[fields.length - first];
+                    for (int i = 0; i < points.length; i++) {
+                        points[i] = Double.parseDouble(fields[first + i]);
+                    }
+                    list.add(new Target(fields[0], corridor
+                            ? FenceShape.corridor(points, Float.parseFloat(fields[2])) : FenceShape.polygon(points)));
+                } else {
+                    list.add(new Target(fields[0], Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                            Float.parseFloat(fields[3])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return list;
+    }
+
+    /**
+     * Random targets within {@code spanDegrees} of a centre point.
+     */
+    public static List<Target> randomTargets(int count, double latitude, double longitude, double spanDegrees,
+                                             long seed) {
+        Random random = new Random(seed);
+        List<Target> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new Target("target " + i,
+                    latitude + (random.nextDouble() * 2 - 1) * spanDegrees,
+                    longitude + (random.nextDouble() * 2 - 1) * spanDegrees,
+                    50 + random.nextInt(450)));
+        }
+        return list;
+    }
+
+    /**
+     * Usage: {@code GeoLocationServer [--port 8080] [--threads 16] [--targets file.csv | --random 10000]}
+     */
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        int threads = 16;
+        List<Target> list = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--port".equals(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if ("--targets".equals(args[i])) {
+                list = readTargets(new File(args[i + 1]));
+            } else if ("--random".equals(args[i])) {
+                list = randomTargets(Integer.parseInt(args[i + 1]), 3.139, 101.6869, 0.3, 1);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (list == null) {
+            list = randomTargets(10000, 3.139, 101.6869, 0.3, 1);
+        }
+
+        final GeoLocationServer server = new GeoLocationServer(port, threads, list);
+        server.start();
+        System.out.println("Serving " + list.size() + " targets at http://0.0.0.0:" + server.getPort() + PATH);
+
+        while (true) {
+            TimeUnit.SECONDS.sleep(10);
+            System.out.println(server.getUpdateRequests() + " UpdateLocation requests, "
+                    + server.getFixesReceived() + " fixes from " + server.getDeviceCount() + " devices, "
+                    + server.getTransitionsReceived() + " transitions, "
+                    + server.getTargetRequests() + " GetAllTargets, "
+                    + server.getChangeRequests() + " GetTargetChanges and "
+                    + server.getTileRequests() + " GetTargetsInTile requests");
+        }
+    }
+
+    /**
+     * One change in the log, a removal when the target is null.
+     */
+    private static class Change {
+
+        final long version;
+        final String name;
+        final Target target;
+
+        Change(long version, String name, Target target) {
+            this.version = version;
+            this.name = name;
+            this.target = target;
+        }
+    }
+
+    /**
+     * The GetTargetsInTile response for one tile.
+     */
+    private static class Tile {
+
+        final byte[] body;
+        final String etag;
+
+        Tile(byte[] body, String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * A version of the target list with everything needed to serve it.
+     */
+    private static class Targets {
+
+        final long version;
+        final Map<String, Target> byName;
+        final TargetIndex index;
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+
+        // tile responses of this version, built on first request; keyed by zoom and tile
+        private final Map<String, Tile> tiles = new ConcurrentHashMap<>();
+
+        Targets(List<Target> list, long version, long modified) throws IOException {
+            this.version = version;
+            byName = byName(list);
+            index = new TargetIndex(list);
+
+            StringBuilder payload = new StringBuilder(list.size() * 96).append('[');
+            for (Target target : list) {
+                if (payload.length() > 1) {
+                    payload.append(',');
+                }
+                appendTarget(payload, target);
+            }
+            payload.append(']');
+            body = envelope("GetAllTargetsResult", payload.toString(), version).getBytes("UTF-8");
+            etag = etag(body);
+
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            lastModified = format.format(new Date(modified));
+        }
+
+        Tile tile(long tile, int zoom) throws IOException {
+            String key = zoom + "/" + tile;
+            Tile cached = tiles.get(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            double[] bounds = Quadkey.bounds(tile, zoom);
+            List<Target> candidates = new ArrayList<>();
+            index.query(bounds[0], bounds[1], bounds[2], bounds[3], candidates);
+            StringBuilder payload = new StringBuilder(candidates.size() * 96).append('[');
+            for (Target target : candidates) {
+                // a target on an edge belongs to the tile its centre rounds into
+                if (Quadkey.tile(target.getLatitude(), target.getLongitude(), zoom) != tile) {
+                    continue;
+                }
+                if (payload.length() > 1) {
+                    payload.append(',');
+                }
+                appendTarget(payload, target);
+            }
+            payload.append(']');
+            String targetsPayload = payload.toString();
+            Tile built = new Tile(envelope("GetTargetsInTileResult", targetsPayload, version).getBytes("UTF-8"),
+                    etag(targetsPayload.getBytes("UTF-8")));
+            tiles.put(key, built);
+            return built;
+        }
+
+        private static String etag(byte[] content) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(content.length) + "\"";
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.mediamethods.geofencing;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives an UpdateLocation endpoint with many simulated devices. Each device random-walks,
+ * samples at the interval its own {@link SamplingScheduler} asks for and posts binary batches
+ * the way GeoLocationService does, so the request rate follows the adaptive sampling rather
+ * than a fixed period.
+ *
+ * Usage: {@code LoadGenerator [--url base] [--devices 20000] [--threads 64] [--seconds 60]}.
+ * Without --url a {@link GeoLocationServer} is started in-process. Throughput, failures and
+ * round-trip percentiles are printed every {@link #REPORT_INTERVAL_IN_SECONDS}.
+ */
+public class LoadGenerator {
+
+    static final int REPORT_INTERVAL_IN_SECONDS = 10;
+
+    // upload settings, as in GeoLocationService
+    static final long UPLOAD_FLUSH_INTERVAL_IN_MILLISECONDS = 5000;
+    static final int UPLOAD_QUEUE_CAPACITY = 300;
+
+    private static final double SPAN_IN_DEGREES = 0.3;
+
+    private final GeoApiClient client;
+    private final DelayQueue<Device> queue = new DelayQueue<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong fixes = new AtomicLong();
+    private volatile Metrics.Histogram roundTripMillis = new Metrics.Histogram();
+
+    public LoadGenerator(String baseUrl) {
+        client = new GeoApiClient(baseUrl);
+    }
+
+    /**
+     * One simulated phone. Only touched by the worker that took it off the queue.
+     */
+    private static class Device implements Delayed {
+
+        final String id;
+        final Random random;
+        final SamplingScheduler scheduler = new SamplingScheduler();
+        final List<LocationFix> pending = new ArrayList<>();
+
+        double latitude;
+        double longitude;
+        double speed;
+        double bearing;
+        long lastMoved;
+        long nextFix;
+        long nextPost;
+
+        Device(int number, long now, long seed) {
+            id = String.format(Locale.US, "load-%08d", number);
+            random = new Random(seed + number);
+            latitude = 3.139 + (random.nextDouble() * 2 - 1) * SPAN_IN_DEGREES;
+            longitude = 101.6869 + (random.nextDouble() * 2 - 1) * SPAN_IN_DEGREES;
+            // a mix of parked, walking and driving phones
+            speed = new double[]{0, 0, 1.4, 1.4, 15}[random.nextInt(5)];
+            bearing = random.nextDouble() * 360;
+            lastMoved = now;
+            // spread the first requests over a flush interval so they do not arrive at once
+            nextFix = now + random.nextInt((int) UPLOAD_FLUSH_INTERVAL_IN_MILLISECONDS);
+            nextPost = nextFix + UPLOAD_FLUSH_INTERVAL_IN_MILLISECONDS;
+        }
+
+        void move(long now) {
+            double seconds = (now - lastMoved) / 1000.0;
+            lastMoved = now;
+            bearing = (bearing + random.nextGaussian() * 10 + 360) % 360;
+            double step = speed * seconds / GeoMath.METERS_PER_DEGREE;
+            latitude += step * Math.cos(Math.toRadians(bearing));
+            longitude += step * Math.sin(Math.toRadians(bearing)) / Math.cos(Math.toRadians(latitude));
+        }
+
+        long due() {
+            return Math.min(nextFix, nextPost);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long a = due();
+            long b = ((Device) other).due();
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    }
+
+    public void addDevices(int count, long seed) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            queue.add(new Device(i, now, seed));
+        }
+    }
+
+    /**
+     * Runs {@code threads} workers until {@code seconds} have passed.
+     */
+    public void run(int threads, int seconds) throws InterruptedException {
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(end);
+                }
+            }, "load-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long lastRequests = 0;
+        long lastReport = System.currentTimeMillis();
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(REPORT_INTERVAL_IN_SECONDS * 1000L, Math.max(1, end - System.currentTimeMillis())));
+            long now = System.currentTimeMillis();
+            Metrics.Histogram window = roundTripMillis;
+            roundTripMillis = new Metrics.Histogram();
+            long total = requests.get();
+            System.out.println(String.format(Locale.US,
+                    "%8.1f req/s  %6d failed  %9d fixes  rtt p50 %4d ms  p99 %5d ms  max %5d ms",
+                    (total - lastRequests) * 1000.0 / Math.max(1, now - lastReport), failures.get(), fixes.get(),
+                    window.percentile(50), window.percentile(99), window.getMax()));
+            lastRequests = total;
+            lastReport = now;
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private void work(long end) {
+        while (true) {
+            Device device;
+            try {
+                device = queue.poll(Math.max(1, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (device == null || now >= end) {
+                if (device != null) {
+                    queue.add(device);
+                }
+                return;
+            }
+            step(device, now);
+            queue.add(device);
+        }
+    }
+
+    private void step(Device device, long now) {
+        if (now >= device.nextFix) {
+            device.move(now);
+            LocationFix fix = new LocationFix(device.latitude, device.longitude, 10, (float) device.speed,
+                    (float) device.bearing, now);
+            device.pending.add(fix);
+            device.nextFix = now + device.scheduler.getPlan().getIntervalMillis();
+        }
+        if (now < device.nextPost || device.pending.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            GeoApiClient.Response response = client.post("UpdateLocation",
+                    LocationBatchEncoder.encode(device.id, device.pending), LocationBatchEncoder.CONTENT_TYPE);
+            double distance;
+            try {
+                distance = UpdateLocationResponse.decode(new InputStreamReader(response.getBody(), "UTF-8"))
+                        .getDistanceToClosest();
+            } finally {
+                response.close();
+            }
+            roundTripMillis.record((System.nanoTime() - start) / 1000000);
+            requests.incrementAndGet();
+            fixes.addAndGet(device.pending.size());
+            device.pending.clear();
+            if (!Double.isNaN(distance) && distance >= 0) {
+                // the server distance is to the edge, the phone has no heading to the target
+                device.scheduler.update(distance, 10, device.speed, Double.NaN);
+            }
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            if (device.pending.size() > UPLOAD_QUEUE_CAPACITY) {
+                device.pending.subList(0, device.pending.size() - UPLOAD_QUEUE_CAPACITY).clear();
+            }
+        }
+        device.nextPost = now + Math.max(UPLOAD_FLUSH_INTERVAL_IN_MILLISECONDS,
+                device.scheduler.getPlan().getIntervalMillis());
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        int devices = 20000;
+        int threads = 64;
+        int seconds = 60;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--url".equals(args[i])) {
+                url = args[i + 1];
+            } else if ("--devices".equals(args[i])) {
+                devices = Integer.parseInt(args[i + 1]);
+            } else if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        // one keep-alive connection per worker
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+
+        GeoLocationServer server = null;
+        if (url == null) {
+            server = new GeoLocationServer(0, 16,
+                    GeoLocationServer.randomTargets(10000, 3.139, 101.6869, SPAN_IN_DEGREES, 1));
+            server.start();
+            url = server.getBaseUrl();
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(url);
+            generator.addDevices(devices, 1);
+            System.out.println(devices + " devices on " + threads + " threads against " + url);
+            generator.run(threads, seconds);
+            System.out.println(generator.getRequests() + " requests, " + generator.getFailures() + " failed");
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.mediamethods.geofencing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeoLocationServerTest {
+
+    private GeoLocationServer server;
+    private GeoApiClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        List<Target> targets = Arrays.asList(
+                new Target("near", 3.1390, 101.6869, 100),
+                new Target("far", 3.2000, 101.7500, 200));
+        server = new GeoLocationServer(0, 2, targets);
+        server.start();
+        client = new GeoApiClient(server.getBaseUrl());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private double post(byte[] body, String contentType) throws Exception {
+        GeoApiClient.Response response = client.post("UpdateLocation", body, contentType);
+        try {
+            return UpdateLocationResponse.decode(new InputStreamReader(response.getBody(), "UTF-8"))
+                    .getDistanceToClosest();
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void updateLocation_binaryBatchAnswersDistanceToEdge() throws Exception {
+        // 1 km north of "near", whose edge is 100 m from its centre
+        double latitude = 3.1390 + 1000 / GeoMath.METERS_PER_DEGREE;
+        List<LocationFix> batch = Arrays.asList(
+                new LocationFix(3.0, 101.0, 5, 0, 0, 1000),
+                new LocationFix(latitude, 101.6869, 5, 0, 0, 2000));
+
+        double distance = post(LocationBatchEncoder.encode("device-1", batch), LocationBatchEncoder.CONTENT_TYPE);
+
+        assertEquals(900, distance, 2);
+        assertEquals(latitude, server.getDevice("device-1").getLatitude(), 1e-6);
+        assertEquals(2, server.getFixesReceived());
+    }
+
+    @Test
+    public void updateLocation_jsonInsideTargetAnswersZero() throws Exception {
+        String json = "{\"id\":\"device-2\",\"latitude\":3.139,\"longitude\":101.6869,"
+                + "\"locations\":[{\"longitude\":101.6869,\"latitude\":3.139,\"time\":1000}],"
+                + "\"metrics\":\"up=1\"}";
+
+        double distance = post(json.getBytes("UTF-8"), GeoApiClient.CONTENT_TYPE_JSON);
+
+        assertEquals(0, distance, 0);
+        assertEquals(1, server.getDeviceCount());
+    }
+
+    @Test
+    public void updateLocation_rejectsUnknownContentType() throws Exception {
+        try {
+            post(new byte[]{1, 2, 3}, "application/octet-stream");
+            fail();
+        } catch (GeoApiClient.HttpException ex) {
+            assertEquals(415, ex.getStatus());
+        }
+    }
+
+    @Test
+    public void getAllTargets_decodesAndRevalidates() throws Exception {
+        List<Target> many = new ArrayList<>(GeoLocationServer.randomTargets(500, 3.139, 101.6869, 0.3, 1));
+        server.setTargets(many);
+
+        GeoApiClient.Response response = client.post("GetAllTargets", null, GeoApiClient.CONTENT_TYPE_JSON);
+        final List<Target> decoded = new ArrayList<>();
+        String etag;
+        try {
+            assertEquals("gzip", response.getHeader("Content-Encoding"));
+            etag = response.getHeader("ETag");
+            TargetListDecoder.decode(new InputStreamReader(response.getBody(), "UTF-8"),
+                    new TargetListDecoder.TargetSink() {
+                        public void onTarget(String name, double latitude, double longitude, float radius) {
+                            decoded.add(new Target(name, latitude, longitude, radius));
+                        }
+                    });
+        } finally {
+            response.close();
+        }
+        assertEquals(many.size(), decoded.size());
+        assertEquals(many.get(42).getName(), decoded.get(42).getName());
+        assertEquals(many.get(42).getLatitude(), decoded.get(42).getLatitude(), 1e-9);
+        assertNotNull(etag);
+
+        response = client.post("GetAllTargets", null, GeoApiClient.CONTENT_TYPE_JSON,
+                Collections.singletonMap("If-None-Match", etag));
+        try {
+            assertEquals(304, response.getStatus());
+        } finally {
+            response.close();
+        }
+    }
+
+    private TargetDelta changesSince(long version) throws Exception {
+        GeoApiClient.Response response = client.post("GetTargetChanges",
+                ("{\"since\":" + version + "}").getBytes("UTF-8"), GeoApiClient.CONTENT_TYPE_JSON);
+        try {
+            Reader reader = new InputStreamReader(response.getBody(), "UTF-8");
+            return TargetDelta.decode(reader);
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void getTargetChanges_sendsOnlyWhatChanged() throws Exception {
+        long version = server.getTargetsVersion();
+        server.putTarget(new Target("far", 3.2000, 101.7500, 250));
+        server.putTarget(new Target("new", 3.3000, 101.8000, 50));
+        server.removeTarget("near");
+        server.putTarget(new Target("new", 3.3000, 101.8000, 60));
+
+        TargetDelta delta = changesSince(version);
+
+        assertEquals(version + 4, delta.getVersion());
+        assertEquals(2, delta.getUpserts().size());
+        assertEquals(250, delta.getUpserts().get(0).getRadius(), 0);
+        assertEquals(60, delta.getUpserts().get(1).getRadius(), 0);
+        assertEquals(Collections.singletonList("near"), delta.getRemoved());
+
+        // clients are told through UpdateLocation, and an unknown version means starting over
+        GeoApiClient.Response response = client.post("UpdateLocation",
+                LocationBatchEncoder.encode("device-3", Collections.singletonList(new LocationFix(3.0, 101.0, 5, 0, 0, 1))),
+                LocationBatchEncoder.CONTENT_TYPE);
+        try {
+            assertEquals(version + 4, UpdateLocationResponse.decode(
+                    new InputStreamReader(response.getBody(), "UTF-8")).getTargetsVersion());
+        } finally {
+            response.close();
+        }
+        assertTrue(changesSince(version + 5).isReset());
+        assertTrue(changesSince(version + 4).getUpserts().isEmpty());
+    }
+
+    @Test
+    public void getTargetsInTile_sendsTheTileAndRevalidatesAcrossVersions() throws Exception {
+        String quadkey = Quadkey.encode(Quadkey.tile(3.1390, 101.6869, 12), 12);
+        byte[] request = ("{\"tile\":\"" + quadkey + "\"}").getBytes("UTF-8");
+
+        GeoApiClient.Response response = client.post("GetTargetsInTile", request, GeoApiClient.CONTENT_TYPE_JSON);
+        final List<String> names = new ArrayList<>();
+        String etag;
+        try {
+            etag = response.getHeader("ETag");
+            TargetListDecoder.decode(new InputStreamReader(response.getBody(), "UTF-8"),
+                    new TargetListDecoder.TargetSink() {
+                        public void onTarget(String name, double latitude, double longitude, float radius) {
+                            names.add(name);
+                        }
+                    });
+        } finally {
+            response.close();
+        }
+        // "far" is some 10 km away, in another tile
+        assertEquals(Collections.singletonList("near"), names);
+
+        // a change elsewhere leaves the tile as it was
+        server.putTarget(new Target("elsewhere", 5.0, 100.0, 50));
+        response = client.post("GetTargetsInTile", request, GeoApiClient.CONTENT_TYPE_JSON,
+                Collections.singletonMap("If-None-Match", etag));
+        try {
+            assertEquals(304, response.getStatus());
+        } finally {
+            response.close();
+        }
+
+        try {
+            client.post("GetTargetsInTile", "{\"tile\":\"0124\"}".getBytes("UTF-8"),
+                    GeoApiClient.CONTENT_TYPE_JSON).close();
+            fail("expected 400");
+        } catch (GeoApiClient.HttpException expected) {
+            assertEquals(400, expected.getStatus());
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.mediamethods.geofencing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays traces through the pipeline of GeoLocationService on a virtual clock: the GPS
+ * delivers a fix whenever the current request interval has passed, each fix goes through
+ * the nearest-target lookup, the transition detector, the sampling scheduler, the movement
+ * filter and the track simplifier, and batches are encoded and posted to a
+ * {@link StubGeoServer} with {@link GeoApiClient}.
+ *
+ * Geofence entries are scored against the true path, per target and with the detector's
+ * hysteresis margin: the device truly enters when it gets the margin deep into a target and
+ * leaves when it is the margin beyond the edge. An entry is missed when the detector does
+ * not report it before the device leaves again, and late when it reports it more than
+ * {@link #LATE_ENTRY_IN_MILLISECONDS} after the true entry.
+ *
+ * Usage: {@code ReplaySimulator [trace.csv ...]}. Without arguments the built-in synthetic
+ * traces are replayed. Each trace runs with every strategy and one table row is printed per
+ * run.
+ */
+public class ReplaySimulator {
+
+    // pipeline settings, as in GeoLocationService; the flush interval there follows the
+    // network, so each strategy says which one it replays
+    static final int UPLOAD_QUEUE_CAPACITY = 300;
+    static final int UPLOAD_BATCH_SIZE = 50;
+    static final long UPLOAD_FLUSH_INTERVAL_WIFI_IN_MILLISECONDS = 15000;
+    static final long UPLOAD_FLUSH_INTERVAL_CELLULAR_IN_MILLISECONDS = 120000;
+    static final long UPLOAD_COALESCE_IN_MILLISECONDS = 1000;
+    static final double FILTER_MAX_SPEED_IN_METERS_PER_SECOND = 70;
+    static final double FILTER_MIN_DEAD_BAND_IN_METERS = 5;
+    static final long FILTER_KEEP_ALIVE_IN_MILLISECONDS = 5 * 60 * 1000;
+    static final long TRANSITION_DWELL_IN_MILLISECONDS = 5 * 60 * 1000;
+    static final float TRANSITION_MAX_ACCURACY_IN_METERS = 100;
+    static final double SIMPLIFY_TOLERANCE_IN_METERS = 10;
+    static final int SIMPLIFY_MAX_WINDOW = 100;
+    static final long SIMPLIFY_MAX_DELAY_IN_MILLISECONDS = 30000;
+
+    static final long LATE_ENTRY_IN_MILLISECONDS = 15000;
+
+    private static final String USER_ID = "0123456789abcdef0123456789abcdef";
+
+    /**
+     * How fixes are requested and filtered.
+     */
+    public static class Strategy {
+
+        /** The speed-aware scheduler, the movement filter and the simplifier, as the service runs today. */
+        public static final Strategy ADAPTIVE = new Strategy("adaptive", 0, true);
+
+        /** {@link #ADAPTIVE} on Wi-Fi, where the service flushes sooner. */
+        public static final Strategy ADAPTIVE_WIFI = new Strategy("adaptive-wifi", 0, true,
+                UPLOAD_FLUSH_INTERVAL_WIFI_IN_MILLISECONDS);
+
+        /** The service before adaptive sampling: a fix every 5 s, each posted as it came. */
+        public static final Strategy FIXED_5S = new Strategy("fixed-5s", 5000, false, 0);
+
+        private final String name;
+        private final long fixedIntervalMillis;
+        private final boolean filter;
+        private final long flushIntervalMillis;
+
+        /**
+         * Replays the pipeline on a cellular network.
+         */
+        public Strategy(String name, long fixedIntervalMillis, boolean filter) {
+            this(name, fixedIntervalMillis, filter, UPLOAD_FLUSH_INTERVAL_CELLULAR_IN_MILLISECONDS);
+        }
+
+        /**
+         * @param fixedIntervalMillis request interval, 0 to use the sampling scheduler
+         * @param filter              whether fixes go through the movement filter and the simplifier
+         * @param flushIntervalMillis longest time a fix waits for upload, as the service sets it
+         *                            for the network
+         */
+        public Strategy(String name, long fixedIntervalMillis, boolean filter, long flushIntervalMillis) {
+            this.name = name;
+            this.fixedIntervalMillis = fixedIntervalMillis;
+            this.filter = filter;
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Outcome of one replay.
+     */
+    public static class Result {
+
+        String trace;
+        String strategy;
+        long traceMillis;
+        long wallMillis;
+        long gpsWakeups;
+        long fixes;
+        long fixesSent;
+        long intervalSwitches;
+        long requests;
+        long bytesSent;
+        int entries;
+        int missedEntries;
+        int lateEntries;
+        final Metrics.Histogram entryDelayMillis = new Metrics.Histogram();
+        final Metrics.Histogram latencyMillis = new Metrics.Histogram();
+
+        public long getGpsWakeups() {
+            return gpsWakeups;
+        }
+
+        /** Fixes that reached the server. */
+        public long getFixesSent() {
+            return fixesSent;
+        }
+
+        public long getIntervalSwitches() {
+            return intervalSwitches;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public int getMissedEntries() {
+            return missedEntries;
+        }
+
+        public int getLateEntries() {
+            return lateEntries;
+        }
+
+        /** Time from a fix being taken to the server having it, as a histogram in milliseconds. */
+        public Metrics.Histogram getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /** How much faster than real time the replay ran. */
+        public double getSpeedup() {
+            return (double) traceMillis / Math.max(1, wallMillis);
+        }
+
+        static String header() {
+            return String.format(Locale.US, "%-12s %-10s %8s %6s %6s %8s %6s %9s %7s %6s %5s %9s %9s %8s",
+                    "trace", "strategy", "wakeups", "fixes", "sent", "switches", "reqs", "bytes",
+                    "entries", "missed", "late", "delay p50", "e2e p99", "speedup");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-12s %-10s %8d %6d %6d %8d %6d %9d %7d %6d %5d %9d %9d %7.0fx",
+                    trace, strategy, gpsWakeups, fixes, fixesSent, intervalSwitches, requests, bytesSent,
+                    entries, missedEntries, lateEntries, entryDelayMillis.percentile(50),
+                    latencyMillis.percentile(99), getSpeedup());
+        }
+    }
+
+    private final GeoApiClient client;
+    private final StubGeoServer server;
+
+    public ReplaySimulator(StubGeoServer server) {
+        this.server = server;
+        this.client = new GeoApiClient(server.getBaseUrl());
+    }
+
+    public Result replay(Trace trace, List<Target> targets, Strategy strategy, long seed) throws IOException {
+        long wallStart = System.nanoTime();
+        long requestsBefore = server.getRequests();
+        long bytesBefore = server.getBytesReceived();
+        long fixesBefore = server.getFixesReceived();
+
+        Result result = new Result();
+        result.trace = trace.getName();
+        result.strategy = strategy.getName();
+        result.traceMillis = trace.getDurationMillis();
+
+        TargetIndex index = new TargetIndex(targets);
+        SamplingScheduler scheduler = new SamplingScheduler();
+        FixFilter filter = new FixFilter(FILTER_MAX_SPEED_IN_METERS_PER_SECOND, FILTER_MIN_DEAD_BAND_IN_METERS,
+                FILTER_KEEP_ALIVE_IN_MILLISECONDS);
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(SIMPLIFY_TOLERANCE_IN_METERS, SIMPLIFY_MAX_WINDOW,
+                SIMPLIFY_MAX_DELAY_IN_MILLISECONDS);
+        List<LocationFix> kept = new ArrayList<>();
+        LocationBatcher batcher = new LocationBatcher(UPLOAD_QUEUE_CAPACITY, UPLOAD_BATCH_SIZE,
+                strategy.flushIntervalMillis, UPLOAD_COALESCE_IN_MILLISECONDS,
+                LocationBatcher.OverflowPolicy.DROP_OLDEST);
+        TransitionDetector detector = new TransitionDetector(TRANSITION_DWELL_IN_MILLISECONDS,
+                TRANSITION_MAX_ACCURACY_IN_METERS);
+        List<Transition> transitions = new ArrayList<>();
+        Random noise = new Random(seed);
+
+        // true entries still waiting to be detected, and the targets truly inside, by name
+        Map<String, Long> pendingEntries = new HashMap<>();
+        Map<String, Target> trueInside = new HashMap<>();
+        Set<String> detectedInside = new HashSet<>();
+        List<Target> nearby = new ArrayList<>();
+        double reach = index.getMaxRadius() / GeoMath.METERS_PER_DEGREE;
+
+        SamplingScheduler.Plan plan = scheduler.getPlan();
+        long nextFixTime = trace.get(0).getTime();
+
+        for (int i = 0; i < trace.size(); i++) {
+            LocationFix truth = trace.get(i);
+            long now = truth.getTime();
+
+            // ground truth transitions
+            Iterator<Target> left = trueInside.values().iterator();
+            while (left.hasNext()) {
+                Target target = left.next();
+                if (target.boundaryDistance(truth.getLatitude(), truth.getLongitude())
+                        > TransitionDetector.margin(target)) {
+                    left.remove();
+                    if (pendingEntries.remove(target.getName()) != null) {
+                        // left before the detector reported it
+                        result.missedEntries++;
+                    }
+                }
+            }
+            nearby.clear();
+            double longitudeReach = reach / Math.cos(Math.toRadians(truth.getLatitude()));
+            index.query(truth.getLatitude() - reach, truth.getLongitude() - longitudeReach,
+                    truth.getLatitude() + reach, truth.getLongitude() + longitudeReach, nearby);
+            for (Target target : nearby) {
+                if (!trueInside.containsKey(target.getName())
+                        && target.boundaryDistance(truth.getLatitude(), truth.getLongitude())
+                        <= -TransitionDetector.margin(target)) {
+                    trueInside.put(target.getName(), target);
+                    result.entries++;
+                    if (detectedInside.contains(target.getName())) {
+                        // GPS noise had it reported a moment early
+                        result.entryDelayMillis.record(0);
+                    } else {
+                        pendingEntries.put(target.getName(), now);
+                    }
+                }
+            }
+
+            long interval = strategy.fixedIntervalMillis > 0 ? strategy.fixedIntervalMillis : plan.getIntervalMillis();
+            if (now >= nextFixTime) {
+                result.gpsWakeups++;
+                nextFixTime = now + interval;
+                if (trace.hasSignal(i)) {
+                    LocationFix fix = observe(truth, trace.getAccuracy(), noise);
+                    result.fixes++;
+
+                    TargetIndex.Nearest nearest = index.nearest(fix.getLatitude(), fix.getLongitude());
+                    transitions.clear();
+                    detector.update(fix, index, transitions);
+                    for (Transition transition : transitions) {
+                        if (transition.getType() == Transition.Type.EXIT) {
+                            detectedInside.remove(transition.getTargetName());
+                            continue;
+                        } else if (transition.getType() != Transition.Type.ENTER) {
+                            continue;
+                        }
+                        detectedInside.add(transition.getTargetName());
+                        Long entered = pendingEntries.remove(transition.getTargetName());
+                        if (entered != null) {
+                            long delay = now - entered;
+                            result.entryDelayMillis.record(delay);
+                            if (delay > LATE_ENTRY_IN_MILLISECONDS) {
+                                result.lateEntries++;
+                            }
+                        }
+                    }
+
+                    if (strategy.fixedIntervalMillis == 0 && nearest != null) {
+                        Target target = nearest.getTarget();
+                        double bearingToCentre = GeoMath.bearing(fix.getLatitude(), fix.getLongitude(),
+                                target.getLatitude(), target.getLongitude());
+                        double closingSpeed = SamplingScheduler.closingSpeed(fix.getSpeed(), fix.getBearing(),
+                                bearingToCentre, nearest.isInside());
+                        SamplingScheduler.Plan next = scheduler.update(nearest.getBoundaryDistance(),
+                                fix.getAccuracy(), fix.getSpeed(), closingSpeed);
+                        if (next != plan) {
+                            result.intervalSwitches++;
+                            plan = next;
+                            nextFixTime = Math.min(nextFixTime, now + plan.getIntervalMillis());
+                        }
+                    }
+
+                    kept.clear();
+                    LocationFix key = null;
+                    if (!strategy.filter) {
+                        kept.add(fix);
+                    } else if (!transitions.isEmpty()) {
+                        // the fix that confirmed a transition is always sent
+                        LocationFix accepted = filter.filter(fix);
+                        key = accepted != null ? accepted : fix;
+                        simplifier.addKey(key, kept);
+                    } else {
+                        LocationFix accepted = filter.filter(fix);
+                        if (accepted != null) {
+                            simplifier.add(accepted, kept);
+                        }
+                    }
+                    for (LocationFix upload : kept) {
+                        batcher.add(upload, now, upload == key);
+                    }
+                }
+            }
+
+            while (batcher.isFlushDue(now)) {
+                send(batcher.drainBatch(), now, result);
+            }
+        }
+
+        long end = trace.get(trace.size() - 1).getTime();
+        kept.clear();
+        simplifier.flush(kept);
+        for (LocationFix upload : kept) {
+            batcher.add(upload, end);
+        }
+        while (batcher.size() > 0) {
+            send(batcher.drainBatch(), end, result);
+        }
+        result.missedEntries += pendingEntries.size();
+
+        result.requests = server.getRequests() - requestsBefore;
+        result.bytesSent = server.getBytesReceived() - bytesBefore;
+        result.fixesSent = server.getFixesReceived() - fixesBefore;
+        result.wallMillis = (System.nanoTime() - wallStart) / 1000000;
+        return result;
+    }
+
+    private void send(List<LocationFix> batch, long now, Result result) throws IOException {
+        long start = System.nanoTime();
+        GeoApiClient.Response response = client.post("UpdateLocation",
+                LocationBatchEncoder.encode(USER_ID, batch), LocationBatchEncoder.CONTENT_TYPE);
+        try {
+            response.readBytes();
+        } finally {
+            response.close();
+        }
+        long roundTrip = (System.nanoTime() - start) / 1000000;
+        for (LocationFix fix : batch) {
+            result.latencyMillis.record(now - fix.getTime() + roundTrip);
+        }
+    }
+
+    /**
+     * A GPS fix of the true position with Gaussian error of the trace's accuracy.
+     */
+    private static LocationFix observe(LocationFix truth, float accuracy, Random noise) {
+        double sigma = accuracy / 2.0;
+        double north = noise.nextGaussian() * sigma;
+        double east = noise.nextGaussian() * sigma;
+        double latitude = truth.getLatitude() + north / GeoMath.METERS_PER_DEGREE;
+        double longitude = truth.getLongitude()
+                + east / (GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(truth.getLatitude())));
+        return new LocationFix(latitude, longitude, accuracy, truth.getSpeed(), truth.getBearing(), truth.getTime());
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Trace> traces = new ArrayList<>();
+        if (args.length == 0) {
+            traces.add(TraceGenerator.walking(3600, 1));
+            traces.add(TraceGenerator.driving(3600, 2));
+            traces.add(TraceGenerator.stationary(3600, 3));
+            traces.add(TraceGenerator.tunnel(3600, 600, 120, 4));
+        } else {
+            for (String path : args) {
+                traces.add(Trace.read(new File(path)));
+            }
+        }
+        Strategy[] strategies = {Strategy.ADAPTIVE, Strategy.ADAPTIVE_WIFI, Strategy.FIXED_5S};
+
+        StubGeoServer server = new StubGeoServer();
+        server.start();
+        try {
+            ReplaySimulator simulator = new ReplaySimulator(server);
+            System.out.println(Result.header());
+            for (Trace trace : traces) {
+                List<Target> targets = TraceGenerator.targetsAlong(trace, 300, 100, 2000, 5);
+                for (Strategy strategy : strategies) {
+                    System.out.println(simulator.replay(trace, targets, strategy, 6));
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
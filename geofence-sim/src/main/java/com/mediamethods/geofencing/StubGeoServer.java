@@ -0,0 +1,127 @@
+package com.mediamethods.geofencing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for GeoLocationService.svc/UpdateLocation. Accepts binary and JSON batches,
+ * counts what it receives and answers with the envelope the real service uses.
+ */
+public class StubGeoServer {
+
+    public static final String PATH = "/GeoLocationService.svc/";
+
+    static {
+        // without it small responses wait for the delayed ACK, some 40 ms per request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final byte[] updateLocationResponse;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong fixesReceived = new AtomicLong();
+
+    public StubGeoServer() throws IOException {
+        // like the WCF service: result and payload are JSON strings
+        String payload = "{\"distanceToClosest\":\"0\"}";
+        String result = "{\"status\":0,\"payload\":" + quote(payload) + "}";
+        updateLocationResponse = ("{\"UpdateLocationResult\":" + quote(result) + "}").getBytes("UTF-8");
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH + "UpdateLocation", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleUpdateLocation(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /** Base URL for a {@link GeoApiClient}. */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** Request body bytes as sent on the wire, i.e. after any compression. */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getFixesReceived() {
+        return fixesReceived.get();
+    }
+
+    private void handleUpdateLocation(HttpExchange exchange) throws IOException {
+        try {
+            byte[] wire = readFully(exchange.getRequestBody());
+            requests.incrementAndGet();
+            bytesReceived.addAndGet(wire.length);
+
+            byte[] body = wire;
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = readFully(new GZIPInputStream(new ByteArrayInputStream(wire)));
+            }
+
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (LocationBatchEncoder.CONTENT_TYPE.equals(contentType)) {
+                fixesReceived.addAndGet(LocationBatchEncoder.decode(body).getFixes().size());
+            } else {
+                // JSON: count the entries of the "locations" array
+                String json = new String(body, "UTF-8");
+                int count = 0;
+                for (int i = json.indexOf("\"time\""); i >= 0; i = json.indexOf("\"time\"", i + 1)) {
+                    count++;
+                }
+                fixesReceived.addAndGet(Math.max(count, 1));
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, updateLocationResponse.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(updateLocationResponse);
+            out.close();
+        } catch (IOException ex) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String quote(String json) {
+        return "\"" + json.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
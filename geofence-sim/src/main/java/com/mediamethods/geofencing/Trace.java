@@ -0,0 +1,120 @@
+package com.mediamethods.geofencing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The true path of a device, one point per second, and whether a GPS fix could have been
+ * taken at each point (false e.g. in a tunnel).
+ */
+public class Trace {
+
+    public static final long STEP_IN_MILLISECONDS = 1000;
+
+    private final String name;
+    private final List<LocationFix> points;
+    private final boolean[] signal;
+    private final float accuracy;
+
+    /**
+     * @param accuracy typical horizontal error of the fixes the GPS reports on this trace
+     */
+    public Trace(String name, List<LocationFix> points, boolean[] signal, float accuracy) {
+        this.name = name;
+        this.points = points;
+        this.signal = signal;
+        this.accuracy = accuracy;
+    }
+
+    /**
+     * Reads a recorded trace, one fix per line as {@code time,latitude,longitude[,accuracy]}
+     * with the time in milliseconds; lines starting with # are skipped. The fixes are
+     * resampled to one a second, and gaps of more than 10 s count as having no signal.
+     */
+    public static Trace read(File file) throws IOException {
+        List<LocationFix> recorded = new ArrayList<>();
+        float accuracySum = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                float accuracy = fields.length > 3 ? Float.parseFloat(fields[3]) : 10;
+                recorded.add(new LocationFix(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                        accuracy, 0, 0, Long.parseLong(fields[0])));
+                accuracySum += accuracy;
+            }
+        } finally {
+            reader.close();
+        }
+        if (recorded.size() < 2) {
+            throw new IOException("Trace " + file + " needs at least two fixes");
+        }
+
+        List<LocationFix> points = new ArrayList<>();
+        List<Boolean> signal = new ArrayList<>();
+        long start = recorded.get(0).getTime();
+        long end = recorded.get(recorded.size() - 1).getTime();
+        int next = 1;
+        for (long time = start; time <= end; time += STEP_IN_MILLISECONDS) {
+            while (recorded.get(next).getTime() < time) {
+                next++;
+            }
+            LocationFix before = recorded.get(next - 1);
+            LocationFix after = recorded.get(next);
+            long dt = after.getTime() - before.getTime();
+            double f = dt == 0 ? 0 : (double) (time - before.getTime()) / dt;
+            double distance = GeoMath.distance(before.getLatitude(), before.getLongitude(),
+                    after.getLatitude(), after.getLongitude());
+            points.add(new LocationFix(
+                    before.getLatitude() + f * (after.getLatitude() - before.getLatitude()),
+                    before.getLongitude() + f * (after.getLongitude() - before.getLongitude()),
+                    0,
+                    dt == 0 ? 0 : (float) (distance * 1000 / dt),
+                    (float) GeoMath.bearing(before.getLatitude(), before.getLongitude(),
+                            after.getLatitude(), after.getLongitude()),
+                    time));
+            signal.add(after.getTime() - before.getTime() <= 10 * STEP_IN_MILLISECONDS);
+        }
+
+        boolean[] available = new boolean[signal.size()];
+        for (int i = 0; i < available.length; i++) {
+            available[i] = signal.get(i);
+        }
+        return new Trace(file.getName(), points, available, accuracySum / recorded.size());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return points.size();
+    }
+
+    /** True position, speed and heading at the given step. */
+    public LocationFix get(int index) {
+        return points.get(index);
+    }
+
+    public boolean hasSignal(int index) {
+        return signal[index];
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    public long getDurationMillis() {
+        return points.isEmpty() ? 0 : points.get(points.size() - 1).getTime() - points.get(0).getTime();
+    }
+}
@@ -0,0 +1,91 @@
+package com.mediamethods.geofencing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic traces for the replay simulator, and targets placed along them. All output is
+ * deterministic for a given seed.
+ */
+public final class TraceGenerator {
+
+    // central Kuala Lumpur
+    static final double START_LATITUDE = 3.1390;
+    static final double START_LONGITUDE = 101.6869;
+
+    private static final long START_TIME = 1456790400000L;
+
+    private TraceGenerator() {
+    }
+
+    public static Trace walking(int seconds, long seed) {
+        return wander("walking", seconds, 1.4, 15, 5, null, seed);
+    }
+
+    public static Trace driving(int seconds, long seed) {
+        return wander("driving", seconds, 15, 8, 5, null, seed);
+    }
+
+    public static Trace stationary(int seconds, long seed) {
+        return wander("stationary", seconds, 0, 0, 10, null, seed);
+    }
+
+    /**
+     * Driving with a signal dropout of {@code dropoutSeconds} every {@code everySeconds}.
+     */
+    public static Trace tunnel(int seconds, int everySeconds, int dropoutSeconds, long seed) {
+        boolean[] signal = new boolean[seconds];
+        for (int i = 0; i < seconds; i++) {
+            signal[i] = i % everySeconds < everySeconds - dropoutSeconds;
+        }
+        return wander("tunnel", seconds, 15, 8, 5, signal, seed);
+    }
+
+    /**
+     * Puts a target on the trace every {@code everySeconds}, so each is entered once, plus
+     * {@code background} targets scattered within 20 km that the trace may never reach.
+     */
+    public static List<Target> targetsAlong(Trace trace, int everySeconds, float radius, int background, long seed) {
+        Random random = new Random(seed);
+        List<Target> targets = new ArrayList<>();
+        for (int i = everySeconds / 2; i < trace.size(); i += everySeconds) {
+            LocationFix point = trace.get(i);
+            targets.add(new Target("route " + targets.size(), point.getLatitude(), point.getLongitude(), radius));
+        }
+        double span = 20000 / GeoMath.METERS_PER_DEGREE;
+        for (int i = 0; i < background; i++) {
+            targets.add(new Target("background " + i,
+                    START_LATITUDE + (random.nextDouble() * 2 - 1) * span,
+                    START_LONGITUDE + (random.nextDouble() * 2 - 1) * span,
+                    50 + random.nextInt(450)));
+        }
+        return targets;
+    }
+
+    private static Trace wander(String name, int seconds, double speed, double turnDegrees, float accuracy,
+                                boolean[] signal, long seed) {
+        Random random = new Random(seed);
+        List<LocationFix> points = new ArrayList<>(seconds);
+        double latitude = START_LATITUDE;
+        double longitude = START_LONGITUDE;
+        double bearing = random.nextDouble() * 360;
+        for (int i = 0; i < seconds; i++) {
+            points.add(new LocationFix(latitude, longitude, 0, (float) speed, (float) bearing,
+                    START_TIME + i * Trace.STEP_IN_MILLISECONDS));
+
+            bearing = (bearing + random.nextGaussian() * turnDegrees + 360) % 360;
+            double step = speed / GeoMath.METERS_PER_DEGREE;
+            latitude += step * Math.cos(Math.toRadians(bearing));
+            longitude += step * Math.sin(Math.toRadians(bearing)) / Math.cos(Math.toRadians(latitude));
+        }
+
+        if (signal == null) {
+            signal = new boolean[seconds];
+            for (int i = 0; i < seconds; i++) {
+                signal[i] = true;
+            }
+        }
+        return new Trace(name, points, signal, accuracy);
+    }
+}
@@ -0,0 +1,65 @@
+package com.mediamethods.geofencing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplaySimulatorTest {
+
+    private StubGeoServer server;
+    private ReplaySimulator simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGeoServer();
+        server.start();
+        simulator = new ReplaySimulator(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void driving_detectsEntriesAndUploadsEveryFix() throws Exception {
+        Trace trace = TraceGenerator.driving(900, 2);
+        List<Target> targets = TraceGenerator.targetsAlong(trace, 120, 150, 0, 5);
+
+        ReplaySimulator.Result result = simulator.replay(trace, targets, ReplaySimulator.Strategy.FIXED_5S, 6);
+
+        assertEquals(targets.size(), result.getEntries());
+        assertEquals(180, result.getGpsWakeups());
+        assertEquals(180, server.getFixesReceived());
+        assertTrue(result.getRequests() > 0);
+        assertTrue(result.getBytesSent() > 0);
+        assertTrue("speedup " + result.getSpeedup(), result.getSpeedup() > 10);
+    }
+
+    @Test
+    public void stationary_adaptiveSendsFarLessThanFixed() throws Exception {
+        Trace trace = TraceGenerator.stationary(1800, 3);
+        List<Target> targets = TraceGenerator.targetsAlong(trace, 1800, 100, 50, 5);
+
+        ReplaySimulator.Result adaptive = simulator.replay(trace, targets, ReplaySimulator.Strategy.ADAPTIVE, 6);
+        ReplaySimulator.Result fixed = simulator.replay(trace, targets, ReplaySimulator.Strategy.FIXED_5S, 6);
+
+        assertEquals(0, adaptive.getMissedEntries());
+        assertTrue(adaptive.getRequests() * 5 < fixed.getRequests());
+        assertTrue(adaptive.getBytesSent() * 5 < fixed.getBytesSent());
+    }
+
+    @Test
+    public void tunnel_countsWakeupsWithoutFixes() throws Exception {
+        Trace trace = TraceGenerator.tunnel(600, 300, 100, 4);
+        ReplaySimulator.Result result = simulator.replay(trace, TraceGenerator.targetsAlong(trace, 300, 100, 0, 5),
+                ReplaySimulator.Strategy.FIXED_5S, 6);
+
+        assertEquals(120, result.getGpsWakeups());
+        assertEquals(80, server.getFixesReceived());
+    }
+}